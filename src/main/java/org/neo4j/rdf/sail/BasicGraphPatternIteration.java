@@ -0,0 +1,324 @@
+package org.neo4j.rdf.sail;
+
+import info.aduna.iteration.LookAheadIteration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.Transaction;
+
+import org.neo4j.rdf.model.BlankNode;
+import org.neo4j.rdf.model.CompleteStatement;
+import org.neo4j.rdf.model.Uri;
+import org.neo4j.rdf.model.Value;
+import org.neo4j.rdf.model.Wildcard;
+import org.neo4j.rdf.model.WildcardStatement;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+/**
+ * Evaluates a join of statement patterns as a depth first traversal over
+ * the statements of a {@link GraphDatabaseSailConnectionImpl}: each
+ * statement found for a pattern binds its variables and the next pattern
+ * is looked up with those values in place.
+ *
+ * Intermediate bindings are kept as {@link org.neo4j.rdf.model.Value}s, as
+ * they come from the store, and the lookups are made with them directly,
+ * so only the final solutions are converted to Sesame values. Each solution
+ * is computed within a single switch to the connection transaction.
+ *
+ * Each filter condition is evaluated right after the pattern which binds
+ * the last of its variables, so that the partial solutions it rejects
+ * aren't extended any further.
+ */
+class BasicGraphPatternIteration
+    extends LookAheadIteration<BindingSet, QueryEvaluationException>
+{
+    private static final int SUBJECT = 0;
+    private static final int PREDICATE = 1;
+    private static final int OBJECT = 2;
+    private static final Iterator<CompleteStatement> NO_STATEMENTS =
+        Collections.<CompleteStatement>emptyList().iterator();
+
+    private final EvaluationStrategy strategy;
+    private final GraphDatabaseSailConnectionImpl connection;
+    private final BindingSet bindings;
+    // [pattern][position] variable names, null for constants
+    private final String[][] variables;
+    // [pattern][position] constants, null for variables
+    private final Value[][] constants;
+    private final Map<String, Value> boundValues = new HashMap<String, Value>();
+    private final List<Iterator<CompleteStatement>> iterators;
+    private final List<List<String>> boundByPattern;
+    // [pattern] the filter conditions to evaluate when it has been bound
+    private final List<List<ValueExpr>> filtersByPattern;
+    private int level = -1;
+    private boolean started;
+
+    /**
+     * @param patterns the patterns, each one sharing a variable with the
+     * ones before it.
+     * @param filters the filter conditions over the variables of the
+     * patterns.
+     */
+    BasicGraphPatternIteration( EvaluationStrategy strategy,
+        GraphDatabaseSailConnectionImpl connection,
+        List<StatementPattern> patterns, List<ValueExpr> filters,
+        BindingSet bindings )
+    {
+        this.strategy = strategy;
+        this.connection = connection;
+        this.bindings = bindings;
+        int count = patterns.size();
+        this.variables = new String[ count ][];
+        this.constants = new Value[ count ][];
+        this.iterators = new ArrayList<Iterator<CompleteStatement>>( count );
+        this.boundByPattern = new ArrayList<List<String>>( count );
+        this.filtersByPattern = new ArrayList<List<ValueExpr>>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            StatementPattern pattern = patterns.get( i );
+            Var[] vars = new Var[] { pattern.getSubjectVar(),
+                pattern.getPredicateVar(), pattern.getObjectVar() };
+            variables[ i ] = new String[ vars.length ];
+            constants[ i ] = new Value[ vars.length ];
+            for ( int position = 0; position < vars.length; position++ )
+            {
+                Var var = vars[ position ];
+                org.openrdf.model.Value value = var.hasValue() ?
+                    var.getValue() : bindings.getValue( var.getName() );
+                if ( value != null )
+                {
+                    constants[ i ][ position ] =
+                        SesameGraphDatabaseMapper.createValue( value );
+                }
+                else
+                {
+                    variables[ i ][ position ] = var.getName();
+                }
+            }
+            iterators.add( NO_STATEMENTS );
+            boundByPattern.add( new ArrayList<String>( vars.length ) );
+            filtersByPattern.add( new ArrayList<ValueExpr>() );
+        }
+        assignFilters( filters );
+    }
+
+    private void assignFilters( List<ValueExpr> filters )
+    {
+        Set<String> bound = new HashSet<String>( bindings.getBindingNames() );
+        List<ValueExpr> remaining = new ArrayList<ValueExpr>( filters );
+        for ( int i = 0; i < variables.length; i++ )
+        {
+            for ( String name : variables[ i ] )
+            {
+                if ( name != null )
+                {
+                    bound.add( name );
+                }
+            }
+            for ( Iterator<ValueExpr> filter = remaining.iterator();
+                filter.hasNext(); )
+            {
+                ValueExpr condition = filter.next();
+                if ( bound.containsAll( variableNames( condition ) ) )
+                {
+                    filtersByPattern.get( i ).add( condition );
+                    filter.remove();
+                }
+            }
+        }
+        // Over variables which are never bound, they evaluate to false
+        filtersByPattern.get( variables.length - 1 ).addAll( remaining );
+    }
+
+    private static Set<String> variableNames( ValueExpr condition )
+    {
+        final Set<String> names = new HashSet<String>();
+        condition.visit( new QueryModelVisitorBase<RuntimeException>()
+        {
+            @Override
+            public void meet( Var var )
+            {
+                if ( !var.hasValue() )
+                {
+                    names.add( var.getName() );
+                }
+            }
+        } );
+        return names;
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException
+    {
+        if ( connection.isReadOnly() )
+        {
+            return computeNextSolution();
+        }
+        synchronized ( connection )
+        {
+            Transaction otherTx = connection.suspendOtherAndResumeThis();
+            try
+            {
+                return computeNextSolution();
+            }
+            finally
+            {
+                connection.suspendThisAndResumeOther( otherTx );
+            }
+        }
+    }
+
+    private BindingSet computeNextSolution() throws QueryEvaluationException
+    {
+        if ( !started )
+        {
+            started = true;
+            level = 0;
+            iterators.set( 0, lookup( 0 ) );
+        }
+        int last = variables.length - 1;
+        while ( level >= 0 )
+        {
+            unbind( level );
+            Iterator<CompleteStatement> iterator = iterators.get( level );
+            if ( !iterator.hasNext() )
+            {
+                iterators.set( level--, NO_STATEMENTS );
+                continue;
+            }
+            if ( !bind( level, iterator.next() ) || !accept( level ) )
+            {
+                continue;
+            }
+            if ( level == last )
+            {
+                return createBindingSet();
+            }
+            level++;
+            iterators.set( level, lookup( level ) );
+        }
+        return null;
+    }
+
+    private Iterator<CompleteStatement> lookup( int pattern )
+    {
+        Value subject = valueAt( pattern, SUBJECT );
+        Value predicate = valueAt( pattern, PREDICATE );
+        Value object = valueAt( pattern, OBJECT );
+        if ( ( subject != null && !( subject instanceof Uri ) &&
+            !( subject instanceof BlankNode ) ) ||
+            ( predicate != null && !( predicate instanceof Uri ) ) )
+        {
+            // F.ex. a variable bound to a literal in the subject position
+            return NO_STATEMENTS;
+        }
+        WildcardStatement statement = new WildcardStatement(
+            subject != null ? subject : new Wildcard( "?s" ),
+            predicate != null ? predicate : new Wildcard( "?p" ),
+            object != null ? object : new Wildcard( "?o" ),
+            new Wildcard( "?g" ) );
+        return connection.internalGetStatements( statement );
+    }
+
+    private Value valueAt( int pattern, int position )
+    {
+        Value constant = constants[ pattern ][ position ];
+        return constant != null ? constant :
+            boundValues.get( variables[ pattern ][ position ] );
+    }
+
+    private boolean bind( int pattern, CompleteStatement statement )
+    {
+        return bind( pattern, SUBJECT, statement.getSubject() ) &&
+            bind( pattern, PREDICATE, statement.getPredicate() ) &&
+            bind( pattern, OBJECT, statement.getObject() );
+    }
+
+    private boolean bind( int pattern, int position, Value value )
+    {
+        String name = variables[ pattern ][ position ];
+        if ( name == null )
+        {
+            return true;
+        }
+        Value existing = boundValues.get( name );
+        if ( existing == null )
+        {
+            boundValues.put( name, value );
+            boundByPattern.get( pattern ).add( name );
+            return true;
+        }
+        if ( !boundByPattern.get( pattern ).contains( name ) )
+        {
+            // Bound by a previous pattern, the lookup already matched it
+            return true;
+        }
+        // The same variable used twice in this pattern
+        return existing.equals( value );
+    }
+
+    private boolean accept( int pattern ) throws QueryEvaluationException
+    {
+        List<ValueExpr> filters = filtersByPattern.get( pattern );
+        if ( filters.isEmpty() )
+        {
+            return true;
+        }
+        BindingSet solution = createBindingSet();
+        for ( ValueExpr condition : filters )
+        {
+            try
+            {
+                if ( !strategy.isTrue( condition, solution ) )
+                {
+                    return false;
+                }
+            }
+            catch ( ValueExprEvaluationException e )
+            {
+                // The same as an evaluation of the filter by Sesame
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void unbind( int pattern )
+    {
+        List<String> names = boundByPattern.get( pattern );
+        for ( String name : names )
+        {
+            boundValues.remove( name );
+        }
+        names.clear();
+    }
+
+    private BindingSet createBindingSet()
+    {
+        QueryBindingSet result = new QueryBindingSet( bindings );
+        for ( Map.Entry<String, Value> entry : boundValues.entrySet() )
+        {
+            if ( !result.hasBinding( entry.getKey() ) )
+            {
+                result.addBinding( entry.getKey(),
+                    GraphDatabaseSesameMapper.createValue( entry.getValue() ) );
+            }
+        }
+        return result;
+    }
+}
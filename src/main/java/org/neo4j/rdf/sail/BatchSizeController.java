@@ -0,0 +1,166 @@
+package org.neo4j.rdf.sail;
+
+/**
+ * Decides how many write operations a connection does before it commits
+ * its transaction and starts a new one, see
+ * {@link GraphDatabaseSail#setAdaptiveBatchSize(int, int, int)}.
+ *
+ * The size is adjusted after each batch commit by climbing towards the
+ * best commit throughput, i.e. operations committed per second spent
+ * committing: it keeps growing (or shrinking) as long as that doesn't get
+ * noticeably worse, and turns around when it does. The time between the
+ * commits isn't counted, since it's mostly up to the client. If the free
+ * heap gets low the size is halved regardless, since a transaction keeps
+ * all its changes in memory until it's committed. The size always stays
+ * within the bounds.
+ *
+ * The sail has one controller, and each connection adapts a controller of
+ * its own, see {@link #forConnection()}, so that concurrent writers don't
+ * skew each other's measurements. The commits are counted by the
+ * controller of the sail.
+ */
+class BatchSizeController
+{
+    private static final double STEP = 1.25;
+    // a throughput this much lower than the last one changes direction
+    private static final double TOLERANCE = 0.05;
+    private static final double MIN_HEAP_HEADROOM = 0.2;
+
+    private final int minSize;
+    private final int maxSize;
+    // the controller of the sail, null if this is it
+    private final BatchSizeController parent;
+    private volatile int batchSize;
+    private boolean growing = true;
+    private double lastThroughput;
+    private long batchCount;
+    private long totalCommitNanos;
+
+    /**
+     * @param initialSize the batch size to start with.
+     * @param minSize the smallest batch size.
+     * @param maxSize the largest batch size, if it equals {@code minSize}
+     * the size never changes.
+     */
+    BatchSizeController( int initialSize, int minSize, int maxSize )
+    {
+        if ( minSize < 1 || maxSize < minSize || initialSize < minSize ||
+            initialSize > maxSize )
+        {
+            throw new IllegalArgumentException( "Invalid batch size " +
+                initialSize + " [" + minSize + ", " + maxSize + "]" );
+        }
+        this.batchSize = initialSize;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.parent = null;
+    }
+
+    private BatchSizeController( BatchSizeController parent )
+    {
+        this.batchSize = parent.batchSize;
+        this.minSize = parent.minSize;
+        this.maxSize = parent.maxSize;
+        this.parent = parent;
+    }
+
+    /**
+     * @return a controller for a connection, which starts at the size this
+     * controller is at and counts its commits here.
+     */
+    BatchSizeController forConnection()
+    {
+        return new BatchSizeController( this );
+    }
+
+    int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    int getMinSize()
+    {
+        return minSize;
+    }
+
+    int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    boolean isAdaptive()
+    {
+        return minSize != maxSize;
+    }
+
+    /**
+     * Called after a batch has been committed.
+     * @param operations the number of write operations in the batch.
+     * @param commitNanos the time the commit took.
+     */
+    synchronized void batchCommitted( int operations, long commitNanos )
+    {
+        ( parent != null ? parent : this ).count( commitNanos );
+        if ( !isAdaptive() )
+        {
+            return;
+        }
+        if ( heapHeadroom() < MIN_HEAP_HEADROOM )
+        {
+            resize( batchSize / 2 );
+            growing = false;
+            lastThroughput = 0;
+            return;
+        }
+        double throughput = operations * 1000000000.0 /
+            Math.max( 1, commitNanos );
+        if ( lastThroughput > 0 &&
+            throughput < lastThroughput * ( 1 - TOLERANCE ) )
+        {
+            growing = !growing;
+        }
+        lastThroughput = throughput;
+        resize( growing ? batchSize * STEP : batchSize / STEP );
+    }
+
+    private void resize( double size )
+    {
+        batchSize = ( int ) Math.max( minSize, Math.min( maxSize,
+            Math.round( size ) ) );
+        if ( parent != null )
+        {
+            // What the next connection starts at
+            parent.batchSize = batchSize;
+        }
+    }
+
+    private synchronized void count( long commitNanos )
+    {
+        batchCount++;
+        totalCommitNanos += commitNanos;
+    }
+
+    /**
+     * @return the part of the maximum heap which is free, between 0 and 1.
+     */
+    double heapHeadroom()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return ( double ) ( runtime.maxMemory() - used ) / runtime.maxMemory();
+    }
+
+    synchronized long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * @return the average time of a batch commit, in milliseconds.
+     */
+    synchronized double getAverageCommitMillis()
+    {
+        return batchCount == 0 ? 0 :
+            totalCommitNanos / 1000000.0 / batchCount;
+    }
+}
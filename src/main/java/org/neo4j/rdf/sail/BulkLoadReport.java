@@ -0,0 +1,129 @@
+package org.neo4j.rdf.sail;
+
+/**
+ * The outcome of a {@link GraphDatabaseSail#bulkLoad(java.util.List,
+ * org.openrdf.rio.RDFFormat, String, int, org.openrdf.model.Resource...)},
+ * with the throughput of the parsing stage and of the writing stage, so
+ * that it's possible to tell which one of them limited the load.
+ */
+public class BulkLoadReport
+{
+    private final int fileCount;
+    private final long parsedCount;
+    private final long addedCount;
+    private final long elapsedMillis;
+    private final long parseMillis;
+    private final long writeMillis;
+    private final long parserBlockedMillis;
+    private final long writerIdleMillis;
+
+    BulkLoadReport( int fileCount, long parsedCount, long addedCount,
+        long elapsedMillis, long parseMillis, long writeMillis,
+        long parserBlockedMillis, long writerIdleMillis )
+    {
+        this.fileCount = fileCount;
+        this.parsedCount = parsedCount;
+        this.addedCount = addedCount;
+        this.elapsedMillis = elapsedMillis;
+        this.parseMillis = parseMillis;
+        this.writeMillis = writeMillis;
+        this.parserBlockedMillis = parserBlockedMillis;
+        this.writerIdleMillis = writerIdleMillis;
+    }
+
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * @return the number of statements the parsers produced, counted once
+     * per context they were added to.
+     */
+    public long getParsedCount()
+    {
+        return parsedCount;
+    }
+
+    /**
+     * @return the number of statements which were added, i.e. which weren't
+     * already in the store.
+     */
+    public long getAddedCount()
+    {
+        return addedCount;
+    }
+
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the time from when the first parser started until the last
+     * one was done.
+     */
+    public long getParseMillis()
+    {
+        return parseMillis;
+    }
+
+    /**
+     * @return the time the writer spent writing, i.e. not counting the time
+     * it waited for the parsers.
+     */
+    public long getWriteMillis()
+    {
+        return writeMillis;
+    }
+
+    /**
+     * @return the total time the parsers waited for the writer because the
+     * queue between them was full.
+     */
+    public long getParserBlockedMillis()
+    {
+        return parserBlockedMillis;
+    }
+
+    /**
+     * @return the time the writer waited for the parsers because the queue
+     * between them was empty.
+     */
+    public long getWriterIdleMillis()
+    {
+        return writerIdleMillis;
+    }
+
+    public double getParseStatementsPerSecond()
+    {
+        return perSecond( parsedCount, parseMillis );
+    }
+
+    public double getWriteStatementsPerSecond()
+    {
+        return perSecond( parsedCount, writeMillis );
+    }
+
+    public double getStatementsPerSecond()
+    {
+        return perSecond( parsedCount, elapsedMillis );
+    }
+
+    private static double perSecond( long count, long millis )
+    {
+        return count * 1000.0 / Math.max( 1, millis );
+    }
+
+    @Override
+    public String toString()
+    {
+        return fileCount + " files, " + parsedCount + " statements (" +
+            addedCount + " added) in " + elapsedMillis + "ms, " +
+            ( long ) getStatementsPerSecond() + "/s; parse " +
+            ( long ) getParseStatementsPerSecond() + "/s, blocked " +
+            parserBlockedMillis + "ms; write " +
+            ( long ) getWriteStatementsPerSecond() + "/s, idle " +
+            writerIdleMillis + "ms";
+    }
+}
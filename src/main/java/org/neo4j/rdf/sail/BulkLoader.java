@@ -0,0 +1,562 @@
+package org.neo4j.rdf.sail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.rdf.fulltext.FulltextIndex;
+import org.neo4j.rdf.model.CompleteStatement;
+import org.neo4j.rdf.model.Context;
+import org.neo4j.rdf.model.WildcardStatement;
+import org.neo4j.rdf.sail.changelog.ChangeLogWriter;
+import org.neo4j.rdf.store.RdfStore;
+import org.neo4j.rdf.store.RdfStoreImpl;
+import org.neo4j.util.GraphDatabaseUtil;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.sail.SailException;
+
+/**
+ * Adds statements straight into the {@link RdfStore}, in large
+ * transactions of its own, see
+ * {@link GraphDatabaseSail#bulkLoad(InputStream, String,
+ * org.openrdf.rio.RDFFormat, Resource...)}.
+ *
+ * Compared to adding the statements through a connection it skips
+ * the per statement logging, listener events and command log, and the
+ * transaction switching of the connection. The context index and the
+ * statistics are updated once per transaction, in the same way as when a
+ * connection commits.
+ *
+ * Statements already in the store aren't added again. Duplicates within a
+ * transaction are found in memory, and the store is only looked at when
+ * the counts of the context index tell that the predicate and context of a
+ * statement already have committed statements, so loading into an empty
+ * context doesn't look up anything in the first transaction. The
+ * namespaces of the documents are added, unless the prefix is already
+ * defined, in the same way as Sesame's {@code RDFInserter} does it.
+ *
+ * The transactions are bound to the thread which calls {@link #start()},
+ * so all the calls up to {@link #finish()} or {@link #abort()} must be made
+ * by that thread. {@link ParallelBulkLoader} parses on other threads and
+ * feeds a loader from a single one.
+ */
+class BulkLoader
+{
+    private final GraphDatabaseSail sail;
+    private final GraphDatabaseService graphDb;
+    private final RdfStore store;
+    private final TransactionManager tm;
+    private final ContextIndex contextIndex;
+    private final int batchSize;
+    private final ChangeLogWriter changeLog;
+    // the statements added in the current transaction, if there's a
+    // change log to write them to
+    private final List<CompleteStatement> batchAdded =
+        new ArrayList<CompleteStatement>();
+    // changes made in the current transaction
+    private final StatementStatistics batchStatistics =
+        new StatementStatistics();
+    // the statements of the current transaction, as lists of subject,
+    // predicate, object and context
+    private final Set<List<Value>> batchStatements =
+        new HashSet<List<Value>>();
+    // prefix -> namespace of the namespaces to add in the current
+    // transaction, guarded by itself since parser threads add to it
+    private final Map<String, String> batchNamespaces =
+        new HashMap<String, String>();
+    private final StatementStatistics noChanges = new StatementStatistics();
+    private int batchOperations;
+    private long batchAddedCount;
+    private long addedCount;
+    private Transaction otherTx;
+    private boolean started;
+    private boolean ended;
+
+    /**
+     * @param batchSize the number of statements to add in each transaction.
+     * @param changeLog the change log to write the transactions to, or
+     * {@code null}.
+     */
+    BulkLoader( GraphDatabaseSail sail, GraphDatabaseService graphDb,
+        RdfStore store, TransactionManager tm, ContextIndex contextIndex,
+        int batchSize, ChangeLogWriter changeLog )
+    {
+        this.sail = sail;
+        this.graphDb = graphDb;
+        this.store = store;
+        this.tm = tm;
+        this.contextIndex = contextIndex;
+        this.batchSize = batchSize;
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * Parses {@code in} with {@code parser} and adds the statements which
+     * aren't already in the store. If the load fails the transactions which
+     * have already been committed stay committed.
+     * @param contexts the contexts to add the statements to, if empty the
+     * statements are added to the context they were parsed with.
+     * @return the number of statements which were added.
+     */
+    long load( RDFParser parser, InputStream in, String baseUri,
+        Resource... contexts ) throws IOException, RDFParseException,
+        SailException
+    {
+        parser.setRDFHandler( new TargetContextHandler( contexts )
+        {
+            @Override
+            void handle( Statement statement ) throws SailException
+            {
+                add( statement );
+            }
+
+            @Override
+            public void handleNamespace( String prefix, String uri )
+            {
+                namespace( prefix, uri );
+            }
+        } );
+        boolean loaded = false;
+        try
+        {
+            start();
+            parser.parse( in, baseUri );
+            loaded = true;
+        }
+        catch ( RDFHandlerException e )
+        {
+            throw new SailException( e.getCause() != null ?
+                e.getCause() : e );
+        }
+        finally
+        {
+            if ( !loaded )
+            {
+                abort();
+            }
+        }
+        return finish();
+    }
+
+    /**
+     * Suspends the transaction of the current thread, if any, and starts
+     * the first transaction of the load.
+     */
+    void start() throws SailException
+    {
+        try
+        {
+            otherTx = tm.suspend();
+        }
+        catch ( Exception e )
+        {
+            throw new SailException( e );
+        }
+        started = true;
+        begin();
+    }
+
+    /**
+     * Adds {@code statement} unless it's already in the store, and commits
+     * the transaction when it has reached the batch size. Duplicates within
+     * the transaction are told apart by the parsed values, before the
+     * statement is converted.
+     * @param statement the statement, in the context to add it to.
+     */
+    void add( Statement statement ) throws SailException
+    {
+        if ( batchStatements.add( key( statement ) ) )
+        {
+            CompleteStatement converted =
+                SesameGraphDatabaseMapper.createCompleteStatement(
+                statement.getSubject(), statement.getPredicate(),
+                statement.getObject(), statement.getContext() );
+            if ( !isCommitted( converted ) )
+            {
+                store.addStatements( converted );
+                batchStatistics.statementAdded( converted );
+                batchAddedCount++;
+                if ( changeLog != null )
+                {
+                    batchAdded.add( converted );
+                }
+            }
+        }
+        if ( ++batchOperations >= batchSize )
+        {
+            commit();
+            begin();
+        }
+    }
+
+    // Statement.equals() doesn't include the context
+    private static List<Value> key( Statement statement )
+    {
+        return Arrays.<Value>asList( statement.getSubject(),
+            statement.getPredicate(), statement.getObject(),
+            statement.getContext() );
+    }
+
+    /**
+     * @return whether or not {@code statement} is in the store, as of the
+     * last commit.
+     */
+    private boolean isCommitted( CompleteStatement statement )
+    {
+        Context context = statement.getContext();
+        if ( !contextIndex.mayHaveStatements(
+            statement.getPredicate().getUriAsString(), false,
+            context == null || context.equals( Context.NULL ) ? null :
+            context.getUriAsString(), noChanges ) )
+        {
+            return false;
+        }
+        WildcardStatement existing = new WildcardStatement(
+            statement.getSubject(), statement.getPredicate(),
+            statement.getObject(), context );
+        return store.getStatements( existing, false ).iterator().hasNext();
+    }
+
+    /**
+     * Adds a namespace in the current transaction, unless the prefix is
+     * already defined. May be called by any thread.
+     */
+    void namespace( String prefix, String uri )
+    {
+        if ( prefix == null || prefix.length() == 0 ||
+            sail.getCommittedNamespaces().containsKey( prefix ) )
+        {
+            return;
+        }
+        synchronized ( batchNamespaces )
+        {
+            if ( !batchNamespaces.containsKey( prefix ) )
+            {
+                batchNamespaces.put( prefix, uri );
+            }
+        }
+    }
+
+    /**
+     * Commits the last transaction and resumes the transaction which was
+     * suspended by {@link #start()}.
+     * @return the number of statements which were added.
+     */
+    long finish() throws SailException
+    {
+        try
+        {
+            commit();
+        }
+        catch ( SailException e )
+        {
+            abort();
+            throw e;
+        }
+        ended = true;
+        resume();
+        return addedCount;
+    }
+
+    /**
+     * Rolls back the current transaction and resumes the transaction which
+     * was suspended by {@link #start()}. Does nothing if the load hasn't
+     * been started, or has already been finished or aborted, so that it
+     * never touches a transaction of the caller.
+     */
+    void abort() throws SailException
+    {
+        if ( !started || ended )
+        {
+            return;
+        }
+        ended = true;
+        try
+        {
+            Transaction tx = tm.getTransaction();
+            if ( tx != null )
+            {
+                int txId = tx.hashCode();
+                tm.rollback();
+                endFulltextIndex( txId, false );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new SailException( e );
+        }
+        finally
+        {
+            resume();
+        }
+    }
+
+    /**
+     * @return the number of statements added by the transactions committed
+     * so far.
+     */
+    long getAddedCount()
+    {
+        return addedCount;
+    }
+
+    private void begin() throws SailException
+    {
+        try
+        {
+            tm.begin();
+        }
+        catch ( Exception e )
+        {
+            throw new SailException( e );
+        }
+    }
+
+    private void commit() throws SailException
+    {
+        try
+        {
+            int txId = tm.getTransaction().hashCode();
+            Map<String, String> namespaces = writeNamespaces();
+            if ( changeLog == null )
+            {
+                commitAndCount();
+            }
+            else
+            {
+                // Serialized so that the change log is written in commit
+                // order, the transaction is written before it's committed
+                synchronized ( changeLog )
+                {
+                    long sequence = prepareChangeLog( namespaces );
+                    boolean committed = false;
+                    try
+                    {
+                        commitAndCount();
+                        committed = true;
+                    }
+                    finally
+                    {
+                        if ( sequence != 0 )
+                        {
+                            changeLog.finished( sequence, committed );
+                        }
+                    }
+                }
+            }
+            if ( !namespaces.isEmpty() )
+            {
+                sail.namespacesCommitted();
+            }
+            endFulltextIndex( txId, true );
+        }
+        catch ( Exception e )
+        {
+            throw new SailException( e );
+        }
+        addedCount += batchAddedCount;
+        batchStatistics.clear();
+        batchStatements.clear();
+        batchAdded.clear();
+        batchAddedCount = 0;
+        batchOperations = 0;
+    }
+
+    private void commitAndCount() throws Exception
+    {
+        ContextIndex.Commit counts = contextIndex.apply( batchStatistics );
+        boolean committed = false;
+        try
+        {
+            tm.commit();
+            committed = true;
+        }
+        finally
+        {
+            contextIndex.transactionFinished( counts, committed );
+        }
+    }
+
+    /**
+     * Writes the namespaces added since the last commit, in the current
+     * transaction.
+     * @return prefix -> namespace of the written namespaces.
+     */
+    private Map<String, String> writeNamespaces()
+    {
+        Map<String, String> namespaces;
+        synchronized ( batchNamespaces )
+        {
+            namespaces = new HashMap<String, String>( batchNamespaces );
+            batchNamespaces.clear();
+        }
+        if ( !namespaces.isEmpty() )
+        {
+            Node node = new GraphDatabaseUtil( graphDb )
+                .getOrCreateSubReferenceNode(
+                GraphDatabaseSailConnectionImpl.SailRelTypes.REF_TO_NAMESPACE );
+            for ( Map.Entry<String, String> namespace : namespaces.entrySet() )
+            {
+                node.setProperty( namespace.getKey(), namespace.getValue() );
+            }
+        }
+        return namespaces;
+    }
+
+    /**
+     * Writes the current transaction to the change log, before it's
+     * committed, and records its sequence number in the transaction, see
+     * {@link GraphDatabaseSail#changeLogPrepared(long)}.
+     * @return the sequence number of the transaction in the log, 0 if it
+     * has nothing to log.
+     * @throws IOException if the transaction couldn't be written, which
+     * fails the commit.
+     */
+    private long prepareChangeLog( final Map<String, String> namespaces )
+        throws IOException
+    {
+        if ( batchAdded.isEmpty() && namespaces.isEmpty() )
+        {
+            return 0;
+        }
+        long sequence = changeLog.prepare( System.currentTimeMillis(),
+            new ChangeLogWriter.OperationSource()
+        {
+            public void replay( ChangeLogWriter.OperationHandler handler )
+            {
+                for ( Map.Entry<String, String> namespace :
+                    namespaces.entrySet() )
+                {
+                    handler.namespace( namespace.getKey(),
+                        namespace.getValue() );
+                }
+                for ( CompleteStatement statement : batchAdded )
+                {
+                    Resource context = GraphDatabaseSesameMapper
+                        .createContext( statement.getContext() );
+                    handler.operation( true,
+                        GraphDatabaseSesameMapper.createResource(
+                            statement.getSubject() ),
+                        GraphDatabaseSesameMapper.createUri(
+                            statement.getPredicate() ),
+                        GraphDatabaseSesameMapper.createValue(
+                            statement.getObject() ),
+                        context == null ? new Resource[ 0 ] :
+                            new Resource[] { context } );
+                }
+            }
+        } );
+        boolean recorded = false;
+        try
+        {
+            sail.changeLogPrepared( sequence );
+            recorded = true;
+        }
+        finally
+        {
+            if ( !recorded )
+            {
+                changeLog.finished( sequence, false );
+            }
+        }
+        return sequence;
+    }
+
+    private void endFulltextIndex( int txId, boolean commit )
+    {
+        FulltextIndex fulltextIndex =
+            ( ( RdfStoreImpl ) store ).getFulltextIndex();
+        if ( fulltextIndex != null )
+        {
+            fulltextIndex.end( txId, commit );
+        }
+    }
+
+    private void resume() throws SailException
+    {
+        Transaction tx = otherTx;
+        otherTx = null;
+        if ( tx == null )
+        {
+            return;
+        }
+        try
+        {
+            tm.resume( tx );
+        }
+        catch ( Exception e )
+        {
+            throw new SailException( e );
+        }
+    }
+
+    /**
+     * Hands parsed statements over once for each context they should be
+     * added to.
+     */
+    static abstract class TargetContextHandler extends RDFHandlerBase
+    {
+        private final Resource[] contexts;
+
+        /**
+         * @param contexts the contexts to add the statements to, if empty
+         * the statements are added to the context they were parsed with.
+         */
+        TargetContextHandler( Resource... contexts )
+        {
+            this.contexts = contexts;
+        }
+
+        @Override
+        public void handleStatement( Statement statement )
+            throws RDFHandlerException
+        {
+            try
+            {
+                if ( contexts.length == 0 )
+                {
+                    handle( statement );
+                    return;
+                }
+                for ( Resource context : contexts )
+                {
+                    handle( context == null ? new StatementImpl(
+                        statement.getSubject(), statement.getPredicate(),
+                        statement.getObject() ) : new ContextStatementImpl(
+                        statement.getSubject(), statement.getPredicate(),
+                        statement.getObject(), context ) );
+                }
+            }
+            catch ( SailException e )
+            {
+                throw new RDFHandlerException( e );
+            }
+            catch ( RuntimeException e )
+            {
+                throw new RDFHandlerException( e );
+            }
+        }
+
+        abstract void handle( Statement statement )
+            throws SailException;
+    }
+}
@@ -0,0 +1,218 @@
+package org.neo4j.rdf.sail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.neo4j.rdf.sail.utils.ValueEncoding;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+/**
+ * The write operations of the current transaction of a connection, kept so
+ * that they can be replayed in a new transaction if the current one is
+ * rolled back because of a deadlock.
+ *
+ * The operations are written with {@link ValueEncoding} to an in-memory
+ * buffer instead of being kept as Sesame values, and when the buffer grows
+ * past the memory limit it's moved to a temporary file which the rest of
+ * the operations are appended to. The memory used by a connection is thus
+ * bounded regardless of the batch size. The file is deleted by
+ * {@link #clear()}, which the connection calls when a transaction ends and
+ * when it's closed.
+ */
+class CommandLog
+{
+    static enum CommandType
+    {
+        ADD_STATEMENT,
+        REMOVE_STATEMENT
+    }
+
+    /**
+     * Receives the operations of the log when it's replayed.
+     */
+    static interface CommandHandler
+    {
+        void handle( CommandType type, Resource subject, URI predicate,
+            Value object, Resource[] contexts );
+    }
+
+    private final int memoryLimit;
+    private final ValueFactory valueFactory;
+    private ByteArrayOutputStream buffer;
+    private DataOutputStream out;
+    private File spillFile;
+    private int size;
+
+    /**
+     * @param memoryLimit the number of bytes to buffer in memory before
+     * moving the log to a temporary file.
+     * @param valueFactory the factory to create the replayed values with.
+     */
+    CommandLog( int memoryLimit, ValueFactory valueFactory )
+    {
+        this.memoryLimit = memoryLimit;
+        this.valueFactory = valueFactory;
+        resetBuffer();
+    }
+
+    private void resetBuffer()
+    {
+        buffer = new ByteArrayOutputStream( Math.min( memoryLimit, 8192 ) );
+        out = new DataOutputStream( buffer );
+    }
+
+    void add( CommandType type, Resource subject, URI predicate,
+        Value object, Resource... contexts )
+    {
+        try
+        {
+            out.writeByte( type.ordinal() );
+            ValueEncoding.writeValue( out, subject );
+            ValueEncoding.writeValue( out, predicate );
+            ValueEncoding.writeValue( out, object );
+            ValueEncoding.writeVarInt( out, contexts.length );
+            for ( Resource context : contexts )
+            {
+                ValueEncoding.writeValue( out, context );
+            }
+            size++;
+            if ( spillFile == null && buffer.size() > memoryLimit )
+            {
+                spill();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't write to the command log", e );
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        // Deleted by clear(), not on exit, since deleteOnExit() keeps
+        // every file name in memory until the JVM exits
+        spillFile = File.createTempFile( "neo4j-sail-commands", ".log" );
+        DataOutputStream fileOut = new DataOutputStream(
+            new BufferedOutputStream( new FileOutputStream( spillFile ) ) );
+        buffer.writeTo( fileOut );
+        buffer = null;
+        out = fileOut;
+    }
+
+    /**
+     * @return the number of operations in the log.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return whether or not the log has been moved to a temporary file.
+     */
+    boolean isSpilled()
+    {
+        return spillFile != null;
+    }
+
+    /**
+     * Passes the operations of the log to {@code handler}, in the order they
+     * were added. Operations added by the handler aren't replayed.
+     * @param handler the handler to replay the operations to.
+     */
+    void replay( CommandHandler handler )
+    {
+        int count = size;
+        DataInputStream in = null;
+        try
+        {
+            InputStream source;
+            if ( spillFile != null )
+            {
+                out.flush();
+                source = new BufferedInputStream(
+                    new FileInputStream( spillFile ) );
+            }
+            else
+            {
+                source = new ByteArrayInputStream( buffer.toByteArray() );
+            }
+            in = new DataInputStream( source );
+            CommandType[] types = CommandType.values();
+            for ( int i = 0; i < count; i++ )
+            {
+                CommandType type = types[ in.readByte() ];
+                Resource subject = ( Resource ) ValueEncoding.readValue( in,
+                    valueFactory );
+                URI predicate = ( URI ) ValueEncoding.readValue( in,
+                    valueFactory );
+                Value object = ValueEncoding.readValue( in, valueFactory );
+                Resource[] contexts =
+                    new Resource[ ValueEncoding.readVarInt( in ) ];
+                for ( int c = 0; c < contexts.length; c++ )
+                {
+                    contexts[ c ] = ( Resource ) ValueEncoding.readValue( in,
+                        valueFactory );
+                }
+                handler.handle( type, subject, predicate, object, contexts );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't read the command log", e );
+        }
+        finally
+        {
+            if ( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException e )
+                {
+                    // Only read from, nothing is lost
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the operations from the log, and the temporary file if the
+     * log was moved to one.
+     */
+    void clear()
+    {
+        if ( spillFile != null )
+        {
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                // The file is deleted anyway
+            }
+            spillFile.delete();
+            spillFile = null;
+            resetBuffer();
+        }
+        else if ( size > 0 )
+        {
+            buffer.reset();
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,686 @@
+package org.neo4j.rdf.sail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.GraphDatabaseUtil;
+
+/**
+ * The contexts of the store and the number of statements in each one of
+ * them, persisted as count nodes connected to a sub reference node. The
+ * number of statements per predicate and per class, see
+ * {@link StatementStatistics}, are persisted the same way, so that the
+ * statistics used to optimize queries are available right after a restart.
+ *
+ * The counts are changed by {@link #apply(StatementStatistics)}, in the
+ * transaction which made the changes, right before it's committed. To keep
+ * committing transactions from queuing on the same nodes, each count is
+ * split into {@link #SHARD_COUNT} shards: a transaction adds its changes to
+ * the count nodes of one shard, and the count is the sum of all of them.
+ * The number of statements in the store, and in the null context, are kept
+ * the same way on one node per shard, on top of the base counts written to
+ * the sub reference node by {@link #rebuild(StatementStatistics)}. A shard
+ * of a count may well be negative.
+ *
+ * The committed counts are also kept in memory, in the
+ * {@link StatementStatistics} given to the constructor, so that lookups
+ * never touch the store. That's the statistics of the sail, so the counts
+ * used to answer {@code size()} and to optimize queries are one and the
+ * same.
+ *
+ * An existing store is indexed with a full scan the first time the index is
+ * used, see {@link #isBuilt()} and {@link #rebuild(StatementStatistics)}.
+ * That includes stores indexed before the predicate and class counts were
+ * kept.
+ */
+class ContextIndex
+{
+    static final int SHARD_COUNT = 8;
+
+    private static final String KEY_URI = "uri";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_SHARD = "shard";
+    private static final String KEY_LOCK = "lock";
+    private static final String KEY_NULL_CONTEXT_COUNT = "null_context_count";
+    private static final String KEY_STATEMENT_COUNT = "statement_count";
+    private static final String KEY_BUILT = "built";
+    private static final String KEY_STATISTICS_BUILT = "statistics_built";
+
+    private static enum ContextRelTypes implements RelationshipType
+    {
+        REF_TO_CONTEXTS,
+        CONTEXT,
+        PREDICATE,
+        CLASS,
+        SHARD
+    }
+
+    /**
+     * The kinds of counts which are persisted as one node per uri.
+     */
+    private static enum Kind
+    {
+        CONTEXT( ContextRelTypes.CONTEXT )
+        {
+            @Override
+            long getCount( StatementStatistics counts, String uri )
+            {
+                return counts.getContextCount( uri );
+            }
+
+            @Override
+            Map<String, Long> getCounts( StatementStatistics counts )
+            {
+                return counts.getContextCounts();
+            }
+
+            @Override
+            void addCount( StatementStatistics counts, String uri, long delta )
+            {
+                counts.addContextCount( uri, delta );
+            }
+        },
+        PREDICATE( ContextRelTypes.PREDICATE )
+        {
+            @Override
+            long getCount( StatementStatistics counts, String uri )
+            {
+                return counts.getPredicateCount( uri );
+            }
+
+            @Override
+            Map<String, Long> getCounts( StatementStatistics counts )
+            {
+                return counts.getPredicateCounts();
+            }
+
+            @Override
+            void addCount( StatementStatistics counts, String uri, long delta )
+            {
+                counts.addPredicateCount( uri, delta );
+            }
+        },
+        CLASS( ContextRelTypes.CLASS )
+        {
+            @Override
+            long getCount( StatementStatistics counts, String uri )
+            {
+                return counts.getClassInstanceCount( uri );
+            }
+
+            @Override
+            Map<String, Long> getCounts( StatementStatistics counts )
+            {
+                return counts.getClassCounts();
+            }
+
+            @Override
+            void addCount( StatementStatistics counts, String uri, long delta )
+            {
+                counts.addClassInstanceCount( uri, delta );
+            }
+        };
+
+        private final RelationshipType type;
+
+        private Kind( RelationshipType type )
+        {
+            this.type = type;
+        }
+
+        abstract long getCount( StatementStatistics counts, String uri );
+
+        abstract Map<String, Long> getCounts( StatementStatistics counts );
+
+        abstract void addCount( StatementStatistics counts, String uri,
+            long delta );
+    }
+
+    private final GraphDatabaseService graphDb;
+    // the committed counts
+    private final StatementStatistics counts;
+    // the ids of the count nodes, by shard and uri, see key()
+    private final Map<Kind, ConcurrentMap<String, Long>> nodeIds =
+        new EnumMap<Kind, ConcurrentMap<String, Long>>( Kind.class );
+    // the ids of the nodes with the statement and null context counts
+    private final long[] shardIds = new long[ SHARD_COUNT ];
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private volatile boolean loaded;
+    private volatile boolean built;
+    private long rootId;
+    // The number of commits in progress, i.e. which may have committed
+    // changes which aren't in the counts yet, and the number of commits
+    // which have finished
+    private final AtomicInteger activeCommits = new AtomicInteger();
+    private final AtomicLong commitVersion = new AtomicLong();
+
+    ContextIndex( GraphDatabaseService graphDb )
+    {
+        this( graphDb, new StatementStatistics() );
+    }
+
+    /**
+     * @param counts where the committed counts are kept in memory, it's
+     * cleared and filled with the persisted counts when the index is loaded.
+     */
+    ContextIndex( GraphDatabaseService graphDb, StatementStatistics counts )
+    {
+        this.graphDb = graphDb;
+        this.counts = counts;
+        for ( Kind kind : Kind.values() )
+        {
+            nodeIds.put( kind, new ConcurrentHashMap<String, Long>() );
+        }
+    }
+
+    /**
+     * Loads the index from the store, unless it's already loaded.
+     */
+    void load()
+    {
+        if ( loaded )
+        {
+            return;
+        }
+        synchronized ( this )
+        {
+            if ( loaded )
+            {
+                return;
+            }
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                Node root = new GraphDatabaseUtil( graphDb )
+                    .getOrCreateSubReferenceNode( ContextRelTypes.REF_TO_CONTEXTS );
+                rootId = root.getId();
+                built = root.hasProperty( KEY_BUILT ) &&
+                    root.hasProperty( KEY_STATISTICS_BUILT ) &&
+                    root.hasProperty( KEY_STATEMENT_COUNT );
+                counts.clear();
+                counts.addStatementCount( ( Long ) root.getProperty(
+                    KEY_STATEMENT_COUNT, 0L ) );
+                counts.addContextCount( null, ( Long ) root.getProperty(
+                    KEY_NULL_CONTEXT_COUNT, 0L ) );
+                loadShards( root );
+                for ( Kind kind : Kind.values() )
+                {
+                    loadNodes( root, kind );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            loaded = true;
+        }
+    }
+
+    private void loadShards( Node root )
+    {
+        Arrays.fill( shardIds, -1 );
+        for ( Relationship rel : root.getRelationships( ContextRelTypes.SHARD,
+            Direction.OUTGOING ) )
+        {
+            Node node = rel.getEndNode();
+            shardIds[ ( Integer ) node.getProperty( KEY_SHARD ) ] =
+                node.getId();
+            counts.addStatementCount( ( Long ) node.getProperty(
+                KEY_STATEMENT_COUNT ) );
+            counts.addContextCount( null, ( Long ) node.getProperty(
+                KEY_NULL_CONTEXT_COUNT ) );
+        }
+        // Created up front, so that committing transactions never have to
+        // lock the sub reference node
+        for ( int shard = 0; shard < SHARD_COUNT; shard++ )
+        {
+            if ( shardIds[ shard ] == -1 )
+            {
+                Node node = graphDb.createNode();
+                node.setProperty( KEY_SHARD, shard );
+                node.setProperty( KEY_STATEMENT_COUNT, 0L );
+                node.setProperty( KEY_NULL_CONTEXT_COUNT, 0L );
+                root.createRelationshipTo( node, ContextRelTypes.SHARD );
+                shardIds[ shard ] = node.getId();
+            }
+        }
+    }
+
+    private void loadNodes( Node root, Kind kind )
+    {
+        for ( Relationship rel : root.getRelationships( kind.type,
+            Direction.OUTGOING ) )
+        {
+            Node node = rel.getEndNode();
+            String uri = ( String ) node.getProperty( KEY_URI );
+            // Count nodes written before the counts were sharded are shard 0
+            int shard = ( Integer ) node.getProperty( KEY_SHARD, 0 );
+            nodeIds.get( kind ).put( key( shard, uri ), node.getId() );
+            kind.addCount( counts, uri, ( Long ) node.getProperty( KEY_COUNT ) );
+        }
+    }
+
+    private static String key( int shard, String uri )
+    {
+        return shard + " " + uri;
+    }
+
+    /**
+     * @return {@code false} if the index has never been built, i.e. if
+     * it doesn't reflect the statements which were in the store before it
+     * was created.
+     */
+    boolean isBuilt()
+    {
+        load();
+        return built;
+    }
+
+    /**
+     * Replaces the contents of the index with {@code newCounts}, in a
+     * transaction of its own. Nothing else may write to the store meanwhile.
+     * @param newCounts the statement counts of the whole store.
+     */
+    synchronized void rebuild( StatementStatistics newCounts )
+    {
+        load();
+        commitStarted();
+        try
+        {
+            replace( newCounts );
+        }
+        finally
+        {
+            commitFinished();
+        }
+    }
+
+    private void replace( StatementStatistics newCounts )
+    {
+        Map<Kind, Map<String, Long>> newNodeIds =
+            new EnumMap<Kind, Map<String, Long>>( Kind.class );
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Node root = graphDb.getNodeById( rootId );
+            for ( Relationship rel : root.getRelationships(
+                Direction.OUTGOING ) )
+            {
+                if ( rel.isType( ContextRelTypes.CONTEXT ) ||
+                    rel.isType( ContextRelTypes.PREDICATE ) ||
+                    rel.isType( ContextRelTypes.CLASS ) )
+                {
+                    Node node = rel.getEndNode();
+                    rel.delete();
+                    node.delete();
+                }
+            }
+            for ( long shardId : shardIds )
+            {
+                Node node = graphDb.getNodeById( shardId );
+                node.setProperty( KEY_STATEMENT_COUNT, 0L );
+                node.setProperty( KEY_NULL_CONTEXT_COUNT, 0L );
+            }
+            for ( Kind kind : Kind.values() )
+            {
+                Map<String, Long> ids = new HashMap<String, Long>();
+                for ( Map.Entry<String, Long> count :
+                    kind.getCounts( newCounts ).entrySet() )
+                {
+                    if ( count.getValue() > 0 )
+                    {
+                        ids.put( key( 0, count.getKey() ), createNode( root,
+                            kind, 0, count.getKey(), count.getValue() ) );
+                    }
+                }
+                newNodeIds.put( kind, ids );
+            }
+            root.setProperty( KEY_NULL_CONTEXT_COUNT,
+                newCounts.getContextCount( null ) );
+            root.setProperty( KEY_STATEMENT_COUNT,
+                newCounts.getStatementCount() );
+            root.setProperty( KEY_BUILT, true );
+            root.setProperty( KEY_STATISTICS_BUILT, true );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        for ( Kind kind : Kind.values() )
+        {
+            nodeIds.get( kind ).clear();
+            nodeIds.get( kind ).putAll( newNodeIds.get( kind ) );
+        }
+        counts.clear();
+        counts.add( newCounts );
+        built = true;
+    }
+
+    /**
+     * Adds the statement counts of {@code changes} to the store, in the
+     * current transaction. Must be followed by a call to
+     * {@link #transactionFinished(Commit, boolean)} when that transaction
+     * has been committed or rolled back. Concurrent transactions may apply
+     * their changes at the same time, each one locks the count nodes it
+     * changes until it has finished.
+     *
+     * @param changes the changes made in the current transaction.
+     * @return the changes to publish when the transaction has finished.
+     */
+    Commit apply( StatementStatistics changes )
+    {
+        load();
+        commitStarted();
+        try
+        {
+            Commit commit = new Commit( changes );
+            int shard = ( nextShard.getAndIncrement() & Integer.MAX_VALUE ) %
+                SHARD_COUNT;
+            long countDelta = changes.getStatementCount();
+            long nullDelta = changes.getContextCount( null );
+            if ( countDelta != 0 || nullDelta != 0 )
+            {
+                Node node = lock( shardIds[ shard ] );
+                addToProperty( node, KEY_STATEMENT_COUNT, countDelta );
+                addToProperty( node, KEY_NULL_CONTEXT_COUNT, nullDelta );
+            }
+            // Sorted by uri, so the locks are taken in the same order every time
+            for ( Kind kind : Kind.values() )
+            {
+                applyCounts( kind, shard, kind.getCounts( changes ), commit );
+            }
+            return commit;
+        }
+        catch ( RuntimeException e )
+        {
+            commitFinished();
+            throw e;
+        }
+    }
+
+    private void applyCounts( Kind kind, int shard, Map<String, Long> deltas,
+        Commit commit )
+    {
+        Map<String, Long> ids = nodeIds.get( kind );
+        Node root = null;
+        for ( Map.Entry<String, Long> delta : deltas.entrySet() )
+        {
+            String uri = delta.getKey();
+            Long nodeId = ids.get( key( shard, uri ) );
+            if ( nodeId == null )
+            {
+                // Another transaction may create the same node meanwhile,
+                // loadNodes() adds both of them up so that does no harm
+                if ( root == null )
+                {
+                    root = graphDb.getNodeById( rootId );
+                }
+                commit.nodes.add( new NodeChange( kind, key( shard, uri ),
+                    createNode( root, kind, shard, uri, delta.getValue() ) ) );
+            }
+            else
+            {
+                addToProperty( lock( nodeId ), KEY_COUNT, delta.getValue() );
+            }
+        }
+    }
+
+    /**
+     * Takes the write lock of a count node, which is held until the current
+     * transaction has finished. Reading a count only after that makes sure
+     * that it's the latest committed one, so that adding to it never loses
+     * the change of a concurrent transaction.
+     */
+    private Node lock( long nodeId )
+    {
+        Node node = graphDb.getNodeById( nodeId );
+        node.removeProperty( KEY_LOCK );
+        return node;
+    }
+
+    private static void addToProperty( Node node, String key, long delta )
+    {
+        if ( delta != 0 )
+        {
+            node.setProperty( key, ( Long ) node.getProperty( key ) + delta );
+        }
+    }
+
+    /**
+     * Publishes the changes of {@code commit} if the transaction committed,
+     * or else forgets about them.
+     * @param commit what {@link #apply(StatementStatistics)} returned.
+     * @param committed whether or not the transaction was committed.
+     */
+    void transactionFinished( Commit commit, boolean committed )
+    {
+        try
+        {
+            if ( committed )
+            {
+                counts.add( commit.changes );
+                for ( NodeChange change : commit.nodes )
+                {
+                    nodeIds.get( change.kind ).putIfAbsent( change.key,
+                        change.nodeId );
+                }
+            }
+        }
+        finally
+        {
+            commitFinished();
+        }
+    }
+
+    private void commitStarted()
+    {
+        activeCommits.incrementAndGet();
+    }
+
+    private void commitFinished()
+    {
+        commitVersion.incrementAndGet();
+        activeCommits.decrementAndGet();
+    }
+
+    /**
+     * Tells from the counts whether or not there may be statements with a
+     * predicate in a context, so that looking for them in the store can be
+     * skipped when there can't be any. Errs on the side of {@code true}
+     * while a commit is in progress.
+     *
+     * @param predicateUri the predicate, or {@code null} for any predicate.
+     * @param anyContext whether or not to look in all contexts, instead of
+     * only {@code contextUri}.
+     * @param contextUri the context, or {@code null} for the null context.
+     * @param uncommitted the changes made in the transaction which asks.
+     * @return {@code false} if there are no such statements.
+     */
+    boolean mayHaveStatements( String predicateUri, boolean anyContext,
+        String contextUri, StatementStatistics uncommitted )
+    {
+        load();
+        long version = commitVersion.get();
+        if ( activeCommits.get() > 0 )
+        {
+            return true;
+        }
+        boolean mayHave;
+        if ( predicateUri == null && anyContext )
+        {
+            mayHave = counts.getStatementCount() +
+                uncommitted.getStatementCount() > 0;
+        }
+        else
+        {
+            mayHave = ( predicateUri == null ||
+                getPredicateCount( predicateUri ) +
+                uncommitted.getPredicateCount( predicateUri ) > 0 ) &&
+                ( anyContext || getCount( contextUri ) +
+                uncommitted.getContextCount( contextUri ) > 0 );
+        }
+        // A commit which started meanwhile may have been missed
+        return mayHave || activeCommits.get() > 0 ||
+            version != commitVersion.get();
+    }
+
+    private long createNode( Node root, Kind kind, int shard, String uri,
+        long count )
+    {
+        Node node = graphDb.createNode();
+        node.setProperty( KEY_URI, uri );
+        node.setProperty( KEY_SHARD, shard );
+        node.setProperty( KEY_COUNT, count );
+        root.createRelationshipTo( node, kind.type );
+        return node.getId();
+    }
+
+    /**
+     * @param contextUri the context, or {@code null} for the null context.
+     * @return the number of statements in the context, as of the last commit.
+     */
+    long getCount( String contextUri )
+    {
+        load();
+        return counts.getContextCount( contextUri );
+    }
+
+    /**
+     * @return the number of statements with the predicate, as of the last
+     * commit.
+     */
+    long getPredicateCount( String predicateUri )
+    {
+        load();
+        return counts.getPredicateCount( predicateUri );
+    }
+
+    /**
+     * @return the number of statements in the store, as of the last commit.
+     */
+    long getStatementCount()
+    {
+        load();
+        return counts.getStatementCount();
+    }
+
+    /**
+     * Compares the counts of the index with counts made from the statements
+     * in the store.
+     * @param actual the counts of all the statements in the store.
+     * @return a description of each count which differs, empty if
+     * the index is correct.
+     */
+    List<String> verify( StatementStatistics actual )
+    {
+        load();
+        List<String> errors = new ArrayList<String>();
+        if ( actual.getStatementCount() != counts.getStatementCount() )
+        {
+            errors.add( "statement count is " + counts.getStatementCount() +
+                ", should be " + actual.getStatementCount() );
+        }
+        if ( actual.getContextCount( null ) != counts.getContextCount( null ) )
+        {
+            errors.add( "null context count is " +
+                counts.getContextCount( null ) + ", should be " +
+                actual.getContextCount( null ) );
+        }
+        for ( Kind kind : Kind.values() )
+        {
+            verify( kind, kind.getCounts( actual ), errors );
+        }
+        return errors;
+    }
+
+    private void verify( Kind kind, Map<String, Long> actualCounts,
+        List<String> errors )
+    {
+        String name = kind.name().toLowerCase();
+        Map<String, Long> indexedCounts = kind.getCounts( counts );
+        for ( Map.Entry<String, Long> count : actualCounts.entrySet() )
+        {
+            Long indexed = indexedCounts.get( count.getKey() );
+            if ( !count.getValue().equals( indexed ) )
+            {
+                errors.add( name + " " + count.getKey() + " count is " +
+                    ( indexed != null ? indexed : 0 ) + ", should be " +
+                    count.getValue() );
+            }
+        }
+        for ( Map.Entry<String, Long> count : indexedCounts.entrySet() )
+        {
+            if ( !actualCounts.containsKey( count.getKey() ) )
+            {
+                errors.add( name + " " + count.getKey() + " count is " +
+                    count.getValue() + ", should be 0" );
+            }
+        }
+    }
+
+    /**
+     * @return the uris of the (non-empty) contexts, as of the last commit.
+     */
+    List<String> getContexts()
+    {
+        load();
+        List<String> contexts = new ArrayList<String>();
+        for ( Map.Entry<String, Long> count :
+            counts.getContextCounts().entrySet() )
+        {
+            if ( count.getValue() > 0 )
+            {
+                contexts.add( count.getKey() );
+            }
+        }
+        return contexts;
+    }
+
+    /**
+     * The changes of one committing transaction, see
+     * {@link ContextIndex#apply(StatementStatistics)}.
+     */
+    static class Commit
+    {
+        private final StatementStatistics changes = new StatementStatistics();
+        private final List<NodeChange> nodes = new ArrayList<NodeChange>();
+
+        private Commit( StatementStatistics changes )
+        {
+            this.changes.add( changes );
+        }
+    }
+
+    /**
+     * A count node created by {@link ContextIndex#apply(StatementStatistics)}.
+     */
+    private static class NodeChange
+    {
+        private final Kind kind;
+        private final String key;
+        private final long nodeId;
+
+        NodeChange( Kind kind, String key, long nodeId )
+        {
+            this.kind = kind;
+            this.key = key;
+            this.nodeId = nodeId;
+        }
+    }
+}
@@ -13,10 +13,17 @@ public class FulltextQueryResult implements Serializable
     
     public FulltextQueryResult( QueryResult wrappedResult )
     {
-        this.statement = GraphDatabaseSesameMapper.createStatement(
-            wrappedResult.getStatement(), true );
-        this.score = wrappedResult.getScore();
-        this.snippet = wrappedResult.getSnippet();
+        this( GraphDatabaseSesameMapper.createStatement(
+            wrappedResult.getStatement(), true ), wrappedResult.getScore(),
+            wrappedResult.getSnippet() );
+    }
+    
+    public FulltextQueryResult( Statement statement, double score,
+        String snippet )
+    {
+        this.statement = statement;
+        this.score = score;
+        this.snippet = snippet;
     }
     
     public Statement getStatement()
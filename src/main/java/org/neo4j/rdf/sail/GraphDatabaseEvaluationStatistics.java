@@ -0,0 +1,99 @@
+package org.neo4j.rdf.sail;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+
+/**
+ * {@link EvaluationStatistics} which estimates the cardinality of statement
+ * patterns from the counts kept in {@link StatementStatistics}, so that
+ * the join optimizer evaluates the most selective patterns first.
+ * Falls back to the default estimates of {@link EvaluationStatistics}
+ * until the statistics have been loaded, or counted, for the whole store.
+ */
+class GraphDatabaseEvaluationStatistics extends EvaluationStatistics
+{
+    // There are no per subject/object counts, so the reduction of a bound
+    // subject/object is a guess. A bound subject is assumed to be more
+    // selective than a bound object, just like in the default estimates.
+    private static final double SUBJECT_SELECTIVITY = 0.001;
+    private static final double OBJECT_SELECTIVITY = 0.01;
+
+    private final StatementStatistics statistics;
+    private final boolean built;
+
+    /**
+     * @param built whether or not {@code statistics} reflect the whole
+     * store, rather than only the changes made since it was opened.
+     */
+    GraphDatabaseEvaluationStatistics( StatementStatistics statistics,
+        boolean built )
+    {
+        this.statistics = statistics;
+        this.built = built;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator()
+    {
+        return new GraphDatabaseCardinalityCalculator();
+    }
+
+    protected class GraphDatabaseCardinalityCalculator extends
+        CardinalityCalculator
+    {
+        @Override
+        protected double getCardinality( StatementPattern sp )
+        {
+            if ( !built )
+            {
+                return super.getCardinality( sp );
+            }
+
+            Value subject = getConstantValue( sp.getSubjectVar() );
+            Value predicate = getConstantValue( sp.getPredicateVar() );
+            Value object = getConstantValue( sp.getObjectVar() );
+            Value context = getConstantValue( sp.getContextVar() );
+            double total = statistics.getStatementCount();
+            double cardinality = total;
+            if ( predicate instanceof URI )
+            {
+                if ( predicate.equals( RDF.TYPE ) && object instanceof URI )
+                {
+                    cardinality = statistics.getClassInstanceCount(
+                        object.toString() );
+                    object = null;
+                }
+                else
+                {
+                    cardinality = statistics.getPredicateCount(
+                        predicate.toString() );
+                }
+            }
+            if ( context instanceof URI && total > 0 )
+            {
+                cardinality *= statistics.getContextCount(
+                    context.toString() ) / total;
+            }
+            if ( subject != null )
+            {
+                cardinality *= SUBJECT_SELECTIVITY;
+            }
+            if ( object != null )
+            {
+                cardinality *= OBJECT_SELECTIVITY;
+            }
+            // Never report a pattern as empty, since the statistics
+            // may lag behind other connections' changes
+            return Math.max( cardinality, 1 );
+        }
+
+        private Value getConstantValue( Var var )
+        {
+            return var != null ? var.getValue() : null;
+        }
+    }
+}
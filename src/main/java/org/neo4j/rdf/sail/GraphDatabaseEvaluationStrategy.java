@@ -0,0 +1,173 @@
+package org.neo4j.rdf.sail;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.StatementPattern.Scope;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+
+/**
+ * An {@link EvaluationStrategyImpl} which evaluates joins of statement
+ * patterns sharing variables (a basic graph pattern, f.ex. a star or a
+ * chain) directly against the {@link org.neo4j.rdf.store.RdfStore} of
+ * the connection, see {@link BasicGraphPatternIteration}. Filters which the
+ * query optimizer has moved inside such a join are evaluated as part of it.
+ * Everything else, including patterns restricted to contexts or evaluated
+ * against a {@link Dataset}, is evaluated by {@link EvaluationStrategyImpl}.
+ */
+class GraphDatabaseEvaluationStrategy extends EvaluationStrategyImpl
+{
+    private final GraphDatabaseSailConnectionImpl connection;
+    private final Dataset queryDataset;
+
+    GraphDatabaseEvaluationStrategy( TripleSource tripleSource,
+        Dataset dataset, GraphDatabaseSailConnectionImpl connection )
+    {
+        super( tripleSource, dataset );
+        this.connection = connection;
+        this.queryDataset = dataset;
+    }
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
+        Join join, BindingSet bindings ) throws QueryEvaluationException
+    {
+        List<StatementPattern> patterns = new ArrayList<StatementPattern>();
+        List<ValueExpr> filters = new ArrayList<ValueExpr>();
+        if ( queryDataset == null && collectPatterns( join, patterns, filters ) )
+        {
+            List<StatementPattern> ordered = orderConnected( patterns,
+                bindings );
+            if ( ordered != null )
+            {
+                return new BasicGraphPatternIteration( this, connection,
+                    ordered, filters, bindings );
+            }
+        }
+        return super.evaluate( join, bindings );
+    }
+
+    /**
+     * Collects the statement patterns, and the filter conditions, of a tree
+     * of joins.
+     * @return {@code false} if the tree contains anything else than joins,
+     * filters and statement patterns over all contexts.
+     */
+    private boolean collectPatterns( TupleExpr expr,
+        List<StatementPattern> patterns, List<ValueExpr> filters )
+    {
+        if ( expr instanceof Join )
+        {
+            Join join = ( Join ) expr;
+            return collectPatterns( join.getLeftArg(), patterns, filters ) &&
+                collectPatterns( join.getRightArg(), patterns, filters );
+        }
+        else if ( expr instanceof Filter )
+        {
+            // Within an inner join a filter may as well be applied to the
+            // whole join, as soon as its variables are bound
+            Filter filter = ( Filter ) expr;
+            filters.add( filter.getCondition() );
+            return collectPatterns( filter.getArg(), patterns, filters );
+        }
+        else if ( expr instanceof StatementPattern )
+        {
+            StatementPattern pattern = ( StatementPattern ) expr;
+            if ( pattern.getScope() != Scope.DEFAULT_CONTEXTS ||
+                pattern.getContextVar() != null )
+            {
+                return false;
+            }
+            patterns.add( pattern );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Orders the patterns so that each one shares a variable with the ones
+     * before it, or has no unbound variables at all, so that they can be
+     * evaluated one after the other without a cartesian product. The order
+     * of the query optimizer is kept where that's possible.
+     * @return the ordered patterns, or {@code null} if the patterns,
+     * connected by their shared variables, don't form one single graph.
+     */
+    private List<StatementPattern> orderConnected(
+        List<StatementPattern> patterns, BindingSet bindings )
+    {
+        List<StatementPattern> remaining =
+            new ArrayList<StatementPattern>( patterns );
+        List<StatementPattern> ordered =
+            new ArrayList<StatementPattern>( patterns.size() );
+        Set<String> reached = new HashSet<String>();
+        while ( !remaining.isEmpty() )
+        {
+            int next = -1;
+            for ( int i = 0; i < remaining.size() && next == -1; i++ )
+            {
+                if ( ordered.isEmpty() ||
+                    isJoinable( remaining.get( i ), reached, bindings ) )
+                {
+                    next = i;
+                }
+            }
+            if ( next == -1 )
+            {
+                return null;
+            }
+            StatementPattern pattern = remaining.remove( next );
+            addVariables( pattern, reached, bindings );
+            ordered.add( pattern );
+        }
+        return ordered;
+    }
+
+    private boolean isJoinable( StatementPattern pattern, Set<String> reached,
+        BindingSet bindings )
+    {
+        boolean unbound = false;
+        for ( Var var : pattern.getVarList() )
+        {
+            if ( isUnbound( var, bindings ) )
+            {
+                if ( reached.contains( var.getName() ) )
+                {
+                    return true;
+                }
+                unbound = true;
+            }
+        }
+        return !unbound;
+    }
+
+    private void addVariables( StatementPattern pattern, Set<String> names,
+        BindingSet bindings )
+    {
+        for ( Var var : pattern.getVarList() )
+        {
+            if ( isUnbound( var, bindings ) )
+            {
+                names.add( var.getName() );
+            }
+        }
+    }
+
+    private static boolean isUnbound( Var var, BindingSet bindings )
+    {
+        return !var.hasValue() && !bindings.hasBinding( var.getName() );
+    }
+}
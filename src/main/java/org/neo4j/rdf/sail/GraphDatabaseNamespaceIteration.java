@@ -11,6 +11,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import java.util.Iterator;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Author: josh
@@ -37,6 +38,17 @@ public class GraphDatabaseNamespaceIteration implements CloseableIteration<Names
         }
     }
 
+    /**
+     * @param namespaces prefix -> namespace.
+     */
+    public GraphDatabaseNamespaceIteration(final Map<String, String> namespaces) {
+        Collection<Namespace> result = new LinkedList<Namespace>();
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            result.add(new NamespaceImpl(namespace.getKey(), namespace.getValue()));
+        }
+        this.iterator = result.iterator();
+    }
+
     public void close() throws SailException {
         // Not needed
     }
@@ -1,21 +1,40 @@
 package org.neo4j.rdf.sail;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.rdf.model.CompleteStatement;
+import org.neo4j.rdf.sail.changelog.ChangeLogWriter;
 import org.neo4j.rdf.sail.utils.MutatingLogger;
 import org.neo4j.rdf.store.RdfStore;
 import org.neo4j.rdf.store.RdfStoreImpl;
+import org.neo4j.util.GraphDatabaseUtil;
+import org.openrdf.model.Resource;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.UnsupportedRDFormatException;
 import org.openrdf.sail.NotifyingSail;
 import org.openrdf.sail.NotifyingSailConnection;
+import org.openrdf.sail.SailChangedEvent;
 import org.openrdf.sail.SailChangedListener;
 import org.openrdf.sail.SailException;
 
@@ -23,16 +42,53 @@ import org.openrdf.sail.SailException;
  * Author: josh
  * Date: Apr 25, 2008
  * Time: 5:32:22 PM
+ *
+ * The number of statements, per context, predicate and class, are
+ * maintained by the sail as its connections commit, and {@code size()},
+ * {@code getContextIDs()} and the query statistics are answered from those
+ * counts. Only writes made through this sail instance are counted: writes
+ * made directly through the {@link RdfStore}, or through another sail on
+ * the same graph database, aren't noticed and leave the counts wrong until
+ * they are recounted with {@link #verifyCounts(boolean)} (or
+ * {@link StatementCountVerifier}) or {@link #rebuildStatistics()}.
  */
 public class GraphDatabaseSail implements NotifyingSail {
     // TODO: is there such thing as a read-only Sail?
     private static final boolean IS_WRITABLE = true;
+    private static final int DEFAULT_STATEMENT_PREFETCH_SIZE = 1;
+    private static final int DEFAULT_COMMAND_LOG_MEMORY_LIMIT = 1024 * 1024;
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final int DEFAULT_BULK_LOAD_BATCH_SIZE = 50000;
+    // chunks of parsed statements per parser thread
+    private static final int BULK_LOAD_QUEUE_SIZE = 4;
+    // the sequence number of the last transaction written to the change log
+    private static final String KEY_CHANGE_LOG_SEQUENCE = "sequence";
 
     private final GraphDatabaseService graphDb;
     private final RdfStore store;
     private final ValueFactory valueFactory = new ValueFactoryImpl();
     private final Set<SailChangedListener> listeners = new HashSet<SailChangedListener>();
     private final AtomicInteger connectionCounter = new AtomicInteger();
+    private volatile int statementPrefetchSize = DEFAULT_STATEMENT_PREFETCH_SIZE;
+    private final StatementStatistics statistics = new StatementStatistics();
+    private final QueryOptimizerPipeline queryOptimizer = new QueryOptimizerPipeline();
+    private volatile boolean nativeJoinEvaluation = true;
+    private final ContextIndex contextIndex;
+    private volatile boolean contextIndexBuilt;
+    private volatile ListenerDispatcher listenerDispatcher;
+    private volatile int commandLogMemoryLimit = DEFAULT_COMMAND_LOG_MEMORY_LIMIT;
+    private volatile BatchSizeController batchSizeController =
+        new BatchSizeController( DEFAULT_BATCH_SIZE, DEFAULT_BATCH_SIZE,
+            DEFAULT_BATCH_SIZE );
+    private volatile int bulkLoadBatchSize = DEFAULT_BULK_LOAD_BATCH_SIZE;
+    private volatile ChangeLogWriter changeLog;
+    // prefix -> namespace of the committed namespaces, replaced as a whole
+    // when they change so that lookups don't lock, null until loaded
+    private volatile Map<String, String> namespaces;
+    private final Object namespaceLock = new Object();
+    private final AtomicLong deadlockCount = new AtomicLong();
+    private final AtomicLong deadlockRetryCount = new AtomicLong();
+    private final AtomicLong deadlockFailureCount = new AtomicLong();
     
     private final Map<Integer, GraphDatabaseSailConnectionImpl> activeConnections =
         Collections.synchronizedMap(
@@ -42,6 +98,7 @@ public class GraphDatabaseSail implements NotifyingSail {
             boolean shutdownNeo4jInstancesUponShutdown ) {
         this.graphDb = graphDb;
         this.store = store;
+        this.contextIndex = new ContextIndex( graphDb, statistics );
         ((RdfStoreImpl)this.store).setShutdownNeo4jInstancesUponShutdown( 
                 shutdownNeo4jInstancesUponShutdown );
     }
@@ -59,12 +116,637 @@ public class GraphDatabaseSail implements NotifyingSail {
         return null;
     }
     
+    /**
+     * Sets the number of statements which iterations returned from
+     * {@code getStatements} fetches each time they switch to the transaction
+     * of their connection. The default is 1, i.e. one transaction switch per
+     * statement. Larger values need fewer transaction switches per scan, at
+     * the cost of buffering that many statements per open iteration, see
+     * StatementScanBenchmark in the test sources for measuring the effect on
+     * a given store. Only affects connections created after this call.
+     * 
+     * @param size the number of statements to prefetch, must be at least 1.
+     */
+    public void setStatementPrefetchSize( int size ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "Invalid prefetch size " + size );
+        }
+        this.statementPrefetchSize = size;
+    }
+    
+    public int getStatementPrefetchSize() {
+        return statementPrefetchSize;
+    }
+    
+    /**
+     * @return the statement counts used to optimize queries, which are
+     * also the counts {@code size()} and {@code getContextIDs()} are
+     * answered from. They are loaded from the store when the sail is
+     * initialized, counted with a full scan the first time the sail is used
+     * with an existing store, and kept up to date by committed changes made
+     * through this sail.
+     */
+    public StatementStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Recounts the statistics returned by {@link #getStatistics()}, and the
+     * persisted per context counts, from all the statements in the store.
+     * This is a full scan of the store and should be done while nothing is
+     * written to it.
+     */
+    public void rebuildStatistics() {
+        contextIndex.rebuild( countStatements() );
+        contextIndexBuilt = true;
+    }
+    
+    /**
+     * Recounts the statements in the store, with a full scan, and compares
+     * the result with the maintained counts which {@code size()} and
+     * {@code getContextIDs()} are answered from. This should be done while
+     * nothing is written to the store.
+     * 
+     * @param repair whether or not the maintained counts (and the statistics
+     * returned by {@link #getStatistics()}) should be replaced by the
+     * recounted ones if they differ.
+     * @return a description of each maintained count which differed, empty
+     * if all counts were correct.
+     */
+    public List<String> verifyCounts( boolean repair ) {
+        StatementStatistics counts = countStatements();
+        List<String> errors = getContextIndex().verify( counts );
+        if ( repair && !errors.isEmpty() ) {
+            contextIndex.rebuild( counts );
+        }
+        return errors;
+    }
+    
+    private StatementStatistics countStatements() {
+        StatementStatistics counts = new StatementStatistics();
+        Transaction tx = graphDb.beginTx();
+        try {
+            for ( CompleteStatement statement : store.getStatements(
+                SesameGraphDatabaseMapper.createWildcardStatement( null, null, null ),
+                false ) ) {
+                counts.statementAdded( statement );
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        return counts;
+    }
+    
+    /**
+     * @return the index of contexts and their statement counts. If it's the
+     * first time the index is used with this store it's built from a full
+     * scan of the store.
+     */
+    ContextIndex getContextIndex() {
+        if ( !contextIndexBuilt ) {
+            synchronized ( contextIndex ) {
+                if ( !contextIndexBuilt ) {
+                    // Loading the index also fills in the statistics
+                    if ( !contextIndex.isBuilt() ) {
+                        contextIndex.rebuild( countStatements() );
+                    }
+                    contextIndexBuilt = true;
+                }
+            }
+        }
+        return contextIndex;
+    }
+    
+    /**
+     * @return whether or not the statistics returned by
+     * {@link #getStatistics()} reflect the whole store yet.
+     */
+    boolean isStatisticsBuilt() {
+        return contextIndexBuilt;
+    }
+    
+    /**
+     * @return the optimizers run on queries before they are evaluated,
+     * where stages can be switched on/off and their timings read.
+     */
+    public QueryOptimizerPipeline getQueryOptimizer() {
+        return queryOptimizer;
+    }
+    
+    /**
+     * Sets whether or not joins of statement patterns sharing variables
+     * should be evaluated directly against the store (the default) instead
+     * of as nested loops over Sesame binding sets. Only affects connections
+     * created after this call.
+     * 
+     * @param enabled {@code true} to evaluate such joins natively.
+     */
+    public void setNativeJoinEvaluation( boolean enabled ) {
+        this.nativeJoinEvaluation = enabled;
+    }
+    
+    public boolean isNativeJoinEvaluation() {
+        return nativeJoinEvaluation;
+    }
+    
+    /**
+     * Sets the number of URIs and language tagged literals which are cached
+     * by the conversions between Sesame values and the values of the store,
+     * per value type and direction. The caches are shared by all sails in
+     * the JVM, which is why this and the other value cache methods are
+     * static: the last size set applies to every sail. 0 disables caching.
+     * 
+     * @param size the maximum number of values per cache.
+     */
+    public static void setValueCacheSize( int size ) {
+        InternedValues.setCapacity( size );
+    }
+    
+    public static int getValueCacheSize() {
+        return InternedValues.getCapacity();
+    }
+    
+    /**
+     * @return the number of value conversions which were served by the
+     * value caches, see {@link #setValueCacheSize(int)}, by all sails in
+     * the JVM.
+     */
+    public static long getValueCacheHitCount() {
+        return InternedValues.getHitCount();
+    }
+    
+    /**
+     * @return the number of value conversions which had to create new
+     * values, by all sails in the JVM.
+     */
+    public static long getValueCacheMissCount() {
+        return InternedValues.getMissCount();
+    }
+    
+    /**
+     * Empties the value caches of all sails in the JVM.
+     */
+    public static void clearValueCache() {
+        InternedValues.clear();
+    }
+    
+    /**
+     * Makes connections commit their transaction, and start a new one,
+     * after every {@code size} write operations. The default is a fixed
+     * size of 5000. Only affects connections created after this call.
+     * 
+     * @param size the number of write operations per transaction.
+     */
+    public void setBatchSize( int size ) {
+        batchSizeController = new BatchSizeController( size, size, size );
+    }
+    
+    /**
+     * Makes connections commit their transaction, and start a new one,
+     * after a number of write operations which is adjusted to the commit
+     * throughput of the recent batches and the free heap, f.ex. starting at
+     * 5000 within [1000, 50000]. Each connection adapts its own size, starting
+     * from the size the most recently adapted connection arrived at. Only
+     * affects connections created after this call.
+     * 
+     * @param initialSize the number of write operations per transaction
+     * to start with.
+     * @param minSize the smallest number of write operations per transaction.
+     * @param maxSize the largest number of write operations per transaction.
+     */
+    public void setAdaptiveBatchSize( int initialSize, int minSize,
+        int maxSize ) {
+        batchSizeController = new BatchSizeController( initialSize, minSize,
+            maxSize );
+    }
+    
+    /**
+     * @return the number of write operations after which new connections
+     * commit their transaction, i.e. the size most recently arrived at by a
+     * connection if the size is adaptive.
+     */
+    public int getBatchSize() {
+        return batchSizeController.getBatchSize();
+    }
+    
+    public int getMinBatchSize() {
+        return batchSizeController.getMinSize();
+    }
+    
+    public int getMaxBatchSize() {
+        return batchSizeController.getMaxSize();
+    }
+    
+    /**
+     * @return the number of transactions which connections have committed
+     * because the batch size was reached, since the batch size was set.
+     */
+    public long getBatchCommitCount() {
+        return batchSizeController.getBatchCount();
+    }
+    
+    /**
+     * @return the average time, in milliseconds, of the commits counted by
+     * {@link #getBatchCommitCount()}.
+     */
+    public double getAverageBatchCommitMillis() {
+        return batchSizeController.getAverageCommitMillis();
+    }
+    
+    BatchSizeController getBatchSizeController() {
+        return batchSizeController;
+    }
+    
+    /**
+     * Adds the statements of an RDF document to the store, without going
+     * through a connection. The statements are added in large transactions
+     * of their own, without logging or per statement listener events, which
+     * makes loading large documents several times faster. Listeners get one
+     * event when the load is done. Statements which are already in the
+     * store are skipped.
+     * 
+     * It's meant for loading data while nothing else writes to the store: a
+     * deadlock with another transaction fails the load, and the statements
+     * committed before that stay in the store.
+     * 
+     * @param in the document.
+     * @param baseUri the uri to resolve relative uris of the document with.
+     * @param format the format of the document, a parser for it must be on
+     * the classpath.
+     * @param contexts the contexts to add the statements to, if none are
+     * given the statements are added to the contexts they have in the
+     * document.
+     * @return the number of statements which were added.
+     * @throws IOException if the document couldn't be read.
+     * @throws RDFParseException if the document couldn't be parsed.
+     * @throws SailException if the statements couldn't be added.
+     */
+    public long bulkLoad( InputStream in, String baseUri, RDFFormat format,
+        Resource... contexts ) throws IOException, RDFParseException,
+        SailException {
+        RDFParser parser;
+        try {
+            parser = Rio.createParser( format, valueFactory );
+        } catch ( UnsupportedRDFormatException e ) {
+            throw new SailException( e );
+        }
+        long added = createBulkLoader().load( parser, in, baseUri, contexts );
+        if ( added > 0 ) {
+            sendSailChanged( new GraphDatabaseSailChangedEvent( this, added, 0 ) );
+        }
+        return added;
+    }
+    
+    /**
+     * Same as {@link #bulkLoad(InputStream, String, RDFFormat, Resource...)},
+     * with the format guessed from the file name if it's {@code null}.
+     */
+    public long bulkLoad( File file, String baseUri, RDFFormat format,
+        Resource... contexts ) throws IOException, RDFParseException,
+        SailException {
+        if ( format == null ) {
+            format = RDFFormat.forFileName( file.getName() );
+            if ( format == null ) {
+                throw new SailException( "Unknown RDF format of " + file );
+            }
+        }
+        InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+        try {
+            return bulkLoad( in, baseUri, format, contexts );
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Loads several RDF files at once, in the same way as
+     * {@link #bulkLoad(InputStream, String, RDFFormat, Resource...)}. The
+     * files are parsed by {@code parserThreads} threads at once, while the
+     * calling thread writes the parsed statements to the store. The report
+     * tells the throughput of each stage, it's also logged.
+     * 
+     * @param files the files to load.
+     * @param format the format of the files, or {@code null} to guess the
+     * format of each file from its name.
+     * @param baseUri the uri to resolve relative uris of the files with.
+     * @param parserThreads the number of files to parse at once.
+     * @param contexts the contexts to add the statements to, if none are
+     * given the statements are added to the contexts they have in the files.
+     * @return the statement counts and throughput of the load.
+     * @throws IOException if a file couldn't be read.
+     * @throws RDFParseException if a file couldn't be parsed.
+     * @throws SailException if the statements couldn't be added.
+     */
+    public BulkLoadReport bulkLoad( List<File> files, RDFFormat format,
+        String baseUri, int parserThreads, Resource... contexts )
+        throws IOException, RDFParseException, SailException {
+        BulkLoadReport report = new ParallelBulkLoader( createBulkLoader(),
+            valueFactory, parserThreads, parserThreads * BULK_LOAD_QUEUE_SIZE )
+            .load( files, format, baseUri, contexts );
+        MutatingLogger.getLogger().info( "Bulk load: " + report );
+        if ( report.getAddedCount() > 0 ) {
+            sendSailChanged( new GraphDatabaseSailChangedEvent( this,
+                report.getAddedCount(), 0 ) );
+        }
+        return report;
+    }
+    
+    BulkLoader createBulkLoader() {
+        return new BulkLoader( this, graphDb, store,
+            ( ( EmbeddedGraphDatabase ) graphDb ).getConfig().getTxModule()
+            .getTxManager(), getContextIndex(), bulkLoadBatchSize, changeLog );
+    }
+    
+    /**
+     * Makes the transactions committed through this sail, by connections
+     * and bulk loads, be written to a change log in {@code directory}, in
+     * commit order. The log can be read with a
+     * {@link org.neo4j.rdf.sail.changelog.ChangeLogReader}, f.ex. to replay
+     * the changes in another store. A transaction is written ahead of its
+     * commit, which fails if it can't be written, and followed by whether it
+     * committed. The sequence number of the transaction is stored in the
+     * graph as part of the commit, so that when a crash leaves the last
+     * transaction of the log in doubt, it's resolved here when the log is
+     * opened again. The log contains the added and removed statements and
+     * the namespace changes, but not statement metadata, see
+     * {@link GraphDatabaseSailConnection#setStatementMetadata(
+     * org.openrdf.model.Statement, Map)}.
+     * 
+     * @param directory the directory of the log, or {@code null} to stop
+     * logging.
+     * @throws SailException if the log couldn't be opened.
+     */
+    public void setChangeLog( File directory ) throws SailException {
+        synchronized ( contextIndex ) {
+            try {
+                ChangeLogWriter previous = changeLog;
+                changeLog = null;
+                if ( previous != null ) {
+                    // Commits append to the log while synchronized on it
+                    synchronized ( previous ) {
+                        previous.close();
+                    }
+                }
+                if ( directory != null ) {
+                    ChangeLogWriter writer = new ChangeLogWriter( directory );
+                    long inDoubt = writer.getInDoubtSequence();
+                    // Also creates the node commits store the sequence on
+                    long committed = getChangeLogSequence();
+                    if ( inDoubt != 0 ) {
+                        writer.finished( inDoubt, committed == inDoubt );
+                    }
+                    changeLog = writer;
+                }
+            } catch ( IOException e ) {
+                throw new SailException( e );
+            }
+        }
+    }
+    
+    /**
+     * @return the change log transactions are written to, or {@code null}
+     * if there is none.
+     */
+    public ChangeLogWriter getChangeLog() {
+        return changeLog;
+    }
+    
+    /**
+     * Called by a connection or bulk load when it has written its
+     * transaction to the change log, to store the sequence number in the
+     * same transaction, before it's committed.
+     */
+    void changeLogPrepared( long sequence ) {
+        getChangeLogNode().setProperty( KEY_CHANGE_LOG_SEQUENCE, sequence );
+    }
+    
+    /**
+     * @return the sequence number of the last committed transaction which
+     * was written to the change log, 0 if none.
+     */
+    private long getChangeLogSequence() {
+        Transaction tx = graphDb.beginTx();
+        try {
+            long sequence = ( Long ) getChangeLogNode().getProperty(
+                KEY_CHANGE_LOG_SEQUENCE, 0L );
+            tx.success();
+            return sequence;
+        } finally {
+            tx.finish();
+        }
+    }
+    
+    private Node getChangeLogNode() {
+        return new GraphDatabaseUtil( graphDb ).getOrCreateSubReferenceNode(
+            GraphDatabaseSailConnectionImpl.SailRelTypes.REF_TO_CHANGE_LOG );
+    }
+    
+    /**
+     * Sets the number of statements {@link #bulkLoad(InputStream, String,
+     * RDFFormat, Resource...)} adds in each transaction, default is 50000.
+     * 
+     * @param size the number of statements per transaction.
+     */
+    public void setBulkLoadBatchSize( int size ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "Invalid batch size " + size );
+        }
+        this.bulkLoadBatchSize = size;
+    }
+    
+    public int getBulkLoadBatchSize() {
+        return bulkLoadBatchSize;
+    }
+    
+    private void sendSailChanged( final SailChangedEvent event ) {
+        ListenerDispatcher dispatcher = listenerDispatcher;
+        for ( final SailChangedListener listener : listeners ) {
+            if ( dispatcher == null ) {
+                listener.sailChanged( event );
+            } else {
+                dispatcher.dispatch( listener, new Runnable() {
+                    public void run() {
+                        listener.sailChanged( event );
+                    }
+                } );
+            }
+        }
+    }
+    
+    /**
+     * Sets the number of bytes of uncommitted write operations which each
+     * connection keeps in memory, to be able to replay them if its
+     * transaction deadlocks. Operations beyond that are kept in a temporary
+     * file. Only affects connections created after this call.
+     * 
+     * @param bytes the memory limit per connection, default is 1MB.
+     */
+    public void setCommandLogMemoryLimit( int bytes ) {
+        if ( bytes < 0 ) {
+            throw new IllegalArgumentException( "Invalid memory limit " + bytes );
+        }
+        this.commandLogMemoryLimit = bytes;
+    }
+    
+    public int getCommandLogMemoryLimit() {
+        return commandLogMemoryLimit;
+    }
+    
+    /**
+     * @return the number of transactions which have been rolled back
+     * because of a deadlock.
+     */
+    public long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+    
+    /**
+     * @return the number of times the operations of a deadlocked transaction
+     * have been replayed in a new transaction.
+     */
+    public long getDeadlockRetryCount() {
+        return deadlockRetryCount.get();
+    }
+    
+    /**
+     * @return the number of deadlocked transactions which still deadlocked
+     * after the maximum number of retries, and failed.
+     */
+    public long getDeadlockFailureCount() {
+        return deadlockFailureCount.get();
+    }
+    
+    void deadlockDetected() {
+        deadlockCount.incrementAndGet();
+    }
+    
+    void deadlockRetried() {
+        deadlockRetryCount.incrementAndGet();
+    }
+    
+    void deadlockFailed() {
+        deadlockFailureCount.incrementAndGet();
+    }
+    
+    /**
+     * Makes listener events be delivered asynchronously, so that slow
+     * listeners don't slow down the writers. Each listener gets its own
+     * delivery thread and a queue of at most {@code queueSize} events.
+     * Events may be delivered after the write which caused them has
+     * returned, but are always delivered in order to each listener.
+     * 
+     * @param queueSize the maximum number of undelivered events per listener.
+     * @param policy what to do when the queue of a listener is full.
+     */
+    public void setAsynchronousListeners( int queueSize,
+        ListenerOverflowPolicy policy ) {
+        ListenerDispatcher previous = listenerDispatcher;
+        listenerDispatcher = new ListenerDispatcher( queueSize, policy );
+        if ( previous != null ) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Makes listener events be delivered by the writing thread, before the
+     * write returns. This is the default.
+     */
+    public void setSynchronousListeners() {
+        ListenerDispatcher previous = listenerDispatcher;
+        listenerDispatcher = null;
+        if ( previous != null ) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Waits for the asynchronously delivered listener events sent so far to
+     * be delivered, see {@link #setAsynchronousListeners(int,
+     * ListenerOverflowPolicy)}.
+     * 
+     * @param timeoutMillis the maximum time to wait.
+     * @return {@code true} if all events were delivered in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitListenerEvents( long timeoutMillis )
+        throws InterruptedException {
+        ListenerDispatcher dispatcher = listenerDispatcher;
+        return dispatcher == null || dispatcher.awaitDelivery( timeoutMillis );
+    }
+    
+    /**
+     * @return the number of listener events which have been dropped since
+     * listeners were made asynchronous, because of full queues.
+     */
+    public long getDroppedListenerEventCount() {
+        ListenerDispatcher dispatcher = listenerDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+    }
+    
+    /**
+     * @return the committed namespaces, prefix -> namespace. The map is
+     * never modified, a new one is made when the namespaces change.
+     */
+    Map<String, String> getCommittedNamespaces() {
+        Map<String, String> result = namespaces;
+        if ( result == null ) {
+            synchronized ( namespaceLock ) {
+                result = namespaces;
+                if ( result == null ) {
+                    result = loadNamespaces();
+                    namespaces = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    private Map<String, String> loadNamespaces() {
+        Map<String, String> result = new HashMap<String, String>();
+        Transaction tx = graphDb.beginTx();
+        try {
+            Node node = new GraphDatabaseUtil( graphDb ).getOrCreateSubReferenceNode(
+                GraphDatabaseSailConnectionImpl.SailRelTypes.REF_TO_NAMESPACE );
+            for ( String prefix : node.getPropertyKeys() ) {
+                result.put( prefix, ( String ) node.getProperty( prefix ) );
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        return Collections.unmodifiableMap( result );
+    }
+    
+    /**
+     * Called by a connection when it has committed namespace changes. The
+     * namespaces are read back from the store, rather than changed in
+     * memory, since concurrent commits may get here in any order.
+     */
+    void namespacesCommitted() {
+        synchronized ( namespaceLock ) {
+            if ( namespaces != null ) {
+                namespaces = loadNamespaces();
+            }
+        }
+    }
+    
+    /**
+     * @return the dispatcher of asynchronous listener events, or {@code null}
+     * if listeners are called synchronously.
+     */
+    ListenerDispatcher getListenerDispatcher() {
+        return listenerDispatcher;
+    }
+    
     public void initialize() throws SailException {
-        // Not used.
+        getContextIndex();
     }
 
     public void shutDown() throws SailException {
         printActiveConnections();
+        setSynchronousListeners();
+        setChangeLog( null );
 //      System.out.println( "Number of history connections: " +
 //          connectionCounter.get() );
         store.shutDown();
@@ -101,6 +783,44 @@ public class GraphDatabaseSail implements NotifyingSail {
         return connection;
     }
     
+    /**
+     * Returns a connection which never commits a batch of its own, so
+     * everything written through it is committed in one transaction by
+     * {@link org.openrdf.sail.SailConnection#commit()}, regardless of the
+     * batch size. Used where a transaction mustn't be seen half done, f.ex.
+     * when a {@link ReplicaSail} applies a transaction of the primary. The
+     * whole transaction is kept in memory until it's committed.
+     * 
+     * @return a connection without batch commits.
+     */
+    NotifyingSailConnection getUnbatchedConnection() {
+        connectionCounter.incrementAndGet();
+        GraphDatabaseSailConnectionImpl connection =
+            new GraphDatabaseSailConnectionImpl(graphDb, store, this, valueFactory,
+                new BatchSizeController( Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE ), listeners, false);
+        this.activeConnections.put( connection.getIdentifier(), connection );
+        return connection;
+    }
+    
+    /**
+     * Returns a connection which can only be used for reading. It doesn't
+     * take part in any transaction and doesn't serialize reads on itself,
+     * so iterations opened on it (f.ex. by the joins of a query) can be
+     * consumed concurrently from several threads. Any attempt to write
+     * through it will result in a {@link SailException}.
+     * 
+     * @return a read-only connection to this sail.
+     * @throws SailException if the connection couldn't be created.
+     */
+    public NotifyingSailConnection getReadOnlyConnection() throws SailException {
+        connectionCounter.incrementAndGet();
+        GraphDatabaseSailConnectionImpl connection =
+            new GraphDatabaseSailConnectionImpl(graphDb, store, this, valueFactory, listeners, true);
+        this.activeConnections.put( connection.getIdentifier(), connection );
+        return connection;
+    }
+    
     void connectionEnded( int identifier, GraphDatabaseSailConnectionImpl connection )
     {
         this.activeConnections.remove( identifier );
@@ -116,5 +836,9 @@ public class GraphDatabaseSail implements NotifyingSail {
 
     public void removeSailChangedListener(final SailChangedListener listener) {
         listeners.remove(listener);
+        ListenerDispatcher dispatcher = listenerDispatcher;
+        if ( dispatcher != null ) {
+            dispatcher.remove( listener );
+        }
     }
 }
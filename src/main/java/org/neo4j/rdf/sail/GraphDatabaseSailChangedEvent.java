@@ -0,0 +1,39 @@
+package org.neo4j.rdf.sail;
+
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.helpers.DefaultSailChangedEvent;
+
+/**
+ * The event sent to {@link org.openrdf.sail.SailChangedListener}s when a
+ * transaction (or a batch of it) has been committed. There's one event per
+ * commit, no matter how many statements were changed, with the number of
+ * statements added and removed. Rolled back changes aren't reported.
+ * 
+ * Listeners which want one event per write, as soon as it's made, can
+ * implement {@link PerStatementSailChangedListener} instead.
+ */
+public class GraphDatabaseSailChangedEvent extends DefaultSailChangedEvent
+{
+    private final long addedCount;
+    private final long removedCount;
+    
+    public GraphDatabaseSailChangedEvent( Sail sail, long addedCount,
+        long removedCount )
+    {
+        super( sail );
+        this.addedCount = addedCount;
+        this.removedCount = removedCount;
+        setStatementsAdded( addedCount > 0 );
+        setStatementsRemoved( removedCount > 0 );
+    }
+    
+    public long getAddedCount()
+    {
+        return addedCount;
+    }
+    
+    public long getRemovedCount()
+    {
+        return removedCount;
+    }
+}
@@ -1,5 +1,6 @@
 package org.neo4j.rdf.sail;
 
+import java.util.List;
 import java.util.Map;
 
 import info.aduna.iteration.CloseableIteration;
@@ -32,6 +33,24 @@ public interface GraphDatabaseSailConnection extends NotifyingSailConnection
         evaluateWithSnippets( String query, int snippetCountLimit )
         throws SailException;
     
+    /**
+     * Returns one page of the hits of a fulltext search. The whole page is
+     * read in one go, and the statements of the results are only converted
+     * to Sesame values when they are looked at. The hits before
+     * {@code offset} are still read from the index, only skipped, so a page
+     * costs O(offset + limit) and paging far into a large result is slow.
+     * 
+     * @param query the fulltext query.
+     * @param offset the number of hits to skip.
+     * @param limit the maximum number of hits to return.
+     * @return the hits, fewer than {@code limit} if there are no more.
+     * @throws SailException if the search failed.
+     * @throws IllegalArgumentException if {@code offset} or {@code limit}
+     * is negative.
+     */
+    List<FulltextQueryResult> evaluate( String query, int offset, int limit )
+        throws SailException;
+    
     void setStatementMetadata( Statement statement,
         Map<String, Literal> metadata ) throws SailException;
     
@@ -1,11 +1,16 @@
 package org.neo4j.rdf.sail;
 
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -24,9 +29,11 @@ import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.rdf.fulltext.FulltextIndex;
 import org.neo4j.rdf.fulltext.QueryResult;
 import org.neo4j.rdf.model.CompleteStatement;
+import org.neo4j.rdf.model.Context;
 import org.neo4j.rdf.model.StatementMetadata;
+import org.neo4j.rdf.model.Uri;
 import org.neo4j.rdf.model.WildcardStatement;
-import org.neo4j.rdf.sail.utils.ContextHandling;
+import org.neo4j.rdf.sail.changelog.ChangeLogWriter;
 import org.neo4j.rdf.sail.utils.MutatingLogger;
 import org.neo4j.rdf.sail.utils.SailConnectionTripleSource;
 import org.neo4j.rdf.store.RdfStore;
@@ -46,6 +53,7 @@ import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.evaluation.TripleSource;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
 import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailChangedEvent;
 import org.openrdf.sail.SailChangedListener;
 import org.openrdf.sail.SailConnectionListener;
 import org.openrdf.sail.SailException;
@@ -56,9 +64,10 @@ import org.openrdf.sail.helpers.DefaultSailChangedEvent;
  */
 public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnection
 {
-    private static final int DEFAULT_BATCHSIZE = 5000;
     // number of times to retry work in a transaction if deadlock detected
     private static final int NUMBER_OF_RETRIES = 5;
+    private static final long INITIAL_RETRY_BACKOFF_MILLIS = 10;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 1000;
     
     private static final AtomicInteger connectionIdentifier = 
         new AtomicInteger( 0 );
@@ -69,36 +78,93 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
     private final ValueFactory valueFactory;
     private final Set<SailConnectionListener> sailConnectionListeners = new HashSet<SailConnectionListener>();
     private final Collection<SailChangedListener> sailChangedListeners;
-    private final int batchSize;
+    private final BatchSizeController batchSizeController;
     private Transaction transaction;
-    private boolean open;
+    private volatile boolean open;
+    private final boolean readOnly;
+    private final int statementPrefetchSize;
+    private final StatementStatistics statistics;
+    private final QueryOptimizerPipeline queryOptimizer;
+    private final boolean nativeJoinEvaluation;
+    private final ContextIndex contextIndex;
+    // changes to the statistics made in the current transaction
+    private final StatementStatistics transactionStatistics =
+        new StatementStatistics();
+    private long transactionAddedCount;
+    private long transactionRemovedCount;
     private final AtomicInteger writeOperationCount = new AtomicInteger();
     private final Sail sail;
     private final AtomicInteger totalAddCount = new AtomicInteger();
-    private final List<Command> commands = new ArrayList<Command>();
+    private final CommandLog commands;
     private final int identifier;
+    // The per statement events never change, so the same instances are
+    // sent every time
+    private final DefaultSailChangedEvent statementsAddedEvent;
+    private final DefaultSailChangedEvent statementsRemovedEvent;
+    // Commit events not sent yet, only used while synchronized on this
+    private final List<SailChangedEvent> pendingCommitEvents =
+        new ArrayList<SailChangedEvent>();
+    // namespace changes of the current transaction, replaced as a whole so
+    // that lookups don't need to synchronize on the connection
+    private volatile NamespaceChanges namespaceChanges = NamespaceChanges.NONE;
     
-    private enum SailRelTypes implements RelationshipType
+    enum SailRelTypes implements RelationshipType
     {
-        REF_TO_NAMESPACE
+        REF_TO_NAMESPACE,
+        REF_TO_CHANGE_LOG
     }
 
     GraphDatabaseSailConnectionImpl( final GraphDatabaseService graphDb, final RdfStore store, final Sail sail,
         final ValueFactory valueFactory, final Collection<SailChangedListener> sailChangedListeners )
     {
-        this( graphDb, store, sail, valueFactory, DEFAULT_BATCHSIZE, sailChangedListeners );
+        this( graphDb, store, sail, valueFactory,
+            ( ( GraphDatabaseSail ) sail ).getBatchSizeController().forConnection(),
+            sailChangedListeners, false );
     }
 
     GraphDatabaseSailConnectionImpl( final GraphDatabaseService graphDb, final RdfStore store, final Sail sail,
-        final ValueFactory valueFactory, int batchSize, final Collection<SailChangedListener> sailChangedListeners )
+        final ValueFactory valueFactory, final Collection<SailChangedListener> sailChangedListeners,
+        boolean readOnly )
+    {
+        this( graphDb, store, sail, valueFactory,
+            ( ( GraphDatabaseSail ) sail ).getBatchSizeController().forConnection(),
+            sailChangedListeners, readOnly );
+    }
+
+    /**
+     * @param readOnly if {@code true} the connection never starts a
+     * transaction of its own and doesn't synchronize on itself for reads,
+     * so that several iterations on it can be consumed concurrently.
+     * All write operations will throw a {@link SailException}.
+     * @param batchSizeController decides how many write operations are
+     * done in each transaction before it's committed.
+     */
+    GraphDatabaseSailConnectionImpl( final GraphDatabaseService graphDb, final RdfStore store, final Sail sail,
+        final ValueFactory valueFactory, BatchSizeController batchSizeController, final Collection<SailChangedListener> sailChangedListeners,
+        boolean readOnly )
     {
         this.graphDb = graphDb;
         this.store = store;
         this.sail = sail;
         this.valueFactory = valueFactory;
         this.open = true;
-        this.batchSize = batchSize;
+        this.readOnly = readOnly;
+        this.statementPrefetchSize =
+            ( ( GraphDatabaseSail ) sail ).getStatementPrefetchSize();
+        this.statistics = ( ( GraphDatabaseSail ) sail ).getStatistics();
+        this.queryOptimizer = ( ( GraphDatabaseSail ) sail ).getQueryOptimizer();
+        this.nativeJoinEvaluation =
+            ( ( GraphDatabaseSail ) sail ).isNativeJoinEvaluation();
+        this.contextIndex = ( ( GraphDatabaseSail ) sail ).getContextIndex();
+        this.commands = new CommandLog(
+            ( ( GraphDatabaseSail ) sail ).getCommandLogMemoryLimit(),
+            valueFactory );
+        this.batchSizeController = batchSizeController;
         this.sailChangedListeners = sailChangedListeners;
+        this.statementsAddedEvent = new DefaultSailChangedEvent( sail );
+        this.statementsAddedEvent.setStatementsAdded( true );
+        this.statementsRemovedEvent = new DefaultSailChangedEvent( sail );
+        this.statementsRemovedEvent.setStatementsRemoved( true );
         this.tm = (( EmbeddedGraphDatabase ) graphDb).getConfig().getTxModule().getTxManager();
         // setupTransaction();
         this.identifier = connectionIdentifier.incrementAndGet();
@@ -110,8 +176,26 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         return this.identifier;
     }
     
+    boolean isReadOnly()
+    {
+        return this.readOnly;
+    }
+    
+    private void assertWritable() throws SailException
+    {
+        if ( readOnly )
+        {
+            throw new SailException( "Connection[" + identifier +
+                "] is read-only" );
+        }
+    }
+    
     private void log( String msg )
     {
+        if ( !MutatingLogger.getLogger().isInfoEnabled() )
+        {
+            return;
+        }
         if ( transaction != null )
         {
             MutatingLogger.getLogger().info( getClass().getSimpleName() + "[" +
@@ -232,12 +316,32 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
 
-	public synchronized boolean isOpen() throws SailException
+	public boolean isOpen() throws SailException
     {
         return open;
     }
 
-    public synchronized void close() throws SailException
+    public void close() throws SailException
+    {
+        if ( readOnly )
+        {
+            if ( open )
+            {
+                open = false;
+                log( "read-only connection closed" );
+                stopListenerDelivery();
+                ( ( GraphDatabaseSail ) this.sail ).connectionEnded(
+                    this.identifier, this );
+            }
+            return;
+        }
+        synchronized ( this )
+        {
+            closeWritable();
+        }
+    }
+    
+    private void closeWritable() throws SailException
     {
         if ( !open )
         {
@@ -250,10 +354,12 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
                 " non commited operations that will be rolled back on close" );
         }
         commands.clear();
+        clearTransactionChanges();
         Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
             tm.rollback();
+            logTransactionEnd( false );
         }
         catch ( Exception e )
         {
@@ -263,6 +369,7 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         finally
         {
             log( "connection closed" );
+            stopListenerDelivery();
             ( ( GraphDatabaseSail ) this.sail ).connectionEnded( this.identifier, this );
             transaction = null;
             if ( otherTx != null )
@@ -279,11 +386,16 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
     {
         try
         {
-            TripleSource tripleSource = new SailConnectionTripleSource( this,
+            TripleSource tripleSource = new MetadataLessTripleSource( this,
                 valueFactory, includeInferred );
-            EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(
-                tripleSource, dataset );
-            return strategy.evaluate( tupleExpr, bindingSet );
+            EvaluationStrategyImpl strategy = nativeJoinEvaluation ?
+                new GraphDatabaseEvaluationStrategy( tripleSource, dataset, this ) :
+                new EvaluationStrategyImpl( tripleSource, dataset );
+            TupleExpr optimizedExpr = queryOptimizer.optimize( tupleExpr,
+                dataset, bindingSet, strategy,
+                new GraphDatabaseEvaluationStatistics( statistics,
+                    ( ( GraphDatabaseSail ) sail ).isStatisticsBuilt() ) );
+            return strategy.evaluate( optimizedExpr, bindingSet );
         }
         catch ( QueryEvaluationException e )
         {
@@ -291,40 +403,104 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
     
-    public synchronized CloseableIteration<FulltextQueryResult, SailException>
+    public CloseableIteration<FulltextQueryResult, SailException>
         evaluate( String query )
     {
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        if ( readOnly )
         {
-            Iterable<QueryResult> queryResult =
-                this.store.searchFulltext( query );
-            return new QueryResultIteration( queryResult.iterator(), this );
+            return new QueryResultIteration(
+                this.store.searchFulltext( query ).iterator(), this );
         }
-        finally
+        synchronized ( this )
         {
-            suspendThisAndResumeOther( otherTx );
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                Iterable<QueryResult> queryResult =
+                    this.store.searchFulltext( query );
+                return new QueryResultIteration( queryResult.iterator(), this );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
+        }
+    }
+    
+    public List<FulltextQueryResult> evaluate( String query, int offset,
+        int limit )
+    {
+        if ( offset < 0 || limit < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid offset " + offset +
+                " or limit " + limit );
+        }
+        if ( readOnly )
+        {
+            return fulltextPage( query, offset, limit );
+        }
+        synchronized ( this )
+        {
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                return fulltextPage( query, offset, limit );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
+        }
+    }
+    
+    private List<FulltextQueryResult> fulltextPage( String query, int offset,
+        int limit )
+    {
+        List<FulltextQueryResult> page = new ArrayList<FulltextQueryResult>(
+            Math.min( limit, 1000 ) );
+        Iterator<QueryResult> hits = store.searchFulltext( query ).iterator();
+        for ( int i = 0; i < offset && hits.hasNext(); i++ )
+        {
+            hits.next();
         }
+        while ( page.size() < limit && hits.hasNext() )
+        {
+            QueryResult hit = hits.next();
+            page.add( new FulltextQueryResult( new LazyGraphDatabaseStatement(
+                hit.getStatement(), this ), hit.getScore(),
+                hit.getSnippet() ) );
+        }
+        return page;
     }
     
-    public synchronized CloseableIteration<FulltextQueryResult, SailException>
+    public CloseableIteration<FulltextQueryResult, SailException>
         evaluateWithSnippets( String query, int snippetCountLimit )
     {
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        if ( readOnly )
         {
-            Iterable<QueryResult> queryResult = this.store.
-                searchFulltextWithSnippets( query, snippetCountLimit );
-            return new QueryResultIteration( queryResult.iterator(), this );
+            return new QueryResultIteration( this.store.
+                searchFulltextWithSnippets( query, snippetCountLimit ).iterator(),
+                this );
         }
-        finally
+        synchronized ( this )
         {
-            suspendThisAndResumeOther( otherTx );
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                Iterable<QueryResult> queryResult = this.store.
+                    searchFulltextWithSnippets( query, snippetCountLimit );
+                return new QueryResultIteration( queryResult.iterator(), this );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
         }
     }
     
-    public synchronized void reindexFulltextIndex()
+    public synchronized void reindexFulltextIndex() throws SailException
     {
+        assertWritable();
         log( "reindexFulltextIndex() called" );
         Transaction otherTx = suspendOtherAndResumeThis();
         try
@@ -346,14 +522,37 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
 
-    // TODO
+    /**
+     * Lists the contexts from the {@link ContextIndex}, including the
+     * changes made in the current transaction of this connection.
+     */
     public CloseableIteration<? extends Resource, SailException> getContextIDs()
         throws SailException
     {
-        return null;
+        Set<String> uris = new LinkedHashSet<String>( contextIndex.getContexts() );
+        for ( Map.Entry<String, Long> delta :
+            transactionStatistics.getContextCounts().entrySet() )
+        {
+            if ( contextIndex.getCount( delta.getKey() ) +
+                delta.getValue() > 0 )
+            {
+                uris.add( delta.getKey() );
+            }
+            else
+            {
+                uris.remove( delta.getKey() );
+            }
+        }
+        List<Resource> contexts = new ArrayList<Resource>( uris.size() );
+        for ( String uri : uris )
+        {
+            contexts.add( valueFactory.createURI( uri ) );
+        }
+        return new CloseableIteratorIteration<Resource, SailException>(
+            contexts.iterator() );
     }
     
-    protected synchronized Iterator<CompleteStatement> internalGetStatements(
+    protected Iterator<CompleteStatement> internalGetStatements(
         final Resource subject, final URI predicate, final Value object,
         boolean includeInferred, final Resource... contexts )
         throws SailException
@@ -398,43 +597,90 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
 
-    public synchronized CloseableIteration<? extends Statement, SailException> getStatements(final Resource subject,
+    /**
+     * Looks up statements directly in the store, must be called with the
+     * transaction of this connection resumed (unless read-only).
+     */
+    Iterator<CompleteStatement> internalGetStatements(
+        WildcardStatement statement )
+    {
+        return store.getStatements( statement, false ).iterator();
+    }
+
+    public CloseableIteration<? extends Statement, SailException> getStatements(final Resource subject,
                                                                                 final URI predicate,
                                                                                 final Value object,
                                                                                 boolean includeInferred,
                                                                                 final Resource... contexts) throws SailException {
-        
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        return getStatements( subject, predicate, object, includeInferred,
+            true, contexts );
+    }
+    
+    /**
+     * @param readMetadata whether or not the returned statements should be
+     * {@link GraphDatabaseStatement}s. The query engine never reads the
+     * metadata so it gets plain statements.
+     */
+    CloseableIteration<? extends Statement, SailException> getStatements(
+        final Resource subject, final URI predicate, final Value object,
+        boolean includeInferred, boolean readMetadata,
+        final Resource... contexts ) throws SailException
+    {
+        if ( readOnly )
         {
             return new GraphDatabaseStatementIteration( internalGetStatements( subject,
-                predicate, object, includeInferred, contexts ), this );
+                predicate, object, includeInferred, contexts ), this,
+                statementPrefetchSize, readMetadata );
         }
-        finally
+        synchronized ( this )
         {
-            suspendThisAndResumeOther( otherTx );
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                return new GraphDatabaseStatementIteration( internalGetStatements( subject,
+                    predicate, object, includeInferred, contexts ), this,
+                    statementPrefetchSize, readMetadata );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
         }
     }
 
-    public synchronized long size( final Resource... contexts ) throws SailException
+    /**
+     * Answered from the statement counts maintained by the sail, without
+     * looking at the statements. Those counts only include writes made
+     * through the same {@link GraphDatabaseSail} instance, see
+     * {@link GraphDatabaseSail#verifyCounts(boolean)}.
+     */
+    public long size( final Resource... contexts ) throws SailException
     {
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        // Answered from the counts of the context index, plus the changes
+        // made in the current transaction of this connection
+        if ( contexts != null && contexts.length == 0 )
         {
-            return store.size( ContextHandling.createContexts( contexts ) );
+            return contextIndex.getStatementCount() +
+                transactionStatistics.getStatementCount();
         }
-        finally
+        Resource[] nonEmptyContexts = contexts == null ?
+            new Resource[] { null } : contexts;
+        long size = 0;
+        for ( Resource context : nonEmptyContexts )
         {
-            suspendThisAndResumeOther( otherTx );
+            String uri = context == null ? null : context.toString();
+            size += contextIndex.getCount( uri ) +
+                transactionStatistics.getContextCount( uri );
         }
+        return size;
     }
     
     private void innerAddStatement( final Resource subject, 
         final URI predicate, final Value object, final Resource... contexts )
         throws SailException
     {
-        commands.add( new Command( CommandType.ADD_STATEMENT, subject, 
-            predicate, object, contexts ) );
+        commands.add( CommandLog.CommandType.ADD_STATEMENT, subject, 
+            predicate, object, contexts );
         try
         {
             internalAddStatement( subject, predicate, object, contexts );
@@ -452,6 +698,40 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
     
+    /**
+     * Logs an added or removed statement if
+     * {@link MutatingLogger#getStatementLogging()} says that statements are
+     * logged as text, nothing is built unless it's actually logged. In
+     * binary they're logged with their transaction, see
+     * {@link #logTransactionEnd(boolean)}.
+     */
+    private void logStatement( String operation, final Resource subject,
+        final URI predicate, final Value object, final Resource... contexts )
+    {
+        if ( MutatingLogger.getStatementLogging() ==
+            MutatingLogger.StatementLogging.TEXT &&
+            MutatingLogger.getLogger().isInfoEnabled() )
+        {
+            log( operation + ": " + spogString( subject, predicate,
+                object, contexts ) );
+        }
+    }
+    
+    /**
+     * Logs the operations of the current transaction, if it committed and
+     * statements are logged in binary.
+     */
+    private void logTransactionEnd( boolean committed )
+    {
+        if ( committed && MutatingLogger.getStatementLogging() ==
+            MutatingLogger.StatementLogging.BINARY && ( commands.size() > 0 ||
+            namespaceChanges != NamespaceChanges.NONE ) )
+        {
+            MutatingLogger.logTransaction( System.currentTimeMillis(),
+                transactionOperations() );
+        }
+    }
+    
     private String spogString( final Resource subject, 
         final URI predicate, final Value object, final Resource... contexts )
     {
@@ -466,89 +746,217 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         return spog.toString();
     }
 
-    public synchronized void addStatement( final Resource subject, 
+    public void addStatement( final Resource subject, 
         final URI predicate, final Value object, final Resource... contexts ) 
         throws SailException
     {
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
-        {
-            log( "addStatement: " + spogString( subject, predicate, object, 
-                contexts ) );
-            innerAddStatement( subject, predicate, object, contexts );
-        }
-        finally
+        synchronized ( this )
         {
-            suspendThisAndResumeOther( otherTx );
+            assertWritable();
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                logStatement( "addStatement", subject, predicate, object,
+                    contexts );
+                innerAddStatement( subject, predicate, object, contexts );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
         }
         sendEventsToListeners( subject, predicate, object, contexts );
+        sendCommitEvents();
     }
     
+    /**
+     * Called after leaving the monitor of the connection, so that a
+     * listener which is slow, or an asynchronous delivery which blocks on a
+     * full queue, doesn't stall the other threads using the connection.
+     */
     private void sendEventsToListeners( final Resource subject,
         final URI predicate, final Value object, final Resource... contexts )
     {
+        ListenerDispatcher dispatcher =
+            ( ( GraphDatabaseSail ) sail ).getListenerDispatcher();
         if ( sailConnectionListeners.size() > 0 )
         {
-            for ( SailConnectionListener l : sailConnectionListeners)
+            // The same statements are sent to all the listeners
+            Statement[] statements;
+            if ( 0 == contexts.length )
+            {
+                statements = new Statement[] { valueFactory.createStatement(
+                    subject, predicate, object ) };
+            }
+            else
             {
-                if ( 0 == contexts.length )
+                statements = new Statement[ contexts.length ];
+                for ( int i = 0; i < contexts.length; i++ )
                 {
-                    l.statementAdded( valueFactory.createStatement( subject,
-                        predicate, object ) );
-                }
-                else
-                {
-                    for ( Resource context : contexts )
-                    {
-                        l.statementAdded( valueFactory.createStatement(
-                            subject, predicate, object, context ) );
-                    }
+                    statements[ i ] = valueFactory.createStatement( subject,
+                        predicate, object, contexts[ i ] );
                 }
             }
+            // Called without holding the listener lock, so a synchronous
+            // listener can't block adding and removing listeners
+            for ( SailConnectionListener l : connectionListeners() )
+            {
+                sendStatementsAdded( dispatcher, l, statements );
+            }
         }
 
         if (sailChangedListeners.size() > 0) {
-            DefaultSailChangedEvent event = new DefaultSailChangedEvent(sail);
-            event.setStatementsAdded(true);
-
-            for (SailChangedListener listener : sailChangedListeners) {
-                listener.sailChanged(event);
+            sendSailChanged( dispatcher, statementsAddedEvent, true );
+        }
+    }
+    
+    /**
+     * Stops the asynchronous delivery to the listeners of this connection,
+     * once the events already sent to them have been delivered.
+     */
+    private void stopListenerDelivery()
+    {
+        ListenerDispatcher dispatcher =
+            ( ( GraphDatabaseSail ) sail ).getListenerDispatcher();
+        if ( dispatcher != null )
+        {
+            for ( SailConnectionListener listener : connectionListeners() )
+            {
+                dispatcher.remove( listener );
+            }
+        }
+    }
+    
+    private List<SailConnectionListener> connectionListeners()
+    {
+        synchronized ( sailConnectionListeners )
+        {
+            return new ArrayList<SailConnectionListener>(
+                sailConnectionListeners );
+        }
+    }
+    
+    private void sendStatementsAdded( ListenerDispatcher dispatcher,
+        final SailConnectionListener listener, final Statement[] statements )
+    {
+        if ( dispatcher == null )
+        {
+            for ( Statement statement : statements )
+            {
+                listener.statementAdded( statement );
+            }
+            return;
+        }
+        dispatcher.dispatch( listener, new Runnable()
+        {
+            public void run()
+            {
+                for ( Statement statement : statements )
+                {
+                    listener.statementAdded( statement );
+                }
+            }
+        } );
+    }
+    
+    /**
+     * @param perStatement {@code true} to send {@code event} to the
+     * {@link PerStatementSailChangedListener}s, {@code false} to send it
+     * to the other listeners.
+     */
+    private void sendSailChanged( ListenerDispatcher dispatcher,
+        final SailChangedEvent event, boolean perStatement )
+    {
+        for ( final SailChangedListener listener : sailChangedListeners )
+        {
+            if ( ( listener instanceof PerStatementSailChangedListener ) !=
+                perStatement )
+            {
+                continue;
+            }
+            if ( dispatcher == null )
+            {
+                listener.sailChanged( event );
+            }
+            else
+            {
+                dispatcher.dispatch( listener, new Runnable()
+                {
+                    public void run()
+                    {
+                        listener.sailChanged( event );
+                    }
+                } );
             }
         }
     }
     
-    public synchronized Statement addStatement(
+    public Statement addStatement(
         final Map<String, Literal> metadata, final Resource subject,
         final URI predicate, final Value object, final Resource... contexts )
         throws SailException
     {
         Statement result = null;
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
-        {
-            log( "addStatement with metadata: " + spogString( subject, 
-                predicate, object, contexts ) );
-            innerAddStatement( subject, predicate, object, contexts );
-            CompleteStatement statement = internalGetStatements( subject,
-                predicate, object, false, contexts ).next();
-            setStatementMetadata( statement, metadata );
-            result = GraphDatabaseSesameMapper.createStatement( statement, true );
-        }
-        finally
+        synchronized ( this )
         {
-            suspendThisAndResumeOther( otherTx );
+            assertWritable();
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                logStatement( "addStatement with metadata", subject,
+                    predicate, object, contexts );
+                innerAddStatement( subject, predicate, object, contexts );
+                CompleteStatement statement = internalGetStatements( subject,
+                    predicate, object, false, contexts ).next();
+                setStatementMetadata( statement, metadata );
+                result = GraphDatabaseSesameMapper.createStatement( statement, true );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
         }
         sendEventsToListeners( subject, predicate, object, contexts );
+        sendCommitEvents();
         return result;
     }
     
+    /**
+     * Reads the metadata of a statement returned from this connection,
+     * in the transaction of this connection if it's still open.
+     */
+    Map<String, Literal> readMetadata( CompleteStatement statement )
+    {
+        if ( readOnly || !open )
+        {
+            return GraphDatabaseSesameMapper.createMetadata( statement );
+        }
+        synchronized ( this )
+        {
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                return GraphDatabaseSesameMapper.createMetadata( statement );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
+        }
+    }
+    
     public synchronized void setStatementMetadata( Statement statement,
         Map<String, Literal> metadata ) throws SailException
     {
+        assertWritable();
         Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
-            log( "setStatementMetadata: " + statement );
+            if ( MutatingLogger.getStatementLogging() ==
+                MutatingLogger.StatementLogging.TEXT )
+            {
+                log( "setStatementMetadata: " + statement );
+            }
             CompleteStatement resultStatement = internalGetStatements(
                 statement.getSubject(), statement.getPredicate(),
                 statement.getObject(), false, statement.getContext() ).next();
@@ -611,7 +1019,7 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
             org.neo4j.rdf.model.CompleteStatement statement = SesameGraphDatabaseMapper
                 .createCompleteStatement( subject, predicate, object,
                     ( Resource ) null );
-            store.addStatements( statement );
+            addStatementIfNew( statement );
         }
         else
         {
@@ -620,38 +1028,105 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
                 org.neo4j.rdf.model.CompleteStatement statement = SesameGraphDatabaseMapper
                     .createCompleteStatement( subject, predicate, object,
                         context );
-                store.addStatements( statement );
+                addStatementIfNew( statement );
             }
         }
     }
-
-    public synchronized void removeStatements( final Resource subject, 
-    	final URI predicate, final Value object, final Resource... contexts ) 
-    		throws SailException
+    
+    private void addStatementIfNew( CompleteStatement statement )
     {
-    	Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        // Only statements which weren't already there are counted. The
+        // store doesn't tell whether an add changed anything, so it's looked
+        // up first, unless the counts tell that it can't be there.
+        if ( mayHaveMatches( statement ) )
         {
-            log( "removeStatements: " + spogString( subject, predicate, object, 
-                contexts ) );
-            commands.add( new Command( CommandType.REMOVE_STATEMENT, subject, 
-                predicate, object, contexts ) );
-            internalRemoveStatements( subject, predicate, object, contexts );
-            checkBatchCommit();
+            WildcardStatement existing = new WildcardStatement(
+                statement.getSubject(), statement.getPredicate(),
+                statement.getObject(), statement.getContext() );
+            if ( store.getStatements( existing, false ).iterator().hasNext() )
+            {
+                return;
+            }
         }
-        catch ( DeadlockDetectedException e )
+        store.addStatements( statement );
+        transactionStatistics.statementAdded( statement );
+        transactionAddedCount++;
+    }
+    
+    private void removeMatchingStatements( WildcardStatement statement )
+    {
+        if ( !mayHaveMatches( statement ) )
         {
-            handleDeadlockDetected( e );
+            return;
         }
-        catch ( RuntimeException e )
+        boolean found = false;
+        for ( CompleteStatement match : store.getStatements( statement, false ) )
         {
-            e.printStackTrace();
-            throw new SailException( e );
+            transactionStatistics.statementRemoved( match );
+            transactionRemovedCount++;
+            found = true;
         }
-        finally
+        // Nothing matched, so the store doesn't have to look again
+        if ( found )
         {
-        	suspendThisAndResumeOther( otherTx );
+            store.removeStatements( statement );
         }
+    }
+    
+    /**
+     * @return {@code false} if the counts of the context index, and of the
+     * current transaction, tell that nothing can match {@code statement}.
+     */
+    private boolean mayHaveMatches( org.neo4j.rdf.model.Statement statement )
+    {
+        org.neo4j.rdf.model.Value predicate = statement.getPredicate();
+        String predicateUri = predicate instanceof Uri ?
+            ( ( Uri ) predicate ).getUriAsString() : null;
+        org.neo4j.rdf.model.Value context = statement.getContext();
+        boolean anyContext = !( context instanceof Context );
+        String contextUri = anyContext || context.equals( Context.NULL ) ?
+            null : ( ( Context ) context ).getUriAsString();
+        return contextIndex.mayHaveStatements( predicateUri, anyContext,
+            contextUri, transactionStatistics );
+    }
+
+    public void removeStatements( final Resource subject, 
+    	final URI predicate, final Value object, final Resource... contexts ) 
+    		throws SailException
+    {
+        boolean removed;
+        synchronized ( this )
+        {
+            assertWritable();
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                logStatement( "removeStatements", subject, predicate,
+                    object, contexts );
+                commands.add( CommandLog.CommandType.REMOVE_STATEMENT, subject, 
+                    predicate, object, contexts );
+                long removedBefore = transactionRemovedCount;
+                internalRemoveStatements( subject, predicate, object, contexts );
+                removed = transactionRemovedCount > removedBefore;
+                checkBatchCommit();
+            }
+            catch ( DeadlockDetectedException e )
+            {
+                handleDeadlockDetected( e );
+                // Replayed, whether this removal matched anything is unknown
+                removed = true;
+            }
+            catch ( RuntimeException e )
+            {
+                e.printStackTrace();
+                throw new SailException( e );
+            }
+            finally
+            {
+                suspendThisAndResumeOther( otherTx );
+            }
+        }
+        sendCommitEvents();
         
         // TODO: wildcard statements are not allowed by ValueFactoryImpl --
         // either create a new ValueFactory class
@@ -665,15 +1140,10 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
          * object, context)); } } } }
          */
 
-        // Note: doesn't check whether any statements were actually removed,
-        // only that this method was called.
-        if (sailChangedListeners.size() > 0) {
-            DefaultSailChangedEvent event = new DefaultSailChangedEvent(sail);
-            event.setStatementsRemoved(true);
-
-            for (SailChangedListener listener : sailChangedListeners) {
-                listener.sailChanged(event);
-            }
+        // Only if some statement matched
+        if ( removed && sailChangedListeners.size() > 0 ) {
+            sendSailChanged( ( ( GraphDatabaseSail ) sail ).getListenerDispatcher(),
+                statementsRemovedEvent, true );
         }
     }
 
@@ -684,7 +1154,7 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         {
             org.neo4j.rdf.model.WildcardStatement statement = SesameGraphDatabaseMapper
                 .createWildcardStatement( subject, predicate, object );
-            store.removeStatements( statement );
+            removeMatchingStatements( statement );
         }
         else
         {
@@ -693,13 +1163,23 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
                 org.neo4j.rdf.model.WildcardStatement statement = SesameGraphDatabaseMapper
                     .createWildcardStatement( subject, predicate, object,
                         context );
-                store.removeStatements( statement );
+                removeMatchingStatements( statement );
             }
         }
     }
     
+    /**
+     * Rolls back the current transaction and replays its operations from
+     * the command log in a new one. Neo4j has no savepoints, so the whole
+     * transaction is replayed each time. Waits before each retry, twice as
+     * long as before the previous one, so that the transactions which
+     * deadlocked don't just deadlock again.
+     */
     private void handleDeadlockDetected( DeadlockDetectedException dde )
     {
+        GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail;
+        graphDbSail.deadlockDetected();
+        long backoff = INITIAL_RETRY_BACKOFF_MILLIS;
         for ( int i = 0; i < NUMBER_OF_RETRIES; i++ )
         {
             try
@@ -707,31 +1187,50 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
                 int txId = getTxId();
                 transaction.rollback();
                 commitFulltextIndex( txId, false );
+            }
+            catch( Exception e )
+            {
+                dde.printStackTrace();
+                throw new RuntimeException( 
+                    "Problem during rollback transaction handling DDE", e );
+            }
+            // Before the new transaction is begun, so that no locks are
+            // held while waiting
+            backoff( backoff );
+            backoff = Math.min( backoff * 2, MAX_RETRY_BACKOFF_MILLIS );
+            try
+            {
                 tm.begin();
                 transaction = tm.getTransaction();
+                clearTransactionChanges();
             }
             catch( Exception e )
             {
                 dde.printStackTrace();
                 throw new RuntimeException( 
-                    "Problem during rollback/begin transaction handling DDE", 
-                    e );
+                    "Problem during begin transaction handling DDE", e );
             }
+            graphDbSail.deadlockRetried();
             try
             {
-                for ( Command c : commands )
+                commands.replay( new CommandLog.CommandHandler()
                 {
-                    if ( c.getType() == CommandType.ADD_STATEMENT )
-                    {
-                        internalAddStatement( c.getSubject(), c.getPredicate(), 
-                            c.getObject(), c.getContexts() );
-                    }
-                    else if ( c.getType() == CommandType.REMOVE_STATEMENT )
+                    public void handle( CommandLog.CommandType type,
+                        Resource subject, URI predicate, Value object,
+                        Resource[] contexts )
                     {
-                        internalRemoveStatements( c.getSubject(), 
-                            c.getPredicate(), c.getObject(), c.getContexts() );
+                        if ( type == CommandLog.CommandType.ADD_STATEMENT )
+                        {
+                            internalAddStatement( subject, predicate, object,
+                                contexts );
+                        }
+                        else
+                        {
+                            internalRemoveStatements( subject, predicate,
+                                object, contexts );
+                        }
                     }
-                }
+                } );
                 // success
                 return;
             }
@@ -740,9 +1239,24 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
                 // ok we failed again
             }
         }
+        graphDbSail.deadlockFailed();
         throw new RuntimeException( "Failed to handle DDE", dde );
     }
     
+    private void backoff( long maxMillis )
+    {
+        // Randomized, so that the retrying transactions spread out
+        long millis = 1 + ( long ) ( Math.random() * maxMillis );
+        try
+        {
+            Thread.sleep( millis );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     private void commitFulltextIndex( int txId, boolean commit )
     {
         // TODO Just a temporary hack now
@@ -759,34 +1273,48 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         return transaction.hashCode();
     }
     
-    public synchronized void commit() throws SailException
+    public void commit() throws SailException
     {
-        Transaction otherTx = suspendOtherAndResumeThis();
-        try
-        {
-            int txId = getTxId();
-            tm.commit();
-            transaction = null;
-            commitFulltextIndex( txId, true );
-//            tm.begin();
-//            transaction = tm.getTransaction();
-            log( "commit() called on tx[" + txId + "] " + 
-                commands.size() + " operations committed" ); 
-            clearBatchCommit();
-        }
-        catch ( Exception e )
+        if ( readOnly )
         {
-            e.printStackTrace();
-            throw new RuntimeException( e );
+            return;
         }
-        finally
+        synchronized ( this )
         {
-            resumeOther( otherTx );
+            Transaction otherTx = suspendOtherAndResumeThis();
+            try
+            {
+                int txId = getTxId();
+                commitTransaction();
+                transaction = null;
+                commitFulltextIndex( txId, true );
+                queueCommitEvent();
+//                tm.begin();
+//                transaction = tm.getTransaction();
+                log( "commit() called on tx[" + txId + "] " + 
+                    commands.size() + " operations committed" ); 
+                logTransactionEnd( true );
+                clearBatchCommit();
+            }
+            catch ( Exception e )
+            {
+                e.printStackTrace();
+                throw new RuntimeException( e );
+            }
+            finally
+            {
+                resumeOther( otherTx );
+            }
         }
+        sendCommitEvents();
     }
 
     public synchronized void rollback() throws SailException
     {
+        if ( readOnly )
+        {
+            return;
+        }
         Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
@@ -794,6 +1322,7 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
             tm.rollback();
             commitFulltextIndex( txId, false );
             transaction = null;
+            logTransactionEnd( false );
 //            tm.begin();
 //            transaction = tm.getTransaction();
             log( "rollback() called on tx[" + txId + "] " + 
@@ -813,18 +1342,24 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
 
     private synchronized void checkBatchCommit() throws SailException
     {
-        if ( writeOperationCount.incrementAndGet() >= batchSize )
+        int operations = writeOperationCount.incrementAndGet();
+        if ( operations >= batchSizeController.getBatchSize() )
         {
             try
             {
                 int txId = getTxId();
-                tm.commit();
+                long commitStartNanos = System.nanoTime();
+                commitTransaction();
                 
                 commitFulltextIndex( txId, true );
+                batchSizeController.batchCommitted( operations,
+                    System.nanoTime() - commitStartNanos );
                 tm.begin();
                 transaction = tm.getTransaction();
+                queueCommitEvent();
                 log( "<- new tx, old tx[" + txId + "] commited " + 
                     commands.size() + " operations" ); 
+                logTransactionEnd( true );
                 clearBatchCommit();
             }
             catch ( Exception e )
@@ -834,12 +1369,198 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         }
     }
     
+    /**
+     * Writes the context counts of the current transaction to the
+     * {@link ContextIndex} and commits it. Concurrent commits only wait for
+     * each other on the count nodes they share, see
+     * {@link ContextIndex#apply(StatementStatistics)}, except that commits
+     * are serialized on the change log, if there is one, so that it's
+     * written in commit order. The transaction is written to the log before
+     * it's committed, and the commit fails if it can't be, see
+     * {@link #prepareChangeLog(ChangeLogWriter)}.
+     */
+    private void commitTransaction() throws Exception
+    {
+        ChangeLogWriter changeLog = ( ( GraphDatabaseSail ) sail ).getChangeLog();
+        if ( changeLog == null )
+        {
+            commitAndCount();
+        }
+        else
+        {
+            synchronized ( changeLog )
+            {
+                long sequence = prepareChangeLog( changeLog );
+                boolean committed = false;
+                try
+                {
+                    commitAndCount();
+                    committed = true;
+                }
+                finally
+                {
+                    if ( sequence != 0 )
+                    {
+                        changeLog.finished( sequence, committed );
+                    }
+                }
+            }
+        }
+        if ( namespaceChanges != NamespaceChanges.NONE )
+        {
+            ( ( GraphDatabaseSail ) sail ).namespacesCommitted();
+        }
+    }
+    
+    private void commitAndCount() throws Exception
+    {
+        ContextIndex.Commit counts = contextIndex.apply( transactionStatistics );
+        boolean committed = false;
+        try
+        {
+            tm.commit();
+            committed = true;
+        }
+        finally
+        {
+            contextIndex.transactionFinished( counts, committed );
+        }
+    }
+    
+    /**
+     * Writes the operations of the transaction to the change log, before
+     * it's committed, and records its sequence number in the transaction
+     * so that it can be told whether it committed if it's left in doubt by
+     * a crash.
+     * @return the sequence number of the transaction in the log, 0 if it
+     * has nothing to log.
+     * @throws IOException if the transaction couldn't be written, which
+     * fails the commit.
+     */
+    private long prepareChangeLog( ChangeLogWriter changeLog )
+        throws IOException
+    {
+        if ( commands.size() == 0 && namespaceChanges == NamespaceChanges.NONE )
+        {
+            return 0;
+        }
+        long sequence = changeLog.prepare( System.currentTimeMillis(),
+            transactionOperations() );
+        boolean recorded = false;
+        try
+        {
+            ( ( GraphDatabaseSail ) sail ).changeLogPrepared( sequence );
+            recorded = true;
+        }
+        finally
+        {
+            if ( !recorded )
+            {
+                changeLog.finished( sequence, false );
+            }
+        }
+        return sequence;
+    }
+    
+    /**
+     * @return the operations of the current transaction, as they're written
+     * to a change log. The namespace changes come first, they're
+     * independent of the statements. Statement metadata isn't logged.
+     */
+    private ChangeLogWriter.OperationSource transactionOperations()
+    {
+        final NamespaceChanges changes = namespaceChanges;
+        return new ChangeLogWriter.OperationSource()
+        {
+            public void replay( final ChangeLogWriter.OperationHandler handler )
+            {
+                if ( changes.cleared )
+                {
+                    handler.namespacesCleared();
+                }
+                for ( Map.Entry<String, String> change :
+                    changes.changes.entrySet() )
+                {
+                    handler.namespace( change.getKey(),
+                        change.getValue() );
+                }
+                commands.replay( new CommandLog.CommandHandler()
+                {
+                    public void handle( CommandLog.CommandType type,
+                        Resource subject, URI predicate, Value object,
+                        Resource[] contexts )
+                    {
+                        handler.operation(
+                            type == CommandLog.CommandType.ADD_STATEMENT,
+                            subject, predicate, object, contexts );
+                    }
+                } );
+            }
+        };
+    }
+    
     private synchronized void clearBatchCommit()
     {
         commands.clear();
+        clearTransactionChanges();
         writeOperationCount.set( 0 );
     }
     
+    private void clearTransactionChanges()
+    {
+        namespaceChanges = NamespaceChanges.NONE;
+        transactionStatistics.clear();
+        transactionAddedCount = 0;
+        transactionRemovedCount = 0;
+    }
+    
+    /**
+     * Queues the commit event of the transaction which was just committed,
+     * to be sent by {@link #sendCommitEvents()} once the monitor of the
+     * connection has been released.
+     */
+    private void queueCommitEvent()
+    {
+        if ( sailChangedListeners.size() > 0 &&
+            ( transactionAddedCount > 0 || transactionRemovedCount > 0 ) )
+        {
+            pendingCommitEvents.add( new GraphDatabaseSailChangedEvent( sail,
+                transactionAddedCount, transactionRemovedCount ) );
+        }
+    }
+    
+    /**
+     * Sends the queued commit events, without holding the monitor of the
+     * connection. A failing listener is logged, it mustn't make the commit
+     * look like it failed.
+     */
+    private void sendCommitEvents()
+    {
+        List<SailChangedEvent> events;
+        synchronized ( this )
+        {
+            if ( pendingCommitEvents.isEmpty() )
+            {
+                return;
+            }
+            events = new ArrayList<SailChangedEvent>( pendingCommitEvents );
+            pendingCommitEvents.clear();
+        }
+        for ( SailChangedEvent event : events )
+        {
+            try
+            {
+                sendSailChanged( ( ( GraphDatabaseSail ) sail ).getListenerDispatcher(),
+                    event, false );
+            }
+            catch ( RuntimeException e )
+            {
+                MutatingLogger.getLogger().warn(
+                    "Listener failed to handle commit event", e );
+            }
+        }
+    }
+    
     public void clear( final Resource... contexts ) throws SailException
     {
         removeStatements( null, null, null, contexts );
@@ -848,32 +1569,50 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
     public CloseableIteration<? extends Namespace, SailException> getNamespaces()
         throws SailException
     {
-        return new GraphDatabaseNamespaceIteration( getNamespaceNode(), graphDb );
+        NamespaceChanges changes = namespaceChanges;
+        Map<String, String> namespaces = changes.cleared ?
+            new HashMap<String, String>() : new HashMap<String, String>(
+                ( ( GraphDatabaseSail ) sail ).getCommittedNamespaces() );
+        for ( Map.Entry<String, String> change : changes.changes.entrySet() )
+        {
+            if ( change.getValue() == null )
+            {
+                namespaces.remove( change.getKey() );
+            }
+            else
+            {
+                namespaces.put( change.getKey(), change.getValue() );
+            }
+        }
+        return new GraphDatabaseNamespaceIteration( namespaces );
     }
 
-    public synchronized String getNamespace( final String prefix ) 
+    public String getNamespace( final String prefix ) 
     	throws SailException
     {
-    	Transaction otherTx = suspendOtherAndResumeThis();
-        try
+        // The uncommitted changes of this connection first
+        NamespaceChanges changes = namespaceChanges;
+        if ( changes.changes.containsKey( prefix ) )
         {
-            String uri = ( String ) getNamespaceNode().getProperty( prefix,
-                null );
-            return uri;
+            return changes.changes.get( prefix );
         }
-        finally
+        if ( changes.cleared )
         {
-        	suspendThisAndResumeOther( otherTx );
+            return null;
         }
+        return ( ( GraphDatabaseSail ) sail ).getCommittedNamespaces().get(
+            prefix );
     }
 
     public synchronized void setNamespace( final String prefix, final String uri )
         throws SailException
     {
+        assertWritable();
     	Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
             getNamespaceNode().setProperty( prefix, uri );
+            namespaceChanges = namespaceChanges.with( prefix, uri );
         }
         finally
         {
@@ -890,10 +1629,12 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
     public synchronized void removeNamespace( final String prefix ) 
     	throws SailException
     {
+        assertWritable();
     	Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
             getNamespaceNode().removeProperty( prefix );
+            namespaceChanges = namespaceChanges.with( prefix, null );
         }
         finally
         {
@@ -903,10 +1644,18 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
 
     public synchronized void clearNamespaces() throws SailException
     {
+        assertWritable();
     	Transaction otherTx = suspendOtherAndResumeThis();
         try
         {
-            getNamespaceNode().delete();
+            // The node itself is kept, it's referenced from the reference
+            // node
+            Node node = getNamespaceNode();
+            for ( String prefix : node.getPropertyKeys() )
+            {
+                node.removeProperty( prefix );
+            }
+            namespaceChanges = NamespaceChanges.CLEARED;
         }
         finally
         {
@@ -928,56 +1677,68 @@ public class GraphDatabaseSailConnectionImpl implements GraphDatabaseSailConnect
         {
             sailConnectionListeners.remove( listener );
         }
+        ListenerDispatcher dispatcher =
+            ( ( GraphDatabaseSail ) sail ).getListenerDispatcher();
+        if ( dispatcher != null )
+        {
+            dispatcher.remove( listener );
+        }
     }
     
-    private static enum CommandType
-    {
-        ADD_STATEMENT,
-        REMOVE_STATEMENT
-    }
-    
-    private static class Command
+    /**
+     * The triple source of the query engine, which never reads the
+     * statement metadata, so the statements are plain Sesame statements.
+     */
+    private static class MetadataLessTripleSource
+        extends SailConnectionTripleSource
     {
-        private final CommandType type;
-        private final Resource subject; 
-        private final URI predicate;
-        private final Value object;
-        private final Resource[] contexts;
-        
-        Command( final CommandType type, final Resource subject, 
-            final URI predicate, final Value object, 
-            final Resource... contexts  )
-        {
-            this.type = type;
-            this.subject = subject;
-            this.predicate = predicate;
-            this.object = object;
-            this.contexts = contexts;
-        }
+        private final GraphDatabaseSailConnectionImpl connection;
         
-        CommandType getType()
+        MetadataLessTripleSource( GraphDatabaseSailConnectionImpl connection,
+            ValueFactory valueFactory, boolean includeInferred )
         {
-            return type;
+            super( connection, valueFactory, includeInferred );
+            this.connection = connection;
         }
         
-        Resource getSubject()
+        @Override
+        protected CloseableIteration<? extends Statement, SailException>
+            getBaseStatements( Resource subj, URI pred, Value obj,
+                boolean includeInferred, Resource... contexts )
+            throws SailException
         {
-            return subject;
+            return connection.getStatements( subj, pred, obj,
+                includeInferred, false, contexts );
         }
+    }
+
+    /**
+     * The namespace changes made by a connection, never modified.
+     */
+    private static class NamespaceChanges
+    {
+        static final NamespaceChanges NONE = new NamespaceChanges( false,
+            Collections.<String, String>emptyMap() );
+        static final NamespaceChanges CLEARED = new NamespaceChanges( true,
+            Collections.<String, String>emptyMap() );
         
-        URI getPredicate()
-        {
-            return predicate;
-        }
+        // whether all namespaces were removed before the changes
+        final boolean cleared;
+        // prefix -> namespace, or -> null if removed
+        final Map<String, String> changes;
         
-        Value getObject()
+        NamespaceChanges( boolean cleared, Map<String, String> changes )
         {
-            return object;
+            this.cleared = cleared;
+            this.changes = changes;
         }
         
-        Resource[] getContexts()
+        NamespaceChanges with( String prefix, String uri )
         {
-            return contexts;
+            Map<String, String> result = new HashMap<String, String>( changes );
+            result.put( prefix, uri );
+            return new NamespaceChanges( cleared,
+                Collections.unmodifiableMap( result ) );
         }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,8 @@
 package org.neo4j.rdf.sail;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.neo4j.rdf.model.Context;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -24,7 +27,7 @@ public class GraphDatabaseSesameMapper {
                 ? (null == from.getLanguage())
                 // FIXME: casting to String may not be safe
                         ? VALUE_FACTORY.createLiteral((String) from.getValue())
-                        : VALUE_FACTORY.createLiteral((String) from.getValue(), from.getLanguage())
+                        : InternedValues.sesameLiteral((String) from.getValue(), from.getLanguage())
                 : VALUE_FACTORY.createLiteral((String) from.getValue(), createUri(from.getDatatype()));
     }
 
@@ -34,7 +37,7 @@ public class GraphDatabaseSesameMapper {
     }
 
     public static URI createUri(final org.neo4j.rdf.model.Uri from) {
-        return VALUE_FACTORY.createURI(from.getUriAsString());
+        return InternedValues.sesameUri(from.getUriAsString());
     }
 
     public static Resource createResource(final org.neo4j.rdf.model.Resource from) {
@@ -54,7 +57,7 @@ public class GraphDatabaseSesameMapper {
     public static Resource createContext(final org.neo4j.rdf.model.Context from) {
         // TODO: blank node contexts
         return from == null || from.equals( org.neo4j.rdf.model.Context.NULL ) ? null :
-            VALUE_FACTORY.createURI(from.getUriAsString());
+            InternedValues.sesameUri(from.getUriAsString());
     }
 
     public static Statement createStatement(final org.neo4j.rdf.model.CompleteStatement from,
@@ -82,5 +85,17 @@ public class GraphDatabaseSesameMapper {
         return result;
     }
 
+    /**
+     * Reads the metadata of a statement, must be called within a transaction.
+     */
+    public static Map<String, Literal> createMetadata(
+        final org.neo4j.rdf.model.CompleteStatement from) {
+        Map<String, Literal> result = new HashMap<String, Literal>();
+        for (String key : from.getMetadata().getKeys()) {
+            result.put(key, createLiteral(from.getMetadata().get(key)));
+        }
+        return result;
+    }
+
     // TODO (maybe): createNamespace
 }
@@ -20,12 +20,15 @@ public class GraphDatabaseStatementImpl implements GraphDatabaseStatement, Seria
         CompleteStatement graphDbStatement )
     {
         this.statement = statement;
-        this.metadata = new HashMap<String, Literal>();
-        for ( String key : graphDbStatement.getMetadata().getKeys() )
-        {
-            this.metadata.put( key, GraphDatabaseSesameMapper.createLiteral(
-                    graphDbStatement.getMetadata().get( key ) ) );
-        }
+        this.metadata = GraphDatabaseSesameMapper.createMetadata(
+            graphDbStatement );
+    }
+    
+    public GraphDatabaseStatementImpl( Statement statement,
+        Map<String, Literal> metadata )
+    {
+        this.statement = statement;
+        this.metadata = metadata;
     }
     
     public Resource getContext()
@@ -53,6 +56,18 @@ public class GraphDatabaseStatementImpl implements GraphDatabaseStatement, Seria
         return new HashMap<String, Literal>( this.metadata );
     }
     
+    @Override
+    public boolean equals( Object other )
+    {
+        return this == other || this.statement.equals( other );
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return this.statement.hashCode();
+    }
+    
     @Override
     public String toString()
     {
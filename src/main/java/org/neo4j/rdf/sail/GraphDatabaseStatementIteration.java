@@ -3,7 +3,6 @@ package org.neo4j.rdf.sail;
 import info.aduna.iteration.CloseableIteration;
 import org.openrdf.model.Statement;
 import org.openrdf.sail.SailException;
-import org.neo4j.rdf.model.CompleteStatement;
 
 import java.util.Iterator;
 
@@ -18,12 +17,38 @@ public class GraphDatabaseStatementIteration implements CloseableIteration<State
 
     private final Iterator<org.neo4j.rdf.model.CompleteStatement> iterator;
     private final GraphDatabaseSailConnectionImpl connection;
-    private Statement nextStatement;
+    private final boolean readMetadata;
+    private final Statement[] buffer;
+    private int bufferPosition;
+    private int bufferCount;
+    private boolean exhausted;
     
     public GraphDatabaseStatementIteration(final Iterator<org.neo4j.rdf.model.CompleteStatement> iterator, 
         final GraphDatabaseSailConnectionImpl connection ) {
+        this( iterator, connection, 1, true );
+    }
+
+    /**
+     * @param prefetchSize the number of statements to fetch and map each time
+     * the connection transaction is resumed. With a value of 1 every
+     * statement will be fetched in a transaction switch of its own, larger
+     * values trades memory for fewer transaction switches.
+     * @param readMetadata whether or not the returned statements should be
+     * {@link GraphDatabaseStatement}s, which can read their metadata.
+     * Otherwise they are plain Sesame statements.
+     */
+    public GraphDatabaseStatementIteration(final Iterator<org.neo4j.rdf.model.CompleteStatement> iterator, 
+        final GraphDatabaseSailConnectionImpl connection, int prefetchSize,
+        boolean readMetadata ) {
+        if ( prefetchSize < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid prefetch size " +
+                prefetchSize );
+        }
         this.iterator = iterator;
         this.connection = connection;
+        this.readMetadata = readMetadata;
+        this.buffer = new Statement[ prefetchSize ];
     }
 
     public void close() throws SailException {
@@ -31,20 +56,26 @@ public class GraphDatabaseStatementIteration implements CloseableIteration<State
     }
 
     public boolean hasNext() throws SailException {
-        if ( nextStatement != null )
+        if ( bufferPosition < bufferCount )
         {
             return true;
         }
+        if ( exhausted )
+        {
+            return false;
+        }
+        if ( connection.isReadOnly() )
+        {
+            // No transaction of its own to resume, so no need to serialize
+            // with other iterations on the same connection either.
+            return fillBuffer();
+        }
         synchronized ( connection )
         {
             Transaction otherTx = connection.suspendOtherAndResumeThis();
             try
             {
-                if ( iterator.hasNext() )
-                {
-                	nextStatement = fetchNextStatement();
-                }
-                return nextStatement != null;
+                return fillBuffer();
             }
             finally
             {
@@ -52,6 +83,24 @@ public class GraphDatabaseStatementIteration implements CloseableIteration<State
             }
         }
     }
+    
+    private boolean fillBuffer() throws SailException
+    {
+        bufferPosition = 0;
+        bufferCount = 0;
+        while ( bufferCount < buffer.length )
+        {
+            Statement statement = iterator.hasNext() ?
+                fetchNextStatement() : null;
+            if ( statement == null )
+            {
+                exhausted = true;
+                break;
+            }
+            buffer[ bufferCount++ ] = statement;
+        }
+        return bufferCount > 0;
+    }
 
     public Statement next() throws SailException 
     {
@@ -59,8 +108,8 @@ public class GraphDatabaseStatementIteration implements CloseableIteration<State
         {
             throw new IllegalStateException();
         }
-        Statement result = nextStatement;
-        nextStatement = null;
+        Statement result = buffer[ bufferPosition ];
+        buffer[ bufferPosition++ ] = null;
         return result;
     }
     
@@ -68,9 +117,15 @@ public class GraphDatabaseStatementIteration implements CloseableIteration<State
     {
         org.neo4j.rdf.model.CompleteStatement statement = iterator.next();
         //System.out.println("retrieved a statement: " + statement);
-                return (null == statement)
-                        // TODO: would be better here if iterator were an Iterator<CompleteStatement>
-                        ? null : GraphDatabaseSesameMapper.createStatement((CompleteStatement) statement, true);
+        if ( statement == null )
+        {
+            return null;
+        }
+        // The statements are converted lazily, and their metadata read
+        // only if asked for
+        return readMetadata ?
+            new LazyGraphDatabaseStatement( statement, connection ) :
+            GraphDatabaseSesameMapper.createStatement( statement, false );
     }
 
     public void remove() throws SailException {
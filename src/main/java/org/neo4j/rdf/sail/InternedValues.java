@@ -0,0 +1,127 @@
+package org.neo4j.rdf.sail;
+
+import org.neo4j.rdf.sail.utils.InterningCache;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+/**
+ * The caches shared by {@link GraphDatabaseSesameMapper} and
+ * {@link SesameGraphDatabaseMapper}, so that the URIs (including datatypes)
+ * and language tagged literals which are converted between the Sesame and
+ * neo4j-rdf models over and over, f.ex. the predicates of a query result,
+ * are created once per direction instead of once per statement.
+ * Literals with long labels aren't cached, they seldom repeat.
+ *
+ * The caches are static, i.e. shared by all sails in the JVM, and are
+ * sized and monitored through the static value cache methods of
+ * {@link GraphDatabaseSail}, f.ex.
+ * {@link GraphDatabaseSail#setValueCacheSize(int)}.
+ */
+class InternedValues
+{
+    static final int DEFAULT_CAPACITY = 10000;
+    private static final int MAX_LITERAL_LENGTH = 100;
+
+    private static final InterningCache<String, URI> SESAME_URIS =
+        new InterningCache<String, URI>( DEFAULT_CAPACITY );
+    private static final InterningCache<String, Literal> SESAME_LITERALS =
+        new InterningCache<String, Literal>( DEFAULT_CAPACITY );
+    private static final InterningCache<String, org.neo4j.rdf.model.Uri> URIS =
+        new InterningCache<String, org.neo4j.rdf.model.Uri>( DEFAULT_CAPACITY );
+    private static final InterningCache<String, org.neo4j.rdf.model.Literal>
+        LITERALS = new InterningCache<String, org.neo4j.rdf.model.Literal>(
+            DEFAULT_CAPACITY );
+    private static final InterningCache<?, ?>[] ALL = { SESAME_URIS,
+        SESAME_LITERALS, URIS, LITERALS };
+
+    private InternedValues()
+    {
+    }
+
+    static URI sesameUri( String uri )
+    {
+        URI result = SESAME_URIS.get( uri );
+        return result != null ? result :
+            SESAME_URIS.intern( uri, new URIImpl( uri ) );
+    }
+
+    static Literal sesameLiteral( String label, String language )
+    {
+        if ( label.length() > MAX_LITERAL_LENGTH )
+        {
+            return new LiteralImpl( label, language );
+        }
+        String key = languageKey( label, language );
+        Literal result = SESAME_LITERALS.get( key );
+        return result != null ? result :
+            SESAME_LITERALS.intern( key, new LiteralImpl( label, language ) );
+    }
+
+    static org.neo4j.rdf.model.Uri uri( String uri )
+    {
+        org.neo4j.rdf.model.Uri result = URIS.get( uri );
+        return result != null ? result :
+            URIS.intern( uri, new org.neo4j.rdf.model.Uri( uri ) );
+    }
+
+    static org.neo4j.rdf.model.Literal literal( String label, String language )
+    {
+        if ( label.length() > MAX_LITERAL_LENGTH )
+        {
+            return new org.neo4j.rdf.model.Literal( label, null, language );
+        }
+        String key = languageKey( label, language );
+        org.neo4j.rdf.model.Literal result = LITERALS.get( key );
+        return result != null ? result : LITERALS.intern( key,
+            new org.neo4j.rdf.model.Literal( label, null, language ) );
+    }
+
+    private static String languageKey( String label, String language )
+    {
+        // Language tags can't contain spaces, so the key is unambiguous
+        return language + " " + label;
+    }
+
+    static void setCapacity( int capacity )
+    {
+        for ( InterningCache<?, ?> cache : ALL )
+        {
+            cache.setCapacity( capacity );
+        }
+    }
+
+    static int getCapacity()
+    {
+        return SESAME_URIS.getCapacity();
+    }
+
+    static long getHitCount()
+    {
+        long count = 0;
+        for ( InterningCache<?, ?> cache : ALL )
+        {
+            count += cache.getHitCount();
+        }
+        return count;
+    }
+
+    static long getMissCount()
+    {
+        long count = 0;
+        for ( InterningCache<?, ?> cache : ALL )
+        {
+            count += cache.getMissCount();
+        }
+        return count;
+    }
+
+    static void clear()
+    {
+        for ( InterningCache<?, ?> cache : ALL )
+        {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.neo4j.rdf.sail;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.rdf.model.CompleteStatement;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.StatementImpl;
+
+/**
+ * A {@link GraphDatabaseStatement} which converts the parts of the
+ * underlying {@link CompleteStatement} to Sesame values on first access,
+ * so that f.ex. a scan which only looks at the subjects doesn't convert
+ * the objects. The metadata, which requires reading from the store, is
+ * read in the transaction of the connection the statement came from the
+ * first time {@link #getMetadata()} is called.
+ *
+ * When serialized (f.ex. over RMI) it's replaced by a fully read
+ * {@link GraphDatabaseStatementImpl}.
+ */
+class LazyGraphDatabaseStatement implements GraphDatabaseStatement, Serializable
+{
+    private final transient CompleteStatement source;
+    private final transient GraphDatabaseSailConnectionImpl connection;
+    private Resource subject;
+    private URI predicate;
+    private Value object;
+    private Resource context;
+    private boolean contextConverted;
+    private Map<String, Literal> metadata;
+
+    LazyGraphDatabaseStatement( CompleteStatement source,
+        GraphDatabaseSailConnectionImpl connection )
+    {
+        this.source = source;
+        this.connection = connection;
+    }
+
+    public Resource getSubject()
+    {
+        if ( subject == null )
+        {
+            subject = GraphDatabaseSesameMapper.createResource(
+                source.getSubject() );
+        }
+        return subject;
+    }
+
+    public URI getPredicate()
+    {
+        if ( predicate == null )
+        {
+            predicate = GraphDatabaseSesameMapper.createUri(
+                source.getPredicate() );
+        }
+        return predicate;
+    }
+
+    public Value getObject()
+    {
+        if ( object == null )
+        {
+            object = GraphDatabaseSesameMapper.createValue(
+                source.getObject() );
+        }
+        return object;
+    }
+
+    public Resource getContext()
+    {
+        if ( !contextConverted )
+        {
+            context = GraphDatabaseSesameMapper.createContext(
+                source.getContext() );
+            contextConverted = true;
+        }
+        return context;
+    }
+
+    public Map<String, Literal> getMetadata()
+    {
+        if ( metadata == null )
+        {
+            metadata = connection.readMetadata( source );
+        }
+        return new HashMap<String, Literal>( metadata );
+    }
+
+    private Object writeReplace() throws ObjectStreamException
+    {
+        Resource context = getContext();
+        Statement statement = context == null ?
+            new StatementImpl( getSubject(), getPredicate(), getObject() ) :
+            new ContextStatementImpl( getSubject(), getPredicate(), getObject(),
+                context );
+        return new GraphDatabaseStatementImpl( statement, getMetadata() );
+    }
+
+    @Override
+    public boolean equals( Object other )
+    {
+        // Same as the Sesame statements, the context isn't considered
+        if ( this == other )
+        {
+            return true;
+        }
+        if ( !( other instanceof Statement ) )
+        {
+            return false;
+        }
+        Statement statement = ( Statement ) other;
+        return getObject().equals( statement.getObject() ) &&
+            getSubject().equals( statement.getSubject() ) &&
+            getPredicate().equals( statement.getPredicate() );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 961 * getSubject().hashCode() + 31 * getPredicate().hashCode() +
+            getObject().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder( "(" );
+        result.append( getSubject() ).append( ", " ).append( getPredicate() )
+            .append( ", " ).append( getObject() ).append( ")" );
+        if ( getContext() != null )
+        {
+            result.append( " [" ).append( getContext() ).append( "]" );
+        }
+        return result.toString();
+    }
+}
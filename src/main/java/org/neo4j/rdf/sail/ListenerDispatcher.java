@@ -0,0 +1,281 @@
+package org.neo4j.rdf.sail;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.rdf.sail.utils.MutatingLogger;
+
+/**
+ * Delivers listener events asynchronously. Each listener gets a bounded
+ * queue and a thread of its own which delivers the events in the order they
+ * were dispatched, so a slow listener (f.ex. one which is called over RMI)
+ * neither delays the writer nor the other listeners. What happens when a
+ * queue is full is decided by the {@link ListenerOverflowPolicy}.
+ *
+ * Exceptions thrown by a listener are logged, they can't be propagated to
+ * the writer.
+ */
+class ListenerDispatcher
+{
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    // how often a thread with nothing to deliver checks if it's stopped
+    private static final long POLL_MILLIS = 100;
+
+    private final int queueSize;
+    private final ListenerOverflowPolicy policy;
+    private final Map<Object, ListenerQueue> queues =
+        new IdentityHashMap<Object, ListenerQueue>();
+    // stopped queues which still have events to deliver, guarded by queues
+    private final List<ListenerQueue> stoppedQueues =
+        new ArrayList<ListenerQueue>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private boolean shutdown;
+
+    ListenerDispatcher( int queueSize, ListenerOverflowPolicy policy )
+    {
+        if ( queueSize < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid queue size " +
+                queueSize );
+        }
+        this.queueSize = queueSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues {@code event} for delivery to {@code listener}.
+     * @param listener the listener which {@code event} is for.
+     * @param event the delivery of the event, i.e. the call to the listener.
+     */
+    void dispatch( Object listener, Runnable event )
+    {
+        ListenerQueue queue;
+        synchronized ( queues )
+        {
+            if ( shutdown )
+            {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            queue = queues.get( listener );
+            if ( queue == null )
+            {
+                queue = new ListenerQueue( listener );
+                queues.put( listener, queue );
+            }
+        }
+        queue.add( event );
+    }
+
+    /**
+     * Stops delivering events to {@code listener}, after the events already
+     * queued for it have been delivered. {@link #awaitDelivery(long)} waits
+     * for those too.
+     * @param listener the listener to stop delivering events to.
+     */
+    void remove( Object listener )
+    {
+        ListenerQueue queue;
+        synchronized ( queues )
+        {
+            queue = queues.remove( listener );
+            if ( queue != null )
+            {
+                stoppedQueues.add( queue );
+            }
+        }
+        if ( queue != null )
+        {
+            queue.stop();
+        }
+    }
+
+    /**
+     * Waits until all events dispatched so far have been delivered.
+     * @param timeoutMillis the maximum time to wait.
+     * @return {@code true} if all events were delivered within the timeout.
+     */
+    boolean awaitDelivery( long timeoutMillis ) throws InterruptedException
+    {
+        long endTime = System.currentTimeMillis() + timeoutMillis;
+        while ( true )
+        {
+            boolean delivered = true;
+            for ( ListenerQueue queue : queues() )
+            {
+                delivered &= queue.pending.get() == 0;
+            }
+            if ( delivered )
+            {
+                return true;
+            }
+            if ( System.currentTimeMillis() >= endTime )
+            {
+                return false;
+            }
+            Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Delivers the queued events and stops all the threads. Events
+     * dispatched after this call are dropped.
+     */
+    void shutdown()
+    {
+        List<ListenerQueue> stopped;
+        synchronized ( queues )
+        {
+            shutdown = true;
+            stopped = new ArrayList<ListenerQueue>( queues.values() );
+            stoppedQueues.addAll( stopped );
+            queues.clear();
+        }
+        for ( ListenerQueue queue : stopped )
+        {
+            queue.stop();
+        }
+    }
+
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    private List<ListenerQueue> queues()
+    {
+        synchronized ( queues )
+        {
+            List<ListenerQueue> result =
+                new ArrayList<ListenerQueue>( queues.values() );
+            result.addAll( stoppedQueues );
+            return result;
+        }
+    }
+
+    private class ListenerQueue implements Runnable
+    {
+        private final BlockingQueue<Runnable> events =
+            new ArrayBlockingQueue<Runnable>( queueSize );
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Object listener;
+        // set while synchronized on this, so that an event is either counted
+        // as pending before the queue is stopped or dropped
+        private volatile boolean stopped;
+
+        ListenerQueue( Object listener )
+        {
+            this.listener = listener;
+            Thread thread = new Thread( this, "SailListenerDispatcher-" +
+                threadCounter.incrementAndGet() );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        void add( Runnable event )
+        {
+            synchronized ( this )
+            {
+                if ( stopped )
+                {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                pending.incrementAndGet();
+            }
+            switch ( policy )
+            {
+            case BLOCK:
+                try
+                {
+                    events.put( event );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    dropped();
+                }
+                break;
+            case DROP_NEWEST:
+                if ( !events.offer( event ) )
+                {
+                    dropped();
+                }
+                break;
+            case DROP_OLDEST:
+                while ( !events.offer( event ) )
+                {
+                    if ( events.poll() != null )
+                    {
+                        dropped();
+                    }
+                }
+                break;
+            }
+        }
+
+        private void dropped()
+        {
+            pending.decrementAndGet();
+            droppedCount.incrementAndGet();
+        }
+
+        /**
+         * Makes the thread exit once the pending events have been delivered
+         * (or dropped). Events added after this call are dropped.
+         */
+        synchronized void stop()
+        {
+            stopped = true;
+        }
+
+        private boolean isFinished()
+        {
+            return stopped && pending.get() == 0;
+        }
+
+        public void run()
+        {
+            while ( !isFinished() )
+            {
+                Runnable event;
+                try
+                {
+                    event = events.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    continue;
+                }
+                if ( event == null )
+                {
+                    continue;
+                }
+                try
+                {
+                    event.run();
+                }
+                catch ( RuntimeException e )
+                {
+                    MutatingLogger.getLogger().warn( "Listener " + listener +
+                        " failed to handle event", e );
+                }
+                finally
+                {
+                    pending.decrementAndGet();
+                }
+            }
+            synchronized ( queues )
+            {
+                stoppedQueues.remove( this );
+            }
+        }
+    }
+}
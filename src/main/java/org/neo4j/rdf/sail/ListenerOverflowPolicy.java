@@ -0,0 +1,25 @@
+package org.neo4j.rdf.sail;
+
+/**
+ * What to do with a listener event when the queue of the listener is full,
+ * see {@link GraphDatabaseSail#setAsynchronousListeners(int,
+ * ListenerOverflowPolicy)}.
+ */
+public enum ListenerOverflowPolicy
+{
+    /**
+     * Wait for the listener to catch up, i.e. slow listeners throttle the
+     * writers, but no events are lost.
+     */
+    BLOCK,
+
+    /**
+     * Drop the new event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest event in the queue to make room for the new one.
+     */
+    DROP_OLDEST
+}
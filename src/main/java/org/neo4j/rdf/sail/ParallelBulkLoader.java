@@ -0,0 +1,335 @@
+package org.neo4j.rdf.sail;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.neo4j.rdf.sail.utils.MutatingLogger;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.sail.SailException;
+
+/**
+ * Loads several files at once: the files are parsed by a pool of parser
+ * threads while the calling thread writes the statements to the store
+ * through a {@link BulkLoader}. The parsers hand the statements over in
+ * chunks, on a bounded queue, so they can't get further ahead of the
+ * writer than the size of the queue.
+ *
+ * If a file fails to parse, or the writer fails, the other parsers are
+ * stopped and the load fails. The transactions committed before that stay
+ * committed.
+ */
+class ParallelBulkLoader
+{
+    private static final int CHUNK_SIZE = 1000;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final List<Statement> END_OF_FILE =
+        new ArrayList<Statement>( 0 );
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final BulkLoader writer;
+    private final ValueFactory valueFactory;
+    private final int parserThreads;
+    private final BlockingQueue<List<Statement>> queue;
+    private final AtomicLong parsedCount = new AtomicLong();
+    private final AtomicLong parserBlockedNanos = new AtomicLong();
+    private final AtomicLong parseEndNanos = new AtomicLong();
+    private final AtomicReference<Exception> failure =
+        new AtomicReference<Exception>();
+    private volatile boolean cancelled;
+
+    /**
+     * @param writer the loader to write the statements with.
+     * @param parserThreads the number of files to parse at once.
+     * @param queueSize the number of chunks of statements which may wait
+     * for the writer.
+     */
+    ParallelBulkLoader( BulkLoader writer, ValueFactory valueFactory,
+        int parserThreads, int queueSize )
+    {
+        if ( parserThreads < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid number of threads " +
+                parserThreads );
+        }
+        this.writer = writer;
+        this.valueFactory = valueFactory;
+        this.parserThreads = parserThreads;
+        this.queue = new ArrayBlockingQueue<List<Statement>>(
+            queueSize );
+    }
+
+    /**
+     * @param format the format of the files, or {@code null} to guess the
+     * format of each file from its name.
+     * @param contexts the contexts to add the statements to, if empty the
+     * statements are added to the context they were parsed with.
+     */
+    BulkLoadReport load( List<File> files, RDFFormat format, String baseUri,
+        Resource... contexts ) throws IOException, RDFParseException,
+        SailException
+    {
+        long startNanos = System.nanoTime();
+        parseEndNanos.set( startNanos );
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min( parserThreads, Math.max( 1, files.size() ) ),
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable task )
+                {
+                    Thread thread = new Thread( task, "SailBulkLoadParser-" +
+                        threadCounter.incrementAndGet() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        for ( File file : files )
+        {
+            executor.execute( new ParseTask( file, format, baseUri,
+                contexts ) );
+        }
+        executor.shutdown();
+
+        long idleNanos = 0;
+        long writeNanos = 0;
+        boolean loaded = false;
+        try
+        {
+            writer.start();
+            int finishedFiles = 0;
+            while ( finishedFiles < files.size() )
+            {
+                long waitStart = System.nanoTime();
+                List<Statement> chunk = queue.take();
+                long writeStart = System.nanoTime();
+                idleNanos += writeStart - waitStart;
+                throwIfFailed();
+                if ( chunk == END_OF_FILE )
+                {
+                    finishedFiles++;
+                    continue;
+                }
+                for ( Statement statement : chunk )
+                {
+                    writer.add( statement );
+                }
+                writeNanos += System.nanoTime() - writeStart;
+            }
+            long writeStart = System.nanoTime();
+            writer.finish();
+            writeNanos += System.nanoTime() - writeStart;
+            loaded = true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new SailException( "Interrupted while loading", e );
+        }
+        finally
+        {
+            if ( !loaded )
+            {
+                cancelled = true;
+                executor.shutdownNow();
+                queue.clear();
+                writer.abort();
+            }
+        }
+        long endNanos = System.nanoTime();
+        return new BulkLoadReport( files.size(), parsedCount.get(),
+            writer.getAddedCount(), millis( endNanos - startNanos ),
+            millis( parseEndNanos.get() - startNanos ), millis( writeNanos ),
+            millis( parserBlockedNanos.get() ), millis( idleNanos ) );
+    }
+
+    private void throwIfFailed() throws IOException, RDFParseException,
+        SailException
+    {
+        Exception e = failure.get();
+        if ( e == null )
+        {
+            return;
+        }
+        if ( e instanceof IOException )
+        {
+            throw ( IOException ) e;
+        }
+        if ( e instanceof RDFParseException )
+        {
+            throw ( RDFParseException ) e;
+        }
+        if ( e instanceof SailException )
+        {
+            throw ( SailException ) e;
+        }
+        throw new SailException( e );
+    }
+
+    private static long millis( long nanos )
+    {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Waits for room in the queue, unless the load has been cancelled.
+     * @return {@code false} if the load was cancelled.
+     */
+    private boolean put( List<Statement> chunk )
+    {
+        if ( queue.offer( chunk ) )
+        {
+            return true;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            while ( !cancelled )
+            {
+                if ( queue.offer( chunk, OFFER_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch ( InterruptedException e )
+        {
+            // Only interrupted when cancelled
+            return false;
+        }
+        finally
+        {
+            parserBlockedNanos.addAndGet( System.nanoTime() - start );
+        }
+    }
+
+    private class ParseTask implements Runnable
+    {
+        private final File file;
+        private final RDFFormat format;
+        private final String baseUri;
+        private final Resource[] contexts;
+        private List<Statement> chunk =
+            new ArrayList<Statement>( CHUNK_SIZE );
+
+        ParseTask( File file, RDFFormat format, String baseUri,
+            Resource[] contexts )
+        {
+            this.file = file;
+            this.format = format;
+            this.baseUri = baseUri;
+            this.contexts = contexts;
+        }
+
+        public void run()
+        {
+            try
+            {
+                parse();
+                if ( !chunk.isEmpty() )
+                {
+                    queueChunk();
+                }
+            }
+            catch ( Exception e )
+            {
+                if ( !cancelled )
+                {
+                    MutatingLogger.getLogger().warn( "Failed to load " +
+                        file, e );
+                    if ( e instanceof RDFHandlerException &&
+                        e.getCause() instanceof Exception )
+                    {
+                        e = ( Exception ) e.getCause();
+                    }
+                    failure.compareAndSet( null, e );
+                }
+            }
+            finally
+            {
+                long now = System.nanoTime();
+                while ( true )
+                {
+                    long end = parseEndNanos.get();
+                    if ( end >= now || parseEndNanos.compareAndSet( end, now ) )
+                    {
+                        break;
+                    }
+                }
+                put( END_OF_FILE );
+            }
+        }
+
+        private void parse() throws Exception
+        {
+            RDFFormat fileFormat = format != null ? format :
+                RDFFormat.forFileName( file.getName() );
+            if ( fileFormat == null )
+            {
+                throw new SailException( "Unknown RDF format of " + file );
+            }
+            RDFParser parser = Rio.createParser( fileFormat, valueFactory );
+            parser.setRDFHandler( new BulkLoader.TargetContextHandler( contexts )
+            {
+                @Override
+                void handle( Statement statement )
+                    throws SailException
+                {
+                    chunk.add( statement );
+                    if ( chunk.size() >= CHUNK_SIZE )
+                    {
+                        queueChunk();
+                    }
+                }
+
+                @Override
+                public void handleNamespace( String prefix, String uri )
+                {
+                    writer.namespace( prefix, uri );
+                }
+            } );
+            InputStream in = new BufferedInputStream(
+                new FileInputStream( file ) );
+            try
+            {
+                parser.parse( in, baseUri );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        private void queueChunk() throws SailException
+        {
+            int size = chunk.size();
+            if ( !put( chunk ) )
+            {
+                throw new SailException( "Load cancelled" );
+            }
+            parsedCount.addAndGet( size );
+            chunk = new ArrayList<Statement>( CHUNK_SIZE );
+        }
+    }
+}
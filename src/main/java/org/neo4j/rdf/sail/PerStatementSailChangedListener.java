@@ -0,0 +1,13 @@
+package org.neo4j.rdf.sail;
+
+import org.openrdf.sail.SailChangedListener;
+
+/**
+ * A {@link SailChangedListener} which is notified of every add and remove
+ * when it's made, before it's committed, instead of once per commit with a
+ * {@link GraphDatabaseSailChangedEvent}. This is considerably more
+ * expensive for large transactions, since there's one event per call.
+ */
+public interface PerStatementSailChangedListener extends SailChangedListener
+{
+}
@@ -0,0 +1,197 @@
+package org.neo4j.rdf.sail;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.QueryRoot;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
+import org.openrdf.query.algebra.evaluation.impl.CompareOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
+import org.openrdf.query.algebra.evaluation.impl.ConstantOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.evaluation.impl.FilterOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.QueryJoinOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.SameTermFilterOptimizer;
+
+/**
+ * The Sesame query optimizers which are run on a query before it's
+ * evaluated by a {@link GraphDatabaseSailConnection}, in the order of the
+ * {@link Stage}s. Each stage can be switched on and off and the time spent
+ * in each stage is accumulated, see {@link #getTotalTime(Stage)}.
+ * All stages are enabled by default.
+ */
+public class QueryOptimizerPipeline
+{
+    public static enum Stage
+    {
+        /**
+         * Replaces variables with the values given in the bindings.
+         */
+        BINDING_ASSIGNER,
+
+        /**
+         * Evaluates constant expressions up front.
+         */
+        CONSTANT_OPTIMIZER,
+
+        /**
+         * Turns comparisons of resources into SameTerm.
+         */
+        COMPARE_OPTIMIZER,
+
+        /**
+         * Splits filters on AND into one filter per operand.
+         */
+        CONJUNCTIVE_CONSTRAINT_SPLITTER,
+
+        /**
+         * Binds SameTerm constants into the statement patterns.
+         */
+        SAME_TERM_FILTER_OPTIMIZER,
+
+        /**
+         * Orders joins by estimated cardinality, see
+         * {@link GraphDatabaseEvaluationStatistics}.
+         */
+        QUERY_JOIN_OPTIMIZER,
+
+        /**
+         * Pushes filters down below the joins, as close to the patterns
+         * binding their variables as possible.
+         */
+        FILTER_OPTIMIZER
+    }
+
+    private final Set<Stage> enabledStages = EnumSet.allOf( Stage.class );
+    private final AtomicLong[] invocations = newCounters();
+    private final AtomicLong[] nanos = newCounters();
+
+    private static AtomicLong[] newCounters()
+    {
+        AtomicLong[] counters = new AtomicLong[ Stage.values().length ];
+        for ( int i = 0; i < counters.length; i++ )
+        {
+            counters[ i ] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    public void setEnabled( Stage stage, boolean enabled )
+    {
+        synchronized ( enabledStages )
+        {
+            if ( enabled )
+            {
+                enabledStages.add( stage );
+            }
+            else
+            {
+                enabledStages.remove( stage );
+            }
+        }
+    }
+
+    public boolean isEnabled( Stage stage )
+    {
+        synchronized ( enabledStages )
+        {
+            return enabledStages.contains( stage );
+        }
+    }
+
+    /**
+     * @param stage the optimizer stage.
+     * @return the number of times {@code stage} has been run.
+     */
+    public long getInvocationCount( Stage stage )
+    {
+        return invocations[ stage.ordinal() ].get();
+    }
+
+    /**
+     * @param stage the optimizer stage.
+     * @return the total time, in milliseconds, spent in {@code stage}.
+     */
+    public double getTotalTime( Stage stage )
+    {
+        return nanos[ stage.ordinal() ].get() / 1000000.0;
+    }
+
+    public void resetTimings()
+    {
+        for ( int i = 0; i < invocations.length; i++ )
+        {
+            invocations[ i ].set( 0 );
+            nanos[ i ].set( 0 );
+        }
+    }
+
+    /**
+     * Runs the enabled stages on a copy of {@code tupleExpr}.
+     *
+     * @param tupleExpr the query to optimize, it's left untouched.
+     * @param dataset the dataset of the query.
+     * @param bindings the bindings of the query.
+     * @param strategy the strategy which will evaluate the query.
+     * @param statistics the statistics to order joins with.
+     * @return the optimized copy of the query.
+     */
+    TupleExpr optimize( TupleExpr tupleExpr, Dataset dataset,
+        BindingSet bindings, EvaluationStrategy strategy,
+        EvaluationStatistics statistics )
+    {
+        TupleExpr optimizedExpr = tupleExpr.clone();
+        if ( !( optimizedExpr instanceof QueryRoot ) )
+        {
+            // Gives the optimizers a parent to replace the root with
+            optimizedExpr = new QueryRoot( optimizedExpr );
+        }
+
+        Stage[] stages;
+        synchronized ( enabledStages )
+        {
+            stages = enabledStages.toArray( new Stage[ enabledStages.size() ] );
+        }
+        for ( Stage stage : stages )
+        {
+            QueryOptimizer optimizer = createOptimizer( stage, strategy,
+                statistics );
+            long startTime = System.nanoTime();
+            optimizer.optimize( optimizedExpr, dataset, bindings );
+            nanos[ stage.ordinal() ].addAndGet(
+                System.nanoTime() - startTime );
+            invocations[ stage.ordinal() ].incrementAndGet();
+        }
+        return optimizedExpr;
+    }
+
+    private QueryOptimizer createOptimizer( Stage stage,
+        EvaluationStrategy strategy, EvaluationStatistics statistics )
+    {
+        switch ( stage )
+        {
+        case BINDING_ASSIGNER:
+            return new BindingAssigner();
+        case CONSTANT_OPTIMIZER:
+            return new ConstantOptimizer( strategy );
+        case COMPARE_OPTIMIZER:
+            return new CompareOptimizer();
+        case CONJUNCTIVE_CONSTRAINT_SPLITTER:
+            return new ConjunctiveConstraintSplitter();
+        case SAME_TERM_FILTER_OPTIMIZER:
+            return new SameTermFilterOptimizer();
+        case QUERY_JOIN_OPTIMIZER:
+            return new QueryJoinOptimizer( statistics );
+        case FILTER_OPTIMIZER:
+            return new FilterOptimizer();
+        default:
+            throw new IllegalArgumentException( "Unknown stage " + stage );
+        }
+    }
+}
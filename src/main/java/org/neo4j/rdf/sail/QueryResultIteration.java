@@ -31,6 +31,10 @@ public class QueryResultIteration
     @Override
     public boolean hasNext()
     {
+        if ( connection.isReadOnly() )
+        {
+            return super.hasNext();
+        }
         synchronized ( connection )
         {
             Transaction otherTx = connection.suspendOtherAndResumeThis();
@@ -48,6 +52,10 @@ public class QueryResultIteration
     @Override
     public FulltextQueryResult next()
     {
+        if ( connection.isReadOnly() )
+        {
+            return super.next();
+        }
         synchronized ( connection )
         {
             Transaction otherTx = connection.suspendOtherAndResumeThis();
@@ -66,6 +74,9 @@ public class QueryResultIteration
     protected FulltextQueryResult underlyingObjectToObject(
         QueryResult object )
     {
-        return new FulltextQueryResult( object );
+        // The statement is converted when it's looked at
+        return new FulltextQueryResult( new LazyGraphDatabaseStatement(
+            object.getStatement(), connection ), object.getScore(),
+            object.getSnippet() );
     }
 }
@@ -0,0 +1,404 @@
+package org.neo4j.rdf.sail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.rdf.sail.changelog.ChangeLogOperation;
+import org.neo4j.rdf.sail.changelog.ChangeLogReader;
+import org.neo4j.rdf.sail.changelog.ChangeLogTransaction;
+import org.neo4j.rdf.sail.utils.MutatingLogger;
+import org.neo4j.rdf.store.RdfStore;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.NotifyingSailConnection;
+import org.openrdf.sail.SailChangedListener;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * A read-only copy of a primary {@link GraphDatabaseSail}, kept in a store
+ * of its own. The transactions the primary commits to its change log, see
+ * {@link GraphDatabaseSail#setChangeLog(File)}, are applied to the copy in
+ * order by a background thread, so reads are served locally and see the
+ * primary as it was a short while ago, see {@link #getLagMillis()}. Each
+ * transaction of the log is applied in one local transaction, so reads
+ * never see a part of one.
+ *
+ * The sequence number of the last applied transaction is kept in a position
+ * file, so that a restarted replica continues where it stopped. It's written
+ * after the transaction has been committed, so the last transaction may be
+ * applied twice after a crash. That's harmless: adds of existing statements
+ * and removes of missing ones don't change the store.
+ *
+ * The statements and namespaces are replicated, statement metadata isn't:
+ * the change log doesn't contain the metadata of
+ * {@link GraphDatabaseSailConnection#addStatement(java.util.Map,
+ * org.openrdf.model.Resource, org.openrdf.model.URI,
+ * org.openrdf.model.Value, org.openrdf.model.Resource...)} or the changes of
+ * {@link GraphDatabaseSailConnection#setStatementMetadata(
+ * org.openrdf.model.Statement, java.util.Map)}, so the statements of the
+ * replica have none.
+ */
+public class ReplicaSail implements NotifyingSail
+{
+    private static final long POLL_MILLIS = 100;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final GraphDatabaseSail localSail;
+    private final File changeLogDirectory;
+    private final File positionFile;
+    private final Object appliedLock = new Object();
+    private final AtomicLong appliedCount = new AtomicLong();
+    private volatile long lastAppliedSequence;
+    // the commit time of the transaction being applied, 0 when caught up
+    private volatile long pendingTimestamp;
+    private volatile long maxLagMillis;
+    private volatile boolean running;
+    private Thread applier;
+
+    /**
+     * @param graphDb the local database to keep the copy in.
+     * @param store the local store to keep the copy in.
+     * @param changeLogDirectory the directory of the change log of the
+     * primary.
+     * @param positionFile the file to keep the sequence number of the last
+     * applied transaction in.
+     */
+    public ReplicaSail( GraphDatabaseService graphDb, RdfStore store,
+        File changeLogDirectory, File positionFile )
+    {
+        this.localSail = new GraphDatabaseSail( graphDb, store );
+        this.changeLogDirectory = changeLogDirectory;
+        this.positionFile = positionFile;
+    }
+
+    /**
+     * @return the local sail the changes are applied to.
+     */
+    public GraphDatabaseSail getLocalSail()
+    {
+        return localSail;
+    }
+
+    /**
+     * Makes {@link #getConnection()} fail while the replica is more than
+     * {@code millis} behind the primary, rather than serve reads which are
+     * too old. 0, the default, means no limit.
+     */
+    public void setMaxLagMillis( long millis )
+    {
+        this.maxLagMillis = millis;
+    }
+
+    public long getMaxLagMillis()
+    {
+        return maxLagMillis;
+    }
+
+    /**
+     * @return how far behind the primary the replica is: the time since the
+     * oldest transaction which hasn't been applied yet was committed, or 0
+     * if all transactions in the change log have been applied.
+     */
+    public long getLagMillis()
+    {
+        long timestamp = pendingTimestamp;
+        return timestamp == 0 ? 0 :
+            Math.max( 0, System.currentTimeMillis() - timestamp );
+    }
+
+    /**
+     * @return the sequence number of the last applied transaction.
+     */
+    public long getLastAppliedSequence()
+    {
+        return lastAppliedSequence;
+    }
+
+    /**
+     * @return the number of transactions applied since the replica was
+     * initialized.
+     */
+    public long getAppliedTransactionCount()
+    {
+        return appliedCount.get();
+    }
+
+    /**
+     * Waits for a transaction to be applied, f.ex. to read the writes made
+     * on the primary, see {@link
+     * org.neo4j.rdf.sail.changelog.ChangeLogWriter#getLastSequence()}.
+     * @param sequence the sequence number of the transaction.
+     * @param timeoutMillis the maximum time to wait.
+     * @return {@code true} if the transaction has been applied.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitSequence( long sequence, long timeoutMillis )
+        throws InterruptedException
+    {
+        long endTime = System.currentTimeMillis() + timeoutMillis;
+        synchronized ( appliedLock )
+        {
+            while ( lastAppliedSequence < sequence )
+            {
+                long left = endTime - System.currentTimeMillis();
+                if ( left <= 0 )
+                {
+                    return false;
+                }
+                appliedLock.wait( left );
+            }
+        }
+        return true;
+    }
+
+    public void setDataDir( File dataDir )
+    {
+        localSail.setDataDir( dataDir );
+    }
+
+    public File getDataDir()
+    {
+        return localSail.getDataDir();
+    }
+
+    /**
+     * Initializes the local sail and starts applying the transactions after
+     * the one in the position file.
+     */
+    public synchronized void initialize() throws SailException
+    {
+        localSail.initialize();
+        try
+        {
+            lastAppliedSequence = readPosition();
+        }
+        catch ( IOException e )
+        {
+            throw new SailException( e );
+        }
+        running = true;
+        applier = new Thread( "ReplicaSail applier " + changeLogDirectory )
+        {
+            @Override
+            public void run()
+            {
+                applyChanges();
+            }
+        };
+        applier.setDaemon( true );
+        applier.start();
+    }
+
+    /**
+     * Stops applying transactions, after the one being applied, and shuts
+     * down the local sail.
+     */
+    public synchronized void shutDown() throws SailException
+    {
+        running = false;
+        if ( applier != null )
+        {
+            try
+            {
+                applier.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            applier = null;
+        }
+        localSail.shutDown();
+    }
+
+    public boolean isWritable() throws SailException
+    {
+        return false;
+    }
+
+    /**
+     * @return a read-only connection to the local copy.
+     * @throws SailException if the replica is further behind than
+     * {@link #setMaxLagMillis(long)} allows.
+     */
+    public NotifyingSailConnection getConnection() throws SailException
+    {
+        long maxLag = maxLagMillis;
+        long lag = getLagMillis();
+        if ( maxLag > 0 && lag > maxLag )
+        {
+            throw new SailException( "Replica is " + lag +
+                "ms behind the primary, max is " + maxLag + "ms" );
+        }
+        return localSail.getReadOnlyConnection();
+    }
+
+    public ValueFactory getValueFactory()
+    {
+        return localSail.getValueFactory();
+    }
+
+    public void addSailChangedListener( SailChangedListener listener )
+    {
+        localSail.addSailChangedListener( listener );
+    }
+
+    public void removeSailChangedListener( SailChangedListener listener )
+    {
+        localSail.removeSailChangedListener( listener );
+    }
+
+    private void applyChanges()
+    {
+        ChangeLogReader reader = null;
+        while ( running )
+        {
+            try
+            {
+                if ( reader == null )
+                {
+                    reader = new ChangeLogReader( changeLogDirectory,
+                        lastAppliedSequence, localSail.getValueFactory() );
+                }
+                ChangeLogTransaction transaction = reader.next( POLL_MILLIS );
+                if ( transaction == null )
+                {
+                    pendingTimestamp = 0;
+                    continue;
+                }
+                pendingTimestamp = transaction.getTimestamp();
+                apply( transaction );
+                writePosition( transaction.getSequence() );
+                appliedCount.incrementAndGet();
+                synchronized ( appliedLock )
+                {
+                    lastAppliedSequence = transaction.getSequence();
+                    appliedLock.notifyAll();
+                }
+            }
+            catch ( Exception e )
+            {
+                // Start over from the last applied transaction, the lag
+                // keeps growing meanwhile
+                MutatingLogger.getLogger().error( "Couldn't apply change " +
+                    "log transaction " + ( lastAppliedSequence + 1 ) +
+                    " from " + changeLogDirectory, e );
+                if ( reader != null )
+                {
+                    reader.close();
+                    reader = null;
+                }
+                try
+                {
+                    Thread.sleep( RETRY_MILLIS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    return;
+                }
+            }
+        }
+        if ( reader != null )
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies {@code transaction} in a single local transaction, so that
+     * readers never see a part of it, whatever the batch size of the local
+     * sail.
+     */
+    private void apply( ChangeLogTransaction transaction )
+        throws SailException
+    {
+        SailConnection connection = localSail.getUnbatchedConnection();
+        try
+        {
+            for ( ChangeLogOperation operation : transaction.getOperations() )
+            {
+                switch ( operation.getType() )
+                {
+                case ADD:
+                    connection.addStatement( operation.getSubject(),
+                        operation.getPredicate(), operation.getObject(),
+                        operation.getContexts() );
+                    break;
+                case REMOVE:
+                    connection.removeStatements( operation.getSubject(),
+                        operation.getPredicate(), operation.getObject(),
+                        operation.getContexts() );
+                    break;
+                case SET_NAMESPACE:
+                    connection.setNamespace( operation.getPrefix(),
+                        operation.getNamespace() );
+                    break;
+                case REMOVE_NAMESPACE:
+                    connection.removeNamespace( operation.getPrefix() );
+                    break;
+                case CLEAR_NAMESPACES:
+                    connection.clearNamespaces();
+                    break;
+                }
+            }
+            connection.commit();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    private long readPosition() throws IOException
+    {
+        if ( !positionFile.exists() )
+        {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+            new FileInputStream( positionFile ) );
+        try
+        {
+            return in.readLong();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void writePosition( long sequence ) throws IOException
+    {
+        // Written to a new file first, so that a crash leaves either the old
+        // or the new position
+        File newFile = new File( positionFile.getPath() + ".new" );
+        FileOutputStream out = new FileOutputStream( newFile );
+        try
+        {
+            DataOutputStream data = new DataOutputStream( out );
+            data.writeLong( sequence );
+            data.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if ( !newFile.renameTo( positionFile ) )
+        {
+            // Not atomic on all platforms
+            positionFile.delete();
+            if ( !newFile.renameTo( positionFile ) )
+            {
+                throw new IOException( "Couldn't write " + positionFile );
+            }
+        }
+    }
+}
@@ -17,6 +17,9 @@ import org.neo4j.rdf.sail.utils.ContextHandling;
  */
 public class SesameGraphDatabaseMapper {
     public static org.neo4j.rdf.model.Literal createLiteral(final Literal lit) {
+        if (null == lit.getDatatype() && null != lit.getLanguage()) {
+            return InternedValues.literal(lit.getLabel(), lit.getLanguage());
+        }
         org.neo4j.rdf.model.Uri datatype = (null == lit.getDatatype())
                 ? null : createUri(lit.getDatatype());
 
@@ -24,7 +27,7 @@ public class SesameGraphDatabaseMapper {
     }
 
     public static org.neo4j.rdf.model.Uri createUri(final URI uri) {
-        return new org.neo4j.rdf.model.Uri(uri.toString());
+        return InternedValues.uri(uri.toString());
     }
 
     public static BlankNode createBlankNode(final BNode bnode) {
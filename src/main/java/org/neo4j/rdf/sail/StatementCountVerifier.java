@@ -0,0 +1,64 @@
+package org.neo4j.rdf.sail;
+
+import java.util.List;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.index.IndexService;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.rdf.store.CachingLuceneIndexService;
+import org.neo4j.rdf.store.VerboseQuadStore;
+
+/**
+ * Recounts the statements of a store and compares the result with the
+ * counts maintained by {@link GraphDatabaseSail}, which {@code size()} and
+ * {@code getContextIDs()} are answered from, see
+ * {@link GraphDatabaseSail#verifyCounts(boolean)}. Nothing else may use
+ * the store while it's running.
+ *
+ * Usage: StatementCountVerifier [store directory] [--repair]
+ */
+public class StatementCountVerifier
+{
+    private static final String DEFAULT_DB_PATH = "var/neo4j";
+
+    public static void main( String[] args ) throws Exception
+    {
+        String path = DEFAULT_DB_PATH;
+        boolean repair = false;
+        for ( String arg : args )
+        {
+            if ( arg.equals( "--repair" ) )
+            {
+                repair = true;
+            }
+            else
+            {
+                path = arg;
+            }
+        }
+
+        GraphDatabaseService graphDb = new EmbeddedGraphDatabase( path );
+        IndexService indexService = new CachingLuceneIndexService( graphDb );
+        GraphDatabaseSail sail = new GraphDatabaseSail( graphDb,
+            new VerboseQuadStore( graphDb, indexService ) );
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            List<String> errors = sail.verifyCounts( repair );
+            long time = System.currentTimeMillis() - startTime;
+            for ( String error : errors )
+            {
+                System.out.println( error );
+            }
+            System.out.println( ( errors.isEmpty() ? "All counts are correct" :
+                errors.size() + " counts differ" +
+                ( repair ? ", repaired" : "" ) ) + " (" + time + " ms)" );
+        }
+        finally
+        {
+            sail.shutDown();
+            indexService.shutdown();
+            graphDb.shutdown();
+        }
+    }
+}
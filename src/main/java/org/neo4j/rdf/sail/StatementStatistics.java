@@ -0,0 +1,221 @@
+package org.neo4j.rdf.sail;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.rdf.model.CompleteStatement;
+import org.neo4j.rdf.model.Context;
+import org.neo4j.rdf.model.Uri;
+import org.neo4j.rdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+
+/**
+ * Statement counts used to estimate the cardinality of statement patterns
+ * when a query is optimized, see {@link GraphDatabaseEvaluationStatistics}.
+ * Keeps the total number of statements and the number of statements per
+ * predicate, per context and per class (i.e. number of rdf:type statements
+ * per object).
+ *
+ * The same class is used for the changes of a not yet committed
+ * transaction, which are added to the statistics of the sail on commit by
+ * {@link ContextIndex}, so counts may be negative in such an instance.
+ */
+public class StatementStatistics
+{
+    private static final String TYPE = RDF.TYPE.toString();
+
+    private final AtomicLong statementCount = new AtomicLong();
+    private final AtomicLong nullContextCount = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> predicateCounts =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> contextCounts =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> classCounts =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    public long getStatementCount()
+    {
+        return statementCount.get();
+    }
+
+    public long getPredicateCount( String predicateUri )
+    {
+        return get( predicateCounts, predicateUri );
+    }
+
+    /**
+     * @param contextUri the context, or {@code null} for the null context.
+     * @return the number of statements in the context.
+     */
+    public long getContextCount( String contextUri )
+    {
+        return contextUri == null ? nullContextCount.get() :
+            get( contextCounts, contextUri );
+    }
+
+    /**
+     * @return the non-zero counts of the contexts (not including the null
+     * context), sorted by context.
+     */
+    Map<String, Long> getContextCounts()
+    {
+        return nonZero( contextCounts );
+    }
+
+    /**
+     * @return the non-zero counts of the predicates, sorted by predicate.
+     */
+    Map<String, Long> getPredicateCounts()
+    {
+        return nonZero( predicateCounts );
+    }
+
+    /**
+     * @return the non-zero instance counts of the classes, sorted by class.
+     */
+    Map<String, Long> getClassCounts()
+    {
+        return nonZero( classCounts );
+    }
+
+    public long getClassInstanceCount( String classUri )
+    {
+        return get( classCounts, classUri );
+    }
+
+    public boolean isEmpty()
+    {
+        return statementCount.get() == 0 && predicateCounts.isEmpty();
+    }
+
+    void addStatementCount( long delta )
+    {
+        statementCount.addAndGet( delta );
+    }
+
+    /**
+     * @param contextUri the context, or {@code null} for the null context.
+     */
+    void addContextCount( String contextUri, long delta )
+    {
+        if ( contextUri == null )
+        {
+            nullContextCount.addAndGet( delta );
+        }
+        else
+        {
+            add( contextCounts, contextUri, delta );
+        }
+    }
+
+    void addPredicateCount( String predicateUri, long delta )
+    {
+        add( predicateCounts, predicateUri, delta );
+    }
+
+    void addClassInstanceCount( String classUri, long delta )
+    {
+        add( classCounts, classUri, delta );
+    }
+
+    void statementAdded( CompleteStatement statement )
+    {
+        update( statement, 1 );
+    }
+
+    void statementRemoved( CompleteStatement statement )
+    {
+        update( statement, -1 );
+    }
+
+    private void update( CompleteStatement statement, long delta )
+    {
+        statementCount.addAndGet( delta );
+        String predicate = statement.getPredicate().getUriAsString();
+        add( predicateCounts, predicate, delta );
+        Context context = statement.getContext();
+        if ( context == null || context.equals( Context.NULL ) )
+        {
+            nullContextCount.addAndGet( delta );
+        }
+        else
+        {
+            add( contextCounts, context.getUriAsString(), delta );
+        }
+        Value object = statement.getObject();
+        if ( TYPE.equals( predicate ) && object instanceof Uri )
+        {
+            add( classCounts, ( ( Uri ) object ).getUriAsString(), delta );
+        }
+    }
+
+    /**
+     * Adds all the counts of {@code changes} to this instance.
+     * @param changes the counts to add.
+     */
+    void add( StatementStatistics changes )
+    {
+        statementCount.addAndGet( changes.statementCount.get() );
+        nullContextCount.addAndGet( changes.nullContextCount.get() );
+        addAll( predicateCounts, changes.predicateCounts );
+        addAll( contextCounts, changes.contextCounts );
+        addAll( classCounts, changes.classCounts );
+    }
+
+    void clear()
+    {
+        statementCount.set( 0 );
+        nullContextCount.set( 0 );
+        predicateCounts.clear();
+        contextCounts.clear();
+        classCounts.clear();
+    }
+
+    private static Map<String, Long> nonZero( Map<String, AtomicLong> counts )
+    {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for ( Map.Entry<String, AtomicLong> entry : counts.entrySet() )
+        {
+            long count = entry.getValue().get();
+            if ( count != 0 )
+            {
+                result.put( entry.getKey(), count );
+            }
+        }
+        return result;
+    }
+
+    private static long get( Map<String, AtomicLong> counts, String key )
+    {
+        AtomicLong count = counts.get( key );
+        return count == null ? 0 : count.get();
+    }
+
+    private static void add( ConcurrentMap<String, AtomicLong> counts,
+        String key, long delta )
+    {
+        AtomicLong count = counts.get( key );
+        if ( count == null )
+        {
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent( key, newCount );
+            if ( count == null )
+            {
+                count = newCount;
+            }
+        }
+        count.addAndGet( delta );
+    }
+
+    private static void addAll( ConcurrentMap<String, AtomicLong> counts,
+        Map<String, AtomicLong> changes )
+    {
+        for ( Map.Entry<String, AtomicLong> entry : changes.entrySet() )
+        {
+            add( counts, entry.getKey(), entry.getValue().get() );
+        }
+    }
+}
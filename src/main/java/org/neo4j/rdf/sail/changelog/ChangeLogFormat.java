@@ -0,0 +1,89 @@
+package org.neo4j.rdf.sail.changelog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The layout of the change log files, shared by {@link ChangeLogWriter}
+ * and {@link ChangeLogReader}.
+ *
+ * The log is a directory of segment files, each named after the sequence
+ * number of its first transaction. A segment starts with a header (magic
+ * number, format version and first sequence number) followed by records,
+ * each one an int length followed by that many bytes. A length of 0 (or
+ * the end of the file) means that there are no more records in the segment
+ * yet. A record is either a transaction, the outcome of a transaction or
+ * a batch of dictionary entries. Each operation of a transaction starts
+ * with the ordinal of its {@link ChangeLogOperation.Type}.
+ *
+ * A transaction is written before it's committed, and its outcome, commit
+ * or abort, is the record right after it, in the same segment. The
+ * sequence number of an aborted transaction isn't used again.
+ *
+ * Values are written by {@link org.neo4j.rdf.sail.utils.ValueEncoding},
+ * except that URIs (and datatypes) are written as ids in the dictionary of
+ * the segment, which assigns ids in the order the entries were written,
+ * starting at 0. Each segment has its own dictionary, so it can be read on
+ * its own.
+ */
+class ChangeLogFormat
+{
+    static final int MAGIC = 0x4e52434c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final byte DICTIONARY_RECORD = 1;
+    static final byte TRANSACTION_RECORD = 2;
+    static final byte COMMIT_RECORD = 3;
+    static final byte ABORT_RECORD = 4;
+    // length, type and sequence number
+    static final int OUTCOME_RECORD_SIZE = 4 + 1 + 8;
+
+    private static final String SEGMENT_PREFIX = "changelog-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private ChangeLogFormat()
+    {
+    }
+
+    static File segmentFile( File directory, long firstSequence )
+    {
+        return new File( directory, SEGMENT_PREFIX +
+            String.format( "%019d", firstSequence ) + SEGMENT_SUFFIX );
+    }
+
+    static long firstSequence( File segment )
+    {
+        String name = segment.getName();
+        return Long.parseLong( name.substring( SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length() ) );
+    }
+
+    /**
+     * @return the segment files of the log, oldest first.
+     */
+    static List<File> listSegments( File directory )
+    {
+        File[] files = directory.listFiles( new FileFilter()
+        {
+            public boolean accept( File file )
+            {
+                return file.isFile() &&
+                    file.getName().startsWith( SEGMENT_PREFIX ) &&
+                    file.getName().endsWith( SEGMENT_SUFFIX );
+            }
+        } );
+        List<File> segments = new ArrayList<File>();
+        if ( files != null )
+        {
+            Collections.addAll( segments, files );
+        }
+        // Zero padded, so sorting by name sorts by sequence number
+        Collections.sort( segments );
+        return segments;
+    }
+}
@@ -0,0 +1,150 @@
+package org.neo4j.rdf.sail.changelog;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+/**
+ * An operation of a {@link ChangeLogTransaction}. An add or remove has the
+ * same arguments as the {@code addStatement} or {@code removeStatements}
+ * call which made it, for a remove any of the values may be {@code null},
+ * i.e. a wildcard. A namespace operation has a prefix, and a namespace if
+ * it was set.
+ */
+public class ChangeLogOperation
+{
+    public static enum Type
+    {
+        // The order is the one written to the log, which starts with the
+        // boolean adds and removes were first written as
+        REMOVE,
+        ADD,
+        SET_NAMESPACE,
+        REMOVE_NAMESPACE,
+        CLEAR_NAMESPACES
+    }
+
+    private static final Resource[] NO_CONTEXTS = new Resource[ 0 ];
+
+    private final Type type;
+    private final Resource subject;
+    private final URI predicate;
+    private final Value object;
+    private final Resource[] contexts;
+    private final String prefix;
+    private final String namespace;
+
+    public ChangeLogOperation( boolean add, Resource subject, URI predicate,
+        Value object, Resource... contexts )
+    {
+        this.type = add ? Type.ADD : Type.REMOVE;
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+        this.contexts = contexts;
+        this.prefix = null;
+        this.namespace = null;
+    }
+
+    /**
+     * Creates a namespace operation.
+     * @param type {@link Type#SET_NAMESPACE}, {@link Type#REMOVE_NAMESPACE}
+     * or {@link Type#CLEAR_NAMESPACES}.
+     * @param prefix the prefix, {@code null} for a clear.
+     * @param namespace the namespace, only for a set.
+     */
+    public ChangeLogOperation( Type type, String prefix, String namespace )
+    {
+        if ( type == Type.ADD || type == Type.REMOVE )
+        {
+            throw new IllegalArgumentException( type +
+                " isn't a namespace operation" );
+        }
+        this.type = type;
+        this.subject = null;
+        this.predicate = null;
+        this.object = null;
+        this.contexts = NO_CONTEXTS;
+        this.prefix = prefix;
+        this.namespace = namespace;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return {@code true} for an add, {@code false} for a remove or a
+     * namespace operation.
+     */
+    public boolean isAdd()
+    {
+        return type == Type.ADD;
+    }
+
+    public Resource getSubject()
+    {
+        return subject;
+    }
+
+    public URI getPredicate()
+    {
+        return predicate;
+    }
+
+    public Value getObject()
+    {
+        return object;
+    }
+
+    /**
+     * @return the contexts, empty means all contexts for a remove and the
+     * null context for an add.
+     */
+    public Resource[] getContexts()
+    {
+        return contexts;
+    }
+
+    /**
+     * @return the prefix of a set or remove of a namespace.
+     */
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * @return the namespace of a set of a namespace.
+     */
+    public String getNamespace()
+    {
+        return namespace;
+    }
+
+    @Override
+    public String toString()
+    {
+        switch ( type )
+        {
+        case SET_NAMESPACE:
+            return "setNamespace(" + prefix + ", " + namespace + ")";
+        case REMOVE_NAMESPACE:
+            return "removeNamespace(" + prefix + ")";
+        case CLEAR_NAMESPACES:
+            return "clearNamespaces()";
+        default:
+            break;
+        }
+        StringBuilder result = new StringBuilder(
+            type == Type.ADD ? "add(" : "remove(" );
+        result.append( subject ).append( ", " ).append( predicate )
+            .append( ", " ).append( object );
+        for ( Resource context : contexts )
+        {
+            result.append( ", " ).append( context );
+        }
+        return result.append( ")" ).toString();
+    }
+}
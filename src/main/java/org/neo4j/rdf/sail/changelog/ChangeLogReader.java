@@ -0,0 +1,374 @@
+package org.neo4j.rdf.sail.changelog;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.rdf.sail.utils.ValueEncoding;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+/**
+ * Reads the committed transactions of a change log in order, and keeps up
+ * with a {@link ChangeLogWriter} which is writing to it: when the reader
+ * has caught up {@link #next()} returns {@code null}, and a later call
+ * returns the transactions which have committed since. A transaction
+ * which has been written, but hasn't finished yet, is waited for, and an
+ * aborted one is skipped. The writer may be in another process.
+ */
+public class ChangeLogReader
+{
+    private static final long POLL_MILLIS = 10;
+
+    private final File directory;
+    private final ValueFactory valueFactory;
+    private final List<String> dictionary = new ArrayList<String>();
+    private final ValueEncoding.UriReader dictionaryReader =
+        new ValueEncoding.UriReader()
+    {
+        public String readUri( DataInput in ) throws IOException
+        {
+            int id = ValueEncoding.readVarInt( in );
+            if ( id >= dictionary.size() )
+            {
+                throw new IOException( "Unknown dictionary id " + id );
+            }
+            return dictionary.get( id );
+        }
+    };
+    private long segmentFirstSequence = -1;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long lastSequence;
+
+    /**
+     * @param directory the directory of the log.
+     * @param afterSequence the sequence number of the last transaction which
+     * shouldn't be read, 0 to read from the first transaction.
+     * @param valueFactory the factory to create the values with.
+     */
+    public ChangeLogReader( File directory, long afterSequence,
+        ValueFactory valueFactory )
+    {
+        this.directory = directory;
+        this.lastSequence = afterSequence;
+        this.valueFactory = valueFactory;
+    }
+
+    /**
+     * @return the sequence number of the last transaction read by
+     * {@link #next()}, whether it was returned or skipped because it was
+     * aborted, or the one the reader was created to read after.
+     */
+    public synchronized long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * @return the next transaction of the log, or {@code null} if there
+     * are no more transactions yet.
+     * @throws IOException if the log couldn't be read, or if it doesn't
+     * contain the next transaction because its segment has been deleted.
+     */
+    public synchronized ChangeLogTransaction next() throws IOException
+    {
+        while ( true )
+        {
+            if ( buffer == null && !openFirstSegment() )
+            {
+                return null;
+            }
+            if ( position + 4 <= buffer.limit() )
+            {
+                int length = buffer.getInt( position );
+                if ( length > 0 )
+                {
+                    if ( !isFinished( length ) )
+                    {
+                        return null;
+                    }
+                    ChangeLogTransaction transaction = readRecord( length );
+                    if ( transaction != null )
+                    {
+                        return transaction;
+                    }
+                    continue;
+                }
+            }
+            if ( !openNextSegment() )
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next transaction of the log.
+     * @param timeoutMillis the maximum time to wait.
+     * @return the next transaction, or {@code null} if none was committed in
+     * time.
+     * @throws IOException if the log couldn't be read.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public ChangeLogTransaction next( long timeoutMillis ) throws IOException,
+        InterruptedException
+    {
+        long endTime = System.currentTimeMillis() + timeoutMillis;
+        while ( true )
+        {
+            ChangeLogTransaction transaction = next();
+            if ( transaction != null )
+            {
+                return transaction;
+            }
+            long left = endTime - System.currentTimeMillis();
+            if ( left <= 0 )
+            {
+                return null;
+            }
+            Thread.sleep( Math.min( left, POLL_MILLIS ) );
+        }
+    }
+
+    /**
+     * @return {@code false} if the record at the current position is a
+     * transaction which doesn't have an outcome yet.
+     */
+    private boolean isFinished( int length )
+    {
+        if ( buffer.get( position + 4 ) != ChangeLogFormat.TRANSACTION_RECORD )
+        {
+            return true;
+        }
+        int outcome = position + 4 + length;
+        return outcome + 4 <= buffer.limit() && buffer.getInt( outcome ) != 0;
+    }
+
+    /**
+     * Reads the record at the current position, and the outcome after it
+     * if it's a transaction.
+     * @return the transaction, or {@code null} if the record isn't a
+     * committed transaction to return.
+     */
+    private ChangeLogTransaction readRecord( int length ) throws IOException
+    {
+        byte[] payload = new byte[ length ];
+        buffer.position( position + 4 );
+        buffer.get( payload );
+        position += 4 + length;
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream( payload ) );
+        byte type = in.readByte();
+        if ( type == ChangeLogFormat.DICTIONARY_RECORD )
+        {
+            int firstId = ValueEncoding.readVarInt( in );
+            if ( firstId != dictionary.size() )
+            {
+                throw new IOException( "Dictionary entry " + firstId +
+                    " out of order, expected " + dictionary.size() );
+            }
+            int count = ValueEncoding.readVarInt( in );
+            for ( int i = 0; i < count; i++ )
+            {
+                dictionary.add( ValueEncoding.readString( in ) );
+            }
+            return null;
+        }
+        if ( type != ChangeLogFormat.TRANSACTION_RECORD )
+        {
+            throw new IOException( "Unknown record type " + type );
+        }
+        long sequence = in.readLong();
+        boolean committed = readOutcome( sequence );
+        if ( sequence <= lastSequence )
+        {
+            return null;
+        }
+        if ( sequence != lastSequence + 1 )
+        {
+            throw new IOException( "Expected transaction " +
+                ( lastSequence + 1 ) + ", found " + sequence );
+        }
+        if ( !committed )
+        {
+            lastSequence = sequence;
+            return null;
+        }
+        long timestamp = in.readLong();
+        int count = ValueEncoding.readVarInt( in );
+        List<ChangeLogOperation> operations =
+            new ArrayList<ChangeLogOperation>( count );
+        ChangeLogOperation.Type[] types = ChangeLogOperation.Type.values();
+        for ( int i = 0; i < count; i++ )
+        {
+            byte typeId = in.readByte();
+            if ( typeId < 0 || typeId >= types.length )
+            {
+                throw new IOException( "Unknown operation type " + typeId );
+            }
+            ChangeLogOperation.Type operationType = types[ typeId ];
+            if ( operationType == ChangeLogOperation.Type.SET_NAMESPACE )
+            {
+                String prefix = ValueEncoding.readString( in );
+                operations.add( new ChangeLogOperation( operationType,
+                    prefix, ValueEncoding.readString( in ) ) );
+                continue;
+            }
+            if ( operationType == ChangeLogOperation.Type.REMOVE_NAMESPACE )
+            {
+                operations.add( new ChangeLogOperation( operationType,
+                    ValueEncoding.readString( in ), null ) );
+                continue;
+            }
+            if ( operationType == ChangeLogOperation.Type.CLEAR_NAMESPACES )
+            {
+                operations.add( new ChangeLogOperation( operationType,
+                    null, null ) );
+                continue;
+            }
+            boolean add = operationType == ChangeLogOperation.Type.ADD;
+            Resource subject = ( Resource ) readValue( in );
+            URI predicate = ( URI ) readValue( in );
+            Value object = readValue( in );
+            Resource[] contexts = new Resource[ ValueEncoding.readVarInt( in ) ];
+            for ( int c = 0; c < contexts.length; c++ )
+            {
+                contexts[ c ] = ( Resource ) readValue( in );
+            }
+            operations.add( new ChangeLogOperation( add, subject, predicate,
+                object, contexts ) );
+        }
+        lastSequence = sequence;
+        return new ChangeLogTransaction( sequence, timestamp, operations );
+    }
+
+    /**
+     * Reads the outcome record at the current position.
+     * @return whether or not the transaction committed.
+     */
+    private boolean readOutcome( long sequence ) throws IOException
+    {
+        int length = buffer.getInt( position );
+        byte type = buffer.get( position + 4 );
+        if ( length != ChangeLogFormat.OUTCOME_RECORD_SIZE - 4 ||
+            ( type != ChangeLogFormat.COMMIT_RECORD &&
+            type != ChangeLogFormat.ABORT_RECORD ) ||
+            buffer.getLong( position + 5 ) != sequence )
+        {
+            throw new IOException( "No outcome for transaction " + sequence );
+        }
+        position += 4 + length;
+        return type == ChangeLogFormat.COMMIT_RECORD;
+    }
+
+    private Value readValue( DataInputStream in ) throws IOException
+    {
+        return ValueEncoding.readValue( in, valueFactory, dictionaryReader );
+    }
+
+    /**
+     * Opens the segment which contains the transaction after the last one.
+     */
+    private boolean openFirstSegment() throws IOException
+    {
+        List<File> segments = ChangeLogFormat.listSegments( directory );
+        if ( segments.isEmpty() )
+        {
+            return false;
+        }
+        File first = segments.get( 0 );
+        if ( ChangeLogFormat.firstSequence( first ) > lastSequence + 1 )
+        {
+            throw new IOException( "Transaction " + ( lastSequence + 1 ) +
+                " isn't in the change log any more, it starts at " +
+                ChangeLogFormat.firstSequence( first ) );
+        }
+        File segment = first;
+        for ( File candidate : segments )
+        {
+            if ( ChangeLogFormat.firstSequence( candidate ) <=
+                lastSequence + 1 )
+            {
+                segment = candidate;
+            }
+        }
+        return openSegment( segment );
+    }
+
+    /**
+     * Moves on to the segment after the current one, if it has been
+     * created and the current one has no more records.
+     * @return whether or not there may be more records to read, in the
+     * current segment or in the next one.
+     */
+    private boolean openNextSegment() throws IOException
+    {
+        for ( File candidate : ChangeLogFormat.listSegments( directory ) )
+        {
+            if ( ChangeLogFormat.firstSequence( candidate ) >
+                segmentFirstSequence )
+            {
+                // The writer may have appended one last record to the
+                // current segment after it was looked at, and only then
+                // moved on to the new one
+                if ( position + 4 <= buffer.limit() &&
+                    buffer.getInt( position ) != 0 )
+                {
+                    return true;
+                }
+                return openSegment( candidate );
+            }
+        }
+        return false;
+    }
+
+    private boolean openSegment( File segment ) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( segment, "r" );
+        MappedByteBuffer segmentBuffer;
+        try
+        {
+            segmentBuffer = file.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, file.length() );
+        }
+        finally
+        {
+            // The mapping stays valid
+            file.close();
+        }
+        if ( segmentBuffer.limit() < ChangeLogFormat.HEADER_SIZE ||
+            segmentBuffer.getInt( 0 ) == 0 )
+        {
+            // Still being created by the writer
+            return false;
+        }
+        if ( segmentBuffer.getInt( 0 ) != ChangeLogFormat.MAGIC ||
+            segmentBuffer.getInt( 4 ) != ChangeLogFormat.VERSION )
+        {
+            throw new IOException( segment + " isn't a change log segment" );
+        }
+        buffer = segmentBuffer;
+        position = ChangeLogFormat.HEADER_SIZE;
+        segmentFirstSequence = segmentBuffer.getLong( 8 );
+        dictionary.clear();
+        return true;
+    }
+
+    /**
+     * Releases the current segment.
+     */
+    public synchronized void close()
+    {
+        buffer = null;
+    }
+}
@@ -0,0 +1,56 @@
+package org.neo4j.rdf.sail.changelog;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A committed transaction read from the change log, see
+ * {@link ChangeLogReader}.
+ */
+public class ChangeLogTransaction
+{
+    private final long sequence;
+    private final long timestamp;
+    private final List<ChangeLogOperation> operations;
+
+    ChangeLogTransaction( long sequence, long timestamp,
+        List<ChangeLogOperation> operations )
+    {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.operations = Collections.unmodifiableList( operations );
+    }
+
+    /**
+     * @return the number of the transaction in the log, transactions are
+     * numbered in commit order starting at 1.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * @return the time the transaction was committed, in milliseconds since
+     * the epoch.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the operations of the transaction, in the order they were
+     * made.
+     */
+    public List<ChangeLogOperation> getOperations()
+    {
+        return operations;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "tx[" + sequence + "] " + operations.size() + " operations";
+    }
+}
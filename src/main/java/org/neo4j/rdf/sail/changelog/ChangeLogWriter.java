@@ -0,0 +1,572 @@
+package org.neo4j.rdf.sail.changelog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.rdf.sail.utils.ValueEncoding;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+/**
+ * Writes transactions to a change log, see {@link ChangeLogFormat} for the
+ * layout, ahead of committing them: a transaction is written by
+ * {@link #prepare(long, OperationSource)} before it's committed to the
+ * store, and followed by a record of whether it committed or not by
+ * {@link #finished(long, boolean)}. Readers only see the transactions which
+ * committed. The segment which is written to is memory mapped, and it's
+ * forced to disk by both calls unless {@link #setForceOnCommit(boolean)}
+ * says otherwise. When a transaction doesn't fit in the current segment a
+ * new one is started.
+ *
+ * A log is written by one writer at a time, one transaction at a time. A
+ * writer opened on an existing log continues after its last transaction.
+ * If the log ends with a transaction which was prepared, but never
+ * finished, f.ex. because of a crash, it's left in doubt, see
+ * {@link #getInDoubtSequence()}, until its outcome is given to
+ * {@link #finished(long, boolean)}.
+ */
+public class ChangeLogWriter
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Receives the operations of a transaction from an
+     * {@link OperationSource}.
+     */
+    public static interface OperationHandler
+    {
+        void operation( boolean add, Resource subject, URI predicate,
+            Value object, Resource... contexts );
+
+        /**
+         * @param namespace the namespace set for {@code prefix}, or
+         * {@code null} if it was removed.
+         */
+        void namespace( String prefix, String namespace );
+
+        void namespacesCleared();
+    }
+
+    /**
+     * The operations of a transaction to write. They may be asked for more
+     * than once, f.ex. if the transaction has to be moved to a new segment,
+     * and must be the same every time.
+     */
+    public static interface OperationSource
+    {
+        void replay( OperationHandler handler );
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private volatile boolean forceOnCommit = true;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final Map<String, Integer> dictionary =
+        new HashMap<String, Integer>();
+    private long lastSequence;
+    // the prepared transaction which hasn't finished yet, 0 if none
+    private long preparedSequence;
+    private final ByteArrayOutputStream operationBytes =
+        new ByteArrayOutputStream();
+    private final ByteArrayOutputStream dictionaryBytes =
+        new ByteArrayOutputStream();
+    private final ByteArrayOutputStream transactionBytes =
+        new ByteArrayOutputStream();
+    // the dictionary entries added by the last encode()
+    private final List<String> newEntries = new ArrayList<String>();
+    // writes URIs as ids in the dictionary, adding the new ones to it
+    private final ValueEncoding.UriWriter dictionaryWriter =
+        new ValueEncoding.UriWriter()
+    {
+        public void writeUri( DataOutput out, String uri ) throws IOException
+        {
+            Integer id = dictionary.get( uri );
+            if ( id == null )
+            {
+                id = dictionary.size();
+                dictionary.put( uri, id );
+                newEntries.add( uri );
+            }
+            ValueEncoding.writeVarInt( out, id );
+        }
+    };
+
+    public ChangeLogWriter( File directory ) throws IOException
+    {
+        this( directory, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * @param directory the directory of the log, created if it doesn't
+     * exist.
+     * @param segmentSize the size of each segment file, in bytes. A segment
+     * is made bigger if a single transaction doesn't fit in it.
+     * @throws IOException if the log couldn't be opened.
+     */
+    public ChangeLogWriter( File directory, int segmentSize )
+        throws IOException
+    {
+        if ( segmentSize <= ChangeLogFormat.HEADER_SIZE )
+        {
+            throw new IllegalArgumentException( "Invalid segment size " +
+                segmentSize );
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if ( !directory.exists() && !directory.mkdirs() )
+        {
+            throw new IOException( "Couldn't create " + directory );
+        }
+        List<File> segments = ChangeLogFormat.listSegments( directory );
+        if ( segments.isEmpty() )
+        {
+            openNewSegment( 1, segmentSize );
+        }
+        else
+        {
+            openLastSegment( segments.get( segments.size() - 1 ) );
+        }
+    }
+
+    /**
+     * @param force whether or not writing a transaction, and its outcome,
+     * should wait until it has been written to disk, which is the default.
+     * Without it a transaction survives a crash of the JVM, but not of the
+     * OS.
+     */
+    public void setForceOnCommit( boolean force )
+    {
+        this.forceOnCommit = force;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @return the sequence number of the last finished transaction, 0 if
+     * there is none.
+     */
+    public synchronized long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * @return the sequence number of the transaction which has been
+     * prepared but hasn't finished, 0 if there is none. For a log which was
+     * just opened that's a transaction which may or may not have been
+     * committed before the log was closed.
+     */
+    public synchronized long getInDoubtSequence()
+    {
+        return preparedSequence;
+    }
+
+    /**
+     * Writes a transaction to the log, before it's committed. Must be
+     * followed by {@link #finished(long, boolean)}, no other transaction
+     * can be prepared until then.
+     * @param timestamp the commit time of the transaction.
+     * @param source the operations of the transaction.
+     * @return the sequence number of the transaction.
+     * @throws IOException if the transaction couldn't be written, in which
+     * case it mustn't be committed.
+     */
+    public synchronized long prepare( long timestamp, OperationSource source )
+        throws IOException
+    {
+        if ( channel == null )
+        {
+            throw new IOException( "Change log is closed" );
+        }
+        if ( preparedSequence != 0 )
+        {
+            throw new IllegalStateException( "Transaction " +
+                preparedSequence + " hasn't finished" );
+        }
+        long sequence = lastSequence + 1;
+        // Room is kept for the outcome, so that it's in the same segment
+        int size = encode( sequence, timestamp, source ) +
+            ChangeLogFormat.OUTCOME_RECORD_SIZE;
+        if ( size > buffer.remaining() )
+        {
+            // The dictionary of the new segment starts out empty, and the
+            // entries of the first attempt aren't in the current one
+            forget( newEntries );
+            Map<String, Integer> segmentDictionary =
+                new HashMap<String, Integer>( dictionary );
+            dictionary.clear();
+            boolean encoded = false;
+            try
+            {
+                size = encode( sequence, timestamp, source ) +
+                    ChangeLogFormat.OUTCOME_RECORD_SIZE;
+                encoded = true;
+            }
+            finally
+            {
+                if ( !encoded )
+                {
+                    dictionary.putAll( segmentDictionary );
+                }
+            }
+            openNewSegment( sequence, Math.max( segmentSize,
+                ChangeLogFormat.HEADER_SIZE + size ) );
+        }
+        if ( dictionaryBytes.size() > 0 )
+        {
+            writeRecord( dictionaryBytes );
+        }
+        writeRecord( transactionBytes );
+        if ( forceOnCommit )
+        {
+            buffer.force();
+        }
+        preparedSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Records whether or not the prepared transaction was committed. Only
+     * a committed transaction is returned by {@link ChangeLogReader}.
+     * @param sequence what {@link #prepare(long, OperationSource)} returned,
+     * or {@link #getInDoubtSequence()}.
+     * @param committed whether or not the transaction was committed.
+     */
+    public synchronized void finished( long sequence, boolean committed )
+    {
+        if ( channel == null || sequence != preparedSequence )
+        {
+            throw new IllegalStateException( "Transaction " + sequence +
+                " isn't prepared" );
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(
+            ChangeLogFormat.OUTCOME_RECORD_SIZE );
+        DataOutputStream out = new DataOutputStream( record );
+        try
+        {
+            out.writeByte( committed ? ChangeLogFormat.COMMIT_RECORD :
+                ChangeLogFormat.ABORT_RECORD );
+            out.writeLong( sequence );
+        }
+        catch ( IOException e )
+        {
+            // Not from a ByteArrayOutputStream
+            throw new RuntimeException( e );
+        }
+        writeRecord( record );
+        if ( forceOnCommit )
+        {
+            buffer.force();
+        }
+        preparedSequence = 0;
+        lastSequence = sequence;
+    }
+
+    /**
+     * Writes a transaction which has been committed to the log, the same as
+     * {@link #prepare(long, OperationSource)} followed by
+     * {@link #finished(long, boolean)}.
+     * @return the sequence number of the transaction.
+     * @throws IOException if the transaction couldn't be written.
+     */
+    public synchronized long append( long timestamp, OperationSource source )
+        throws IOException
+    {
+        long sequence = prepare( timestamp, source );
+        finished( sequence, true );
+        return sequence;
+    }
+
+    /**
+     * Encodes the transaction into the record buffers.
+     * @return the number of bytes the records take in a segment.
+     */
+    private int encode( long sequence, long timestamp,
+        OperationSource source ) throws IOException
+    {
+        newEntries.clear();
+        try
+        {
+            operationBytes.reset();
+            final DataOutputStream out = new DataOutputStream(
+                operationBytes );
+            final int[] count = new int[ 1 ];
+            try
+            {
+                source.replay( new OperationHandler()
+                {
+                    public void operation( boolean add, Resource subject,
+                        URI predicate, Value object, Resource... contexts )
+                    {
+                        try
+                        {
+                            out.writeByte( ( add ?
+                                ChangeLogOperation.Type.ADD :
+                                ChangeLogOperation.Type.REMOVE ).ordinal() );
+                            writeValue( out, subject );
+                            writeValue( out, predicate );
+                            writeValue( out, object );
+                            ValueEncoding.writeVarInt( out, contexts.length );
+                            for ( Resource context : contexts )
+                            {
+                                writeValue( out, context );
+                            }
+                            count[ 0 ]++;
+                        }
+                        catch ( IOException e )
+                        {
+                            throw new EncodingException( e );
+                        }
+                    }
+
+                    public void namespace( String prefix, String namespace )
+                    {
+                        try
+                        {
+                            if ( namespace == null )
+                            {
+                                out.writeByte( ChangeLogOperation.Type
+                                    .REMOVE_NAMESPACE.ordinal() );
+                                ValueEncoding.writeString( out, prefix );
+                            }
+                            else
+                            {
+                                out.writeByte( ChangeLogOperation.Type
+                                    .SET_NAMESPACE.ordinal() );
+                                ValueEncoding.writeString( out, prefix );
+                                ValueEncoding.writeString( out, namespace );
+                            }
+                            count[ 0 ]++;
+                        }
+                        catch ( IOException e )
+                        {
+                            throw new EncodingException( e );
+                        }
+                    }
+
+                    public void namespacesCleared()
+                    {
+                        try
+                        {
+                            out.writeByte( ChangeLogOperation.Type
+                                .CLEAR_NAMESPACES.ordinal() );
+                            count[ 0 ]++;
+                        }
+                        catch ( IOException e )
+                        {
+                            throw new EncodingException( e );
+                        }
+                    }
+                } );
+            }
+            catch ( EncodingException e )
+            {
+                throw ( IOException ) e.getCause();
+            }
+
+            dictionaryBytes.reset();
+            if ( !newEntries.isEmpty() )
+            {
+                DataOutputStream dictionaryOut = new DataOutputStream(
+                    dictionaryBytes );
+                dictionaryOut.writeByte( ChangeLogFormat.DICTIONARY_RECORD );
+                ValueEncoding.writeVarInt( dictionaryOut,
+                    dictionary.size() - newEntries.size() );
+                ValueEncoding.writeVarInt( dictionaryOut, newEntries.size() );
+                for ( String entry : newEntries )
+                {
+                    ValueEncoding.writeString( dictionaryOut, entry );
+                }
+            }
+
+            transactionBytes.reset();
+            DataOutputStream transactionOut = new DataOutputStream(
+                transactionBytes );
+            transactionOut.writeByte( ChangeLogFormat.TRANSACTION_RECORD );
+            transactionOut.writeLong( sequence );
+            transactionOut.writeLong( timestamp );
+            ValueEncoding.writeVarInt( transactionOut, count[ 0 ] );
+            operationBytes.writeTo( transactionOut );
+        }
+        catch ( IOException e )
+        {
+            forget( newEntries );
+            newEntries.clear();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            forget( newEntries );
+            newEntries.clear();
+            throw e;
+        }
+        return ( dictionaryBytes.size() > 0 ? 4 + dictionaryBytes.size() : 0 ) +
+            4 + transactionBytes.size();
+    }
+
+    private void writeValue( DataOutputStream out, Value value )
+        throws IOException
+    {
+        ValueEncoding.writeValue( out, value, dictionaryWriter );
+    }
+
+    private void forget( List<String> newEntries )
+    {
+        for ( String entry : newEntries )
+        {
+            dictionary.remove( entry );
+        }
+    }
+
+    private void writeRecord( ByteArrayOutputStream record )
+    {
+        // The length is written last, so that readers never see a partly
+        // written record
+        int position = buffer.position();
+        buffer.position( position + 4 );
+        buffer.put( record.toByteArray() );
+        buffer.putInt( position, record.size() );
+    }
+
+    private void openNewSegment( long firstSequence, int size )
+        throws IOException
+    {
+        closeSegment();
+        RandomAccessFile file = new RandomAccessFile(
+            ChangeLogFormat.segmentFile( directory, firstSequence ), "rw" );
+        file.setLength( size );
+        channel = file.getChannel();
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+        // The magic number last, readers wait for it
+        buffer.putLong( 8, firstSequence );
+        buffer.putInt( 4, ChangeLogFormat.VERSION );
+        buffer.putInt( 0, ChangeLogFormat.MAGIC );
+        buffer.position( ChangeLogFormat.HEADER_SIZE );
+        lastSequence = firstSequence - 1;
+    }
+
+    private void openLastSegment( File segment ) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( segment, "rw" );
+        channel = file.getChannel();
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0,
+            channel.size() );
+        if ( buffer.limit() < ChangeLogFormat.HEADER_SIZE ||
+            buffer.getInt( 0 ) != ChangeLogFormat.MAGIC ||
+            buffer.getInt( 4 ) != ChangeLogFormat.VERSION )
+        {
+            throw new IOException( segment + " isn't a change log segment" );
+        }
+        lastSequence = buffer.getLong( 8 ) - 1;
+        int position = ChangeLogFormat.HEADER_SIZE;
+        while ( position + 4 <= buffer.limit() )
+        {
+            int length = buffer.getInt( position );
+            if ( length <= 0 )
+            {
+                break;
+            }
+            byte[] payload = new byte[ length ];
+            buffer.position( position + 4 );
+            buffer.get( payload );
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream( payload ) );
+            byte type = in.readByte();
+            if ( type == ChangeLogFormat.DICTIONARY_RECORD )
+            {
+                int firstId = ValueEncoding.readVarInt( in );
+                int count = ValueEncoding.readVarInt( in );
+                for ( int i = 0; i < count; i++ )
+                {
+                    dictionary.put( ValueEncoding.readString( in ),
+                        firstId + i );
+                }
+            }
+            else if ( type == ChangeLogFormat.TRANSACTION_RECORD )
+            {
+                preparedSequence = in.readLong();
+            }
+            else if ( type == ChangeLogFormat.COMMIT_RECORD ||
+                type == ChangeLogFormat.ABORT_RECORD )
+            {
+                lastSequence = in.readLong();
+                preparedSequence = 0;
+            }
+            else
+            {
+                throw new IOException( "Unknown record type " + type +
+                    " in " + segment );
+            }
+            position += 4 + length;
+        }
+        buffer.position( position );
+    }
+
+    /**
+     * Deletes the segments which only contain transactions older than
+     * {@code sequence}, f.ex. those which all readers have read. The
+     * segment which is written to is never deleted.
+     * @param sequence the oldest transaction to keep.
+     * @return the number of deleted segments.
+     */
+    public synchronized int deleteSegmentsBefore( long sequence )
+    {
+        List<File> segments = ChangeLogFormat.listSegments( directory );
+        int deleted = 0;
+        for ( int i = 0; i < segments.size() - 1; i++ )
+        {
+            long nextFirst = ChangeLogFormat.firstSequence(
+                segments.get( i + 1 ) );
+            if ( nextFirst > sequence )
+            {
+                break;
+            }
+            if ( segments.get( i ).delete() )
+            {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if ( channel != null )
+        {
+            buffer.force();
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        closeSegment();
+    }
+
+    private static class EncodingException extends RuntimeException
+    {
+        EncodingException( IOException cause )
+        {
+            super( cause );
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.neo4j.rdf.sail.rmi;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the listener events of a server side connection to the client in
+ * batches, from a thread of its own, so that a remote listener doesn't add a
+ * round trip to every add and remove.
+ *
+ * The events are queued up to a limit. When the queue is full the writing
+ * thread waits for the sender, and if the client doesn't catch up within a
+ * while the callback is considered lost, the same as if it had failed.
+ * {@link #flush()} gives up the same way.
+ */
+class CallbackSender
+{
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 30000;
+    static final int MAX_BATCH_SIZE = 1000;
+    private static final long POLL_MILLIS = 1000;
+    
+    private final RmiSailConnectionListenerCallback callback;
+    private final BlockingQueue<ListenerEvent> queue;
+    private final long offerTimeoutMillis;
+    // guards queuedCount and sentCount
+    private final Object flushLock = new Object();
+    private long queuedCount;
+    private long sentCount;
+    private volatile boolean connected = true;
+    private volatile boolean running = true;
+    private Thread sender;
+    
+    CallbackSender( RmiSailConnectionListenerCallback callback )
+    {
+        this( callback, DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT_MILLIS );
+    }
+    
+    /**
+     * @param queueCapacity the max number of events waiting to be sent.
+     * @param offerTimeoutMillis how long to wait for room in a full queue
+     * before the callback is considered lost.
+     */
+    CallbackSender( RmiSailConnectionListenerCallback callback,
+        int queueCapacity, long offerTimeoutMillis )
+    {
+        this.callback = callback;
+        this.queue = new ArrayBlockingQueue<ListenerEvent>( queueCapacity );
+        this.offerTimeoutMillis = offerTimeoutMillis;
+    }
+    
+    /**
+     * Queues an event, waiting for room if the queue is full.
+     * @return {@code false} if the callback is lost, in which case the
+     * event is dropped.
+     */
+    boolean send( ListenerEvent event )
+    {
+        if ( !connected )
+        {
+            return false;
+        }
+        startSender();
+        synchronized ( flushLock )
+        {
+            queuedCount++;
+        }
+        try
+        {
+            if ( queue.offer( event, offerTimeoutMillis,
+                TimeUnit.MILLISECONDS ) )
+            {
+                return true;
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        disconnect();
+        return false;
+    }
+    
+    /**
+     * Waits for the queued events to be sent. If the client doesn't receive
+     * any of them within the offer timeout the callback is considered lost.
+     * @return {@code false} if the callback is lost.
+     */
+    boolean flush()
+    {
+        boolean timedOut = false;
+        synchronized ( flushLock )
+        {
+            long lastSent = sentCount;
+            long endTime = System.currentTimeMillis() + offerTimeoutMillis;
+            while ( connected && sentCount < queuedCount )
+            {
+                if ( sentCount != lastSent )
+                {
+                    // Still making progress
+                    lastSent = sentCount;
+                    endTime = System.currentTimeMillis() + offerTimeoutMillis;
+                }
+                long left = endTime - System.currentTimeMillis();
+                if ( left <= 0 )
+                {
+                    timedOut = true;
+                    break;
+                }
+                try
+                {
+                    flushLock.wait( left );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if ( timedOut )
+        {
+            disconnect();
+        }
+        return connected;
+    }
+    
+    boolean isConnected()
+    {
+        return connected;
+    }
+    
+    /**
+     * Stops sending events, any queued events are dropped.
+     */
+    void close()
+    {
+        running = false;
+        disconnect();
+    }
+    
+    private synchronized void startSender()
+    {
+        if ( sender != null || !running )
+        {
+            return;
+        }
+        sender = new Thread( "RMI listener callback sender" )
+        {
+            @Override
+            public void run()
+            {
+                sendEvents();
+            }
+        };
+        sender.setDaemon( true );
+        sender.start();
+    }
+    
+    private void sendEvents()
+    {
+        List<ListenerEvent> batch = new ArrayList<ListenerEvent>();
+        try
+        {
+            while ( running && connected )
+            {
+                ListenerEvent first = queue.poll( POLL_MILLIS,
+                    TimeUnit.MILLISECONDS );
+                if ( first == null )
+                {
+                    continue;
+                }
+                batch.add( first );
+                queue.drainTo( batch, MAX_BATCH_SIZE - 1 );
+                callback.statementsChanged( batch );
+                synchronized ( flushLock )
+                {
+                    sentCount += batch.size();
+                    flushLock.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            // Stopped
+        }
+        catch ( RemoteException e )
+        {
+            // The callback is lost
+        }
+        catch ( RuntimeException e )
+        {
+            // Thrown by the listeners of the client, which can't be told
+            // apart from a broken callback
+        }
+        finally
+        {
+            // Also on errors, so that writers and flush() stop waiting
+            disconnect();
+        }
+    }
+    
+    private void disconnect()
+    {
+        connected = false;
+        queue.clear();
+        synchronized ( flushLock )
+        {
+            flushLock.notifyAll();
+        }
+    }
+}
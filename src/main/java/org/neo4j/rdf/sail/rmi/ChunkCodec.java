@@ -0,0 +1,496 @@
+package org.neo4j.rdf.sail.rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.neo4j.rdf.sail.FulltextQueryResult;
+import org.neo4j.rdf.sail.GraphDatabaseStatement;
+import org.neo4j.rdf.sail.GraphDatabaseStatementImpl;
+import org.neo4j.rdf.sail.utils.ValueEncoding;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.NamespaceImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+/**
+ * Encodes the chunks of an iteration sent over RMI more compactly than
+ * Java serialization does, see {@link RmiIterationBuffer#getEncodedChunk(int)}.
+ * Statements, binding sets, values, namespaces and fulltext results are
+ * written field by field. Namespaces of URIs, binding names and metadata
+ * keys are written once per iteration and then referred to by number, so
+ * the encoder and decoder of an iteration keep state between chunks and
+ * the chunks must be decoded in order. Other items are serialized.
+ *
+ * With {@link #DEFLATE} chunks which are big enough are also compressed.
+ */
+class ChunkCodec
+{
+    /**
+     * The encodings, as bits: {@link #BINARY} is the encoding itself,
+     * {@link #DEFLATE} compresses it as well.
+     */
+    static final int BINARY = 1;
+    static final int DEFLATE = 2;
+    static final int SUPPORTED_ENCODINGS = BINARY | DEFLATE;
+    
+    private static final int MIN_DEFLATE_SIZE = 512;
+    private static final byte PLAIN_CHUNK = 0;
+    private static final byte DEFLATED_CHUNK = 1;
+    
+    private static final byte STATEMENT = 1;
+    private static final byte GRAPH_DATABASE_STATEMENT = 2;
+    private static final byte BINDING_SET = 3;
+    private static final byte VALUE = 4;
+    private static final byte NAMESPACE = 5;
+    private static final byte FULLTEXT_RESULT = 6;
+    private static final byte SERIALIZED = 7;
+    private static final byte NULL = 8;
+    
+    private static final byte NULL_VALUE = 0;
+    private static final byte URI_VALUE = 1;
+    private static final byte BNODE_VALUE = 2;
+    private static final byte LITERAL_VALUE = 3;
+    private static final byte LANGUAGE_LITERAL_VALUE = 4;
+    private static final byte TYPED_LITERAL_VALUE = 5;
+    
+    private final int encoding;
+    // string -> id on the encoding side, id -> string on the decoding side
+    private final Map<String, Integer> stringIds =
+        new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    
+    /**
+     * @param encoding the encoding bits the chunks are encoded with.
+     */
+    ChunkCodec( int encoding )
+    {
+        this.encoding = encoding;
+    }
+    
+    /**
+     * @return the encoding bits of {@code requested} which are supported.
+     */
+    static int supported( int requested )
+    {
+        int result = requested & SUPPORTED_ENCODINGS;
+        return ( result & BINARY ) == 0 ? 0 : result;
+    }
+    
+    byte[] encode( Collection<?> items ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        int knownStrings = stringIds.size();
+        boolean encoded = false;
+        try
+        {
+            ValueEncoding.writeVarInt( out, items.size() );
+            for ( Object item : items )
+            {
+                writeItem( out, item );
+            }
+            out.flush();
+            encoded = true;
+        }
+        finally
+        {
+            if ( !encoded )
+            {
+                // The chunk is never sent, so neither are its new strings
+                forgetStringsAfter( knownStrings );
+            }
+        }
+        byte[] chunk = bytes.toByteArray();
+        if ( ( encoding & DEFLATE ) != 0 && chunk.length >= MIN_DEFLATE_SIZE )
+        {
+            return deflate( chunk );
+        }
+        byte[] result = new byte[ chunk.length + 1 ];
+        result[ 0 ] = PLAIN_CHUNK;
+        System.arraycopy( chunk, 0, result, 1, chunk.length );
+        return result;
+    }
+    
+    List<Object> decode( byte[] chunk, ValueFactory valueFactory )
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream( chunk[ 0 ] == DEFLATED_CHUNK ?
+            new ByteArrayInputStream( inflate( chunk ) ) :
+            new ByteArrayInputStream( chunk, 1, chunk.length - 1 ) );
+        int count = ValueEncoding.readVarInt( in );
+        List<Object> items = new ArrayList<Object>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            items.add( readItem( in, valueFactory ) );
+        }
+        return items;
+    }
+    
+    private byte[] deflate( byte[] chunk )
+    {
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try
+        {
+            deflater.setInput( chunk );
+            deflater.finish();
+            ByteArrayOutputStream result = new ByteArrayOutputStream(
+                chunk.length / 2 + 16 );
+            result.write( DEFLATED_CHUNK );
+            DataOutputStream lengthOut = new DataOutputStream( result );
+            try
+            {
+                ValueEncoding.writeVarInt( lengthOut, chunk.length );
+            }
+            catch ( IOException e )
+            {
+                // Not from a ByteArrayOutputStream
+                throw new RuntimeException( e );
+            }
+            byte[] buffer = new byte[ 8192 ];
+            while ( !deflater.finished() )
+            {
+                int length = deflater.deflate( buffer );
+                result.write( buffer, 0, length );
+            }
+            return result.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+    
+    private byte[] inflate( byte[] chunk ) throws IOException
+    {
+        ByteArrayInputStream header = new ByteArrayInputStream( chunk, 1,
+            chunk.length - 1 );
+        int length = ValueEncoding.readVarInt( new DataInputStream( header ) );
+        int offset = chunk.length - header.available();
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( chunk, offset, chunk.length - offset );
+            byte[] result = new byte[ length ];
+            int read = 0;
+            while ( read < length )
+            {
+                int n = inflater.inflate( result, read, length - read );
+                if ( n == 0 && ( inflater.finished() ||
+                    inflater.needsInput() ) )
+                {
+                    throw new IOException( "Truncated chunk" );
+                }
+                read += n;
+            }
+            return result;
+        }
+        catch ( DataFormatException e )
+        {
+            throw new IOException( "Corrupt chunk: " + e.getMessage() );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+    
+    private void writeItem( DataOutputStream out, Object item )
+        throws IOException
+    {
+        if ( item == null )
+        {
+            out.writeByte( NULL );
+        }
+        else if ( item instanceof GraphDatabaseStatement )
+        {
+            out.writeByte( GRAPH_DATABASE_STATEMENT );
+            writeStatement( out, ( Statement ) item );
+            Map<String, Literal> metadata =
+                ( ( GraphDatabaseStatement ) item ).getMetadata();
+            ValueEncoding.writeVarInt( out, metadata.size() );
+            for ( Map.Entry<String, Literal> entry : metadata.entrySet() )
+            {
+                writeString( out, entry.getKey() );
+                writeValue( out, entry.getValue() );
+            }
+        }
+        else if ( item instanceof Statement )
+        {
+            out.writeByte( STATEMENT );
+            writeStatement( out, ( Statement ) item );
+        }
+        else if ( item instanceof BindingSet )
+        {
+            out.writeByte( BINDING_SET );
+            BindingSet bindings = ( BindingSet ) item;
+            ValueEncoding.writeVarInt( out, bindings.size() );
+            for ( Binding binding : bindings )
+            {
+                writeString( out, binding.getName() );
+                writeValue( out, binding.getValue() );
+            }
+        }
+        else if ( item instanceof Value )
+        {
+            out.writeByte( VALUE );
+            writeValue( out, ( Value ) item );
+        }
+        else if ( item instanceof Namespace )
+        {
+            out.writeByte( NAMESPACE );
+            Namespace namespace = ( Namespace ) item;
+            writeString( out, namespace.getPrefix() );
+            writeString( out, namespace.getName() );
+        }
+        else if ( item instanceof FulltextQueryResult )
+        {
+            out.writeByte( FULLTEXT_RESULT );
+            FulltextQueryResult result = ( FulltextQueryResult ) item;
+            writeItem( out, result.getStatement() );
+            out.writeDouble( result.getScore() );
+            out.writeBoolean( result.getSnippet() != null );
+            if ( result.getSnippet() != null )
+            {
+                ValueEncoding.writeString( out, result.getSnippet() );
+            }
+        }
+        else
+        {
+            out.writeByte( SERIALIZED );
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream( bytes );
+            objectOut.writeObject( item );
+            objectOut.close();
+            ValueEncoding.writeVarInt( out, bytes.size() );
+            bytes.writeTo( out );
+        }
+    }
+    
+    private Object readItem( DataInputStream in, ValueFactory valueFactory )
+        throws IOException
+    {
+        byte type = in.readByte();
+        switch ( type )
+        {
+        case NULL:
+            return null;
+        case GRAPH_DATABASE_STATEMENT:
+            Statement statement = readStatement( in, valueFactory );
+            int count = ValueEncoding.readVarInt( in );
+            Map<String, Literal> metadata = new HashMap<String, Literal>();
+            for ( int i = 0; i < count; i++ )
+            {
+                metadata.put( readString( in ),
+                    ( Literal ) readValue( in, valueFactory ) );
+            }
+            return new GraphDatabaseStatementImpl( statement, metadata );
+        case STATEMENT:
+            return readStatement( in, valueFactory );
+        case BINDING_SET:
+            int size = ValueEncoding.readVarInt( in );
+            MapBindingSet bindings = new MapBindingSet( size );
+            for ( int i = 0; i < size; i++ )
+            {
+                bindings.addBinding( readString( in ),
+                    readValue( in, valueFactory ) );
+            }
+            return bindings;
+        case VALUE:
+            return readValue( in, valueFactory );
+        case NAMESPACE:
+            return new NamespaceImpl( readString( in ), readString( in ) );
+        case FULLTEXT_RESULT:
+            Statement hit = ( Statement ) readItem( in, valueFactory );
+            double score = in.readDouble();
+            String snippet = in.readBoolean() ?
+                ValueEncoding.readString( in ) : null;
+            return new FulltextQueryResult( hit, score, snippet );
+        case SERIALIZED:
+            byte[] bytes = new byte[ ValueEncoding.readVarInt( in ) ];
+            in.readFully( bytes );
+            ObjectInputStream objectIn = new ObjectInputStream(
+                new ByteArrayInputStream( bytes ) );
+            try
+            {
+                return objectIn.readObject();
+            }
+            catch ( ClassNotFoundException e )
+            {
+                throw new IOException( "Unknown class " + e.getMessage() );
+            }
+        default:
+            throw new IOException( "Unknown item type " + type );
+        }
+    }
+    
+    private void writeStatement( DataOutputStream out, Statement statement )
+        throws IOException
+    {
+        writeValue( out, statement.getSubject() );
+        writeValue( out, statement.getPredicate() );
+        writeValue( out, statement.getObject() );
+        writeValue( out, statement.getContext() );
+    }
+    
+    private Statement readStatement( DataInputStream in,
+        ValueFactory valueFactory ) throws IOException
+    {
+        Resource subject = ( Resource ) readValue( in, valueFactory );
+        URI predicate = ( URI ) readValue( in, valueFactory );
+        Value object = readValue( in, valueFactory );
+        Resource context = ( Resource ) readValue( in, valueFactory );
+        return context == null ?
+            valueFactory.createStatement( subject, predicate, object ) :
+            valueFactory.createStatement( subject, predicate, object,
+                context );
+    }
+    
+    private void writeValue( DataOutputStream out, Value value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeByte( NULL_VALUE );
+        }
+        else if ( value instanceof URI )
+        {
+            out.writeByte( URI_VALUE );
+            writeUri( out, ( URI ) value );
+        }
+        else if ( value instanceof BNode )
+        {
+            out.writeByte( BNODE_VALUE );
+            ValueEncoding.writeString( out, ( ( BNode ) value ).getID() );
+        }
+        else
+        {
+            Literal literal = ( Literal ) value;
+            if ( literal.getLanguage() != null )
+            {
+                out.writeByte( LANGUAGE_LITERAL_VALUE );
+                ValueEncoding.writeString( out, literal.getLabel() );
+                writeString( out, literal.getLanguage() );
+            }
+            else if ( literal.getDatatype() != null )
+            {
+                out.writeByte( TYPED_LITERAL_VALUE );
+                ValueEncoding.writeString( out, literal.getLabel() );
+                writeUri( out, literal.getDatatype() );
+            }
+            else
+            {
+                out.writeByte( LITERAL_VALUE );
+                ValueEncoding.writeString( out, literal.getLabel() );
+            }
+        }
+    }
+    
+    private Value readValue( DataInputStream in, ValueFactory valueFactory )
+        throws IOException
+    {
+        byte type = in.readByte();
+        switch ( type )
+        {
+        case NULL_VALUE:
+            return null;
+        case URI_VALUE:
+            return readUri( in, valueFactory );
+        case BNODE_VALUE:
+            return valueFactory.createBNode( ValueEncoding.readString( in ) );
+        case LITERAL_VALUE:
+            return valueFactory.createLiteral( ValueEncoding.readString( in ) );
+        case LANGUAGE_LITERAL_VALUE:
+            String label = ValueEncoding.readString( in );
+            return valueFactory.createLiteral( label, readString( in ) );
+        case TYPED_LITERAL_VALUE:
+            String typedLabel = ValueEncoding.readString( in );
+            return valueFactory.createLiteral( typedLabel,
+                readUri( in, valueFactory ) );
+        default:
+            throw new IOException( "Unknown value type " + type );
+        }
+    }
+    
+    private void writeUri( DataOutputStream out, URI uri ) throws IOException
+    {
+        writeString( out, uri.getNamespace() );
+        ValueEncoding.writeString( out, uri.getLocalName() );
+    }
+    
+    private URI readUri( DataInputStream in, ValueFactory valueFactory )
+        throws IOException
+    {
+        String namespace = readString( in );
+        return valueFactory.createURI( namespace,
+            ValueEncoding.readString( in ) );
+    }
+    
+    /**
+     * Writes a string which is likely to be repeated: the first time with
+     * its characters, after that as its number.
+     */
+    private void writeString( DataOutputStream out, String string )
+        throws IOException
+    {
+        Integer id = stringIds.get( string );
+        if ( id != null )
+        {
+            // 0 means a new string
+            ValueEncoding.writeVarInt( out, id + 1 );
+            return;
+        }
+        ValueEncoding.writeVarInt( out, 0 );
+        ValueEncoding.writeString( out, string );
+        stringIds.put( string, stringIds.size() );
+    }
+    
+    private void forgetStringsAfter( int count )
+    {
+        Iterator<Integer> ids = stringIds.values().iterator();
+        while ( ids.hasNext() )
+        {
+            if ( ids.next() >= count )
+            {
+                ids.remove();
+            }
+        }
+    }
+    
+    private String readString( DataInputStream in ) throws IOException
+    {
+        int id = ValueEncoding.readVarInt( in );
+        if ( id > 0 )
+        {
+            if ( id > strings.size() )
+            {
+                throw new IOException( "Unknown string " + ( id - 1 ) );
+            }
+            return strings.get( id - 1 );
+        }
+        String string = ValueEncoding.readString( in );
+        strings.add( string );
+        return string;
+    }
+}
@@ -2,28 +2,45 @@ package org.neo4j.rdf.sail.rmi;
 
 import info.aduna.iteration.CloseableIteration;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.rmi.server.RMIClientSocketFactory;
 import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.server.Unreferenced;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A buffering iterator which sits on the server side, fetching a bunch of
  * items in an iteration each time to minimize the network overhead.
  *
+ * The chunks start out small, so that the first items of a result arrive
+ * quickly, and double for each chunk the client asks for. Their size is
+ * also bounded by {@link #CHUNK_BYTE_BUDGET}, from the serialized size of
+ * the first item of each chunk, so that chunks of big items don't grow
+ * too big.
+ *
  * @param <E> the type of items in the iteration.
  * @param <X> the type of exception thrown if something goes wrong.
  */
 class IterationBufferer<E, X extends Exception> extends UnicastRemoteObject
     implements RmiIterationBuffer<E, X>, Unreferenced
 {
-    private static final int CHUNK_SIZE = 10;
+    static final int INITIAL_CHUNK_SIZE = 10;
+    static final int MAX_CHUNK_SIZE = 10000;
+    static final int CHUNK_BYTE_BUDGET = 256 * 1024;
+    
     private final CloseableIteration<E, X> iter;
     private boolean open = true;
+    private int chunkSize = INITIAL_CHUNK_SIZE;
+    private long sampledBytes;
+    private int sampledItems;
+    private ChunkCodec codec;
     
     IterationBufferer( CloseableIteration<E, X> iter ) throws RemoteException
     {
@@ -46,7 +63,7 @@ class IterationBufferer<E, X extends Exception> extends UnicastRemoteObject
         this.iter = iter;
     }
     
-    public void close() throws X
+    public synchronized void close() throws X
     {
         open = false;
         iter.close();
@@ -66,14 +83,95 @@ class IterationBufferer<E, X extends Exception> extends UnicastRemoteObject
         }
     }
     
-    public Collection<E> getChunk() throws X, RemoteException
+    public synchronized Collection<E> getChunk() throws X, RemoteException
     {
         if ( !open ) return null;
-        List<E> data = new LinkedList<E>();
-        for ( int count = CHUNK_SIZE; count > 0 && iter.hasNext(); count-- )
+        int limit = chunkLimit();
+        List<E> data = new ArrayList<E>( limit );
+        while ( data.size() < limit && iter.hasNext() )
         {
-            data.add( iter.next() );
+            E item = iter.next();
+            data.add( item );
+            if ( data.size() == 1 )
+            {
+                sample( item );
+                limit = chunkLimit();
+            }
         }
+        // A new chunk is asked for when the last one has been consumed
+        chunkSize = Math.min( chunkSize * 2, MAX_CHUNK_SIZE );
         return data;
     }
+    
+    public synchronized byte[] getEncodedChunk( int encoding )
+        throws X, RemoteException
+    {
+        Collection<E> chunk = getChunk();
+        if ( chunk == null )
+        {
+            return null;
+        }
+        if ( codec == null )
+        {
+            codec = new ChunkCodec( encoding );
+        }
+        try
+        {
+            return codec.encode( chunk );
+        }
+        catch ( IOException e )
+        {
+            throw new RemoteException( "Couldn't encode chunk", e );
+        }
+    }
+    
+    int chunkLimit()
+    {
+        if ( sampledItems == 0 )
+        {
+            return chunkSize;
+        }
+        long itemSize = Math.max( 1, sampledBytes / sampledItems );
+        return ( int ) Math.max( 1,
+            Math.min( chunkSize, CHUNK_BYTE_BUDGET / itemSize ) );
+    }
+    
+    private void sample( E item )
+    {
+        if ( !( item instanceof Serializable ) )
+        {
+            return;
+        }
+        CountingOutputStream counter = new CountingOutputStream();
+        try
+        {
+            ObjectOutputStream out = new ObjectOutputStream( counter );
+            out.writeObject( item );
+            out.close();
+        }
+        catch ( IOException e )
+        {
+            // It will fail when sent as well, nothing to estimate
+            return;
+        }
+        sampledBytes += counter.count;
+        sampledItems++;
+    }
+    
+    private static class CountingOutputStream extends OutputStream
+    {
+        private long count;
+        
+        @Override
+        public void write( int b )
+        {
+            count++;
+        }
+        
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+            count += len;
+        }
+    }
 }
@@ -3,37 +3,106 @@ package org.neo4j.rdf.sail.rmi;
 import static org.neo4j.rdf.sail.rmi.RmiSailClient.RMI_CONNECTION_FAILED;
 import info.aduna.iteration.CloseableIteration;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * An iterator which resides on the client side, returning items gotten from
  * a buffering (server side) iterator.
  *
+ * Once half of the items of a chunk have been consumed the next chunk is
+ * fetched on a background thread, so that a consumer which keeps going
+ * doesn't have to wait for a round trip per chunk, while one which stops
+ * after the first few items doesn't fetch a chunk it won't use.
+ *
  * @param <E> the type of items in the iteration.
  * @param <X> the type of exception thrown if something goes wrong.
  */
 class IterationUnbufferer<E, X extends Exception> implements
     CloseableIteration<E, X>
 {
+    private static final ExecutorService READ_AHEAD =
+        Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "RMI read-ahead" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    
     static <E, X extends Exception> CloseableIteration<E, X> unbuffer(
         RmiIterationBuffer<E, X> buffer )
     {
-        return new IterationUnbufferer<E, X>( buffer );
+        return unbuffer( buffer, 0 );
+    }
+    
+    /**
+     * @param encoding the {@link ChunkCodec} encoding to get the chunks
+     * with, 0 for serialized chunks.
+     */
+    static <E, X extends Exception> CloseableIteration<E, X> unbuffer(
+        RmiIterationBuffer<E, X> buffer, int encoding )
+    {
+        return new IterationUnbufferer<E, X>( buffer, encoding );
     }
     
     private final RmiIterationBuffer<E, X> buffer;
+    private final int encoding;
+    private final ChunkCodec codec;
     private Iterator<E> state;
+    // the number of items of the current chunk not consumed yet
+    private int stateLeft;
+    private int stateSize;
+    // the next chunk, being fetched
+    private Future<Collection<E>> nextChunk;
+    private boolean exhausted;
     
-    private IterationUnbufferer( RmiIterationBuffer<E, X> buffer )
+    private IterationUnbufferer( RmiIterationBuffer<E, X> buffer,
+        int encoding )
     {
         this.buffer = buffer;
+        this.encoding = encoding;
+        this.codec = encoding == 0 ? null : new ChunkCodec( encoding );
     }
     
     public void close() throws X
     {
+        exhausted = true;
+        final Future<Collection<E>> fetch = nextChunk;
+        nextChunk = null;
+        if ( fetch != null && !fetch.isDone() )
+        {
+            // The server side can't be closed in the middle of a fetch, so
+            // it's closed after it rather than have the caller wait for it
+            READ_AHEAD.submit( new Runnable()
+            {
+                public void run()
+                {
+                    awaitFetch( fetch );
+                    try
+                    {
+                        buffer.close();
+                    }
+                    catch ( Exception e )
+                    {
+                        // Nobody left to tell, the server side closes the
+                        // iteration with its connection
+                    }
+                }
+            } );
+            return;
+        }
         try
         {
             buffer.close();
@@ -50,28 +119,132 @@ class IterationUnbufferer<E, X extends Exception> implements
         {
             return true;
         }
+        if ( exhausted )
+        {
+            return false;
+        }
         Collection<E> data;
         try
         {
-            data = buffer.getChunk();
+            data = nextChunk != null ? takeNextChunk() : fetchChunk();
         }
         catch ( RemoteException ex )
         {
+            exhausted = true;
             return false;
         }
         if ( data == null || data.size() == 0 )
         {
+            exhausted = true;
             return false;
         }
         state = data.iterator();
+        stateSize = data.size();
+        stateLeft = stateSize;
         return true;
     }
     
+    private void readAhead()
+    {
+        if ( nextChunk != null || exhausted || stateLeft * 2 > stateSize )
+        {
+            return;
+        }
+        nextChunk = READ_AHEAD.submit( new Callable<Collection<E>>()
+        {
+            public Collection<E> call() throws Exception
+            {
+                return fetchChunk();
+            }
+        } );
+    }
+    
+    /**
+     * Gets the next chunk from the server. Chunks are fetched one at a time,
+     * so the decoding state is only used by one thread at a time.
+     */
+    @SuppressWarnings( "unchecked" )
+    private Collection<E> fetchChunk() throws X, RemoteException
+    {
+        if ( codec == null )
+        {
+            return buffer.getChunk();
+        }
+        byte[] chunk = buffer.getEncodedChunk( encoding );
+        if ( chunk == null )
+        {
+            return null;
+        }
+        try
+        {
+            return ( Collection<E> ) codec.decode( chunk,
+                RmiSailClient.valueFactory );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't decode chunk", e );
+        }
+    }
+    
+    @SuppressWarnings( "unchecked" )
+    private Collection<E> takeNextChunk() throws X, RemoteException
+    {
+        Future<Collection<E>> future = nextChunk;
+        nextChunk = null;
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RemoteException )
+            {
+                throw ( RemoteException ) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw ( RuntimeException ) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw ( Error ) cause;
+            }
+            // The only checked exception getChunk throws besides
+            // RemoteException
+            throw ( X ) cause;
+        }
+    }
+    
+    private static void awaitFetch( Future<?> fetch )
+    {
+        try
+        {
+            fetch.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( ExecutionException e )
+        {
+            // Not needed anyway
+        }
+    }
+    
     public E next() throws X
     {
         if ( hasNext() )
         {
-            return state.next();
+            E item = state.next();
+            stateLeft--;
+            readAhead();
+            return item;
         }
         throw new NoSuchElementException();
     }
@@ -0,0 +1,38 @@
+package org.neo4j.rdf.sail.rmi;
+
+import java.io.Serializable;
+
+import org.openrdf.model.Statement;
+import org.openrdf.sail.SailConnectionListener;
+
+/**
+ * A {@link SailConnectionListener} event which is sent to the client in a
+ * batch, see {@link RmiSailConnectionListenerCallback#statementsChanged(
+ * java.util.List)}.
+ */
+class ListenerEvent implements Serializable
+{
+    private final boolean added;
+    private final Statement statement;
+    
+    ListenerEvent( boolean added, Statement statement )
+    {
+        this.added = added;
+        this.statement = statement;
+    }
+    
+    /**
+     * Notifies {@code listener} of the event.
+     */
+    void dispatchTo( SailConnectionListener listener )
+    {
+        if ( added )
+        {
+            listener.statementAdded( statement );
+        }
+        else
+        {
+            listener.statementRemoved( statement );
+        }
+    }
+}
@@ -4,7 +4,10 @@ import static org.neo4j.rdf.sail.rmi.RmiSailClient.RMI_CONNECTION_FAILED;
 import static org.neo4j.rdf.sail.rmi.RmiSailClient.valueFactory;
 import info.aduna.iteration.CloseableIteration;
 
+import java.rmi.MarshalException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.neo4j.rdf.sail.FulltextQueryResult;
@@ -30,17 +33,75 @@ import org.openrdf.sail.SailException;
 /**
  * An implementation of {@link GraphDatabaseSailConnection} which delegates down
  * to an {@link SailConnection} retreived from another {@link Sail} over RMI.
+ *
+ * Adds and removes of statements are buffered and sent to the server in
+ * batches. The buffer is sent when it's full, on {@link #commit()} and before
+ * any other call which reads or writes statements, so that the connection
+ * sees its own writes. A failing add or remove is therefore reported by the
+ * call which sends it rather than by the add or remove itself.
  */
 class LocalSailConnection implements GraphDatabaseSailConnection
 {
     private final RmiSailConnection connection;
     private final RmiSailConnectionListenerCallbackImpl callback;
+    private final int chunkEncoding;
+    private final int writeBatchSize;
+    private final List<WriteOperation> pendingWrites =
+        new ArrayList<WriteOperation>();
     
+    /**
+     * @param chunkEncoding the {@link ChunkCodec} encoding to get iteration
+     * chunks with, 0 for serialized chunks.
+     * @param writeBatchSize the max number of adds and removes to buffer
+     * before sending them, 1 or less to send them one at a time.
+     */
     LocalSailConnection( RmiSailConnection connection,
-        RmiSailConnectionListenerCallbackImpl callback )
+        RmiSailConnectionListenerCallbackImpl callback, int chunkEncoding,
+        int writeBatchSize )
     {
         this.connection = connection;
         this.callback = callback;
+        this.chunkEncoding = chunkEncoding;
+        this.writeBatchSize = writeBatchSize;
+    }
+    
+    private void bufferWrite( WriteOperation operation ) throws SailException
+    {
+        pendingWrites.add( operation );
+        if ( pendingWrites.size() >= writeBatchSize )
+        {
+            flushWrites();
+        }
+    }
+    
+    /**
+     * Sends the buffered adds and removes to the server.
+     */
+    void flushWrites() throws SailException
+    {
+        if ( pendingWrites.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            connection.applyBatch( pendingWrites );
+        }
+        catch ( RemoteException ex )
+        {
+            throw new SailException( RMI_CONNECTION_FAILED, ex );
+        }
+        finally
+        {
+            // Whatever made it to the server stays there until rollback
+            pendingWrites.clear();
+        }
+    }
+    
+    private <E, X extends Exception> CloseableIteration<E, X> unbuffer(
+        RmiIterationBuffer<E, X> buffer )
+    {
+        return IterationUnbufferer.unbuffer( buffer, chunkEncoding );
     }
     
     public void addConnectionListener( SailConnectionListener listener )
@@ -56,6 +117,12 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     public void addStatement( Resource subj, URI pred, Value obj,
         Resource... contexts ) throws SailException
     {
+        if ( writeBatchSize > 1 )
+        {
+            bufferWrite( new WriteOperation( true, subj, pred, obj,
+                contexts ) );
+            return;
+        }
         try
         {
             connection.addStatement( subj, pred, obj, contexts );
@@ -69,6 +136,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     public Statement addStatement( Map<String, Literal> metadata, Resource subj,
         URI pred, Value obj, Resource... contexts ) throws SailException
     {
+        flushWrites();
         try
         {
             return connection.addStatement( metadata, subj, pred, obj,
@@ -82,6 +150,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public void clear( Resource... contexts ) throws SailException
     {
+        flushWrites();
         try
         {
             connection.clear( contexts );
@@ -106,6 +175,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public void close() throws SailException
     {
+        pendingWrites.clear();
         try
         {
             connection.close();
@@ -118,6 +188,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public void commit() throws SailException
     {
+        flushWrites();
         try
         {
             connection.commit();
@@ -128,12 +199,38 @@ class LocalSailConnection implements GraphDatabaseSailConnection
         }
     }
     
+    /**
+     * Evaluates the query on the server, so that only the results are sent
+     * back. If the query can't be sent, f.ex. because it contains values
+     * which aren't serializable, it's evaluated here on top of the remote
+     * {@link #getStatements(Resource, URI, Value, boolean, Resource...)}.
+     */
     public CloseableIteration<? extends BindingSet, QueryEvaluationException>
         evaluate( TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
         boolean includeInferred ) throws SailException
     {
-        // NOTE: due to problems with serialization of the arguments for this
-        // method, the evaluation is done on the client side.
+        flushWrites();
+        try
+        {
+            return unbuffer( connection.evaluate(
+                tupleExpr, SerializableDataset.copyOf( dataset ), bindings,
+                includeInferred ) );
+        }
+        catch ( MarshalException ex )
+        {
+            return evaluateLocally( tupleExpr, dataset, bindings,
+                includeInferred );
+        }
+        catch ( RemoteException ex )
+        {
+            throw new SailException( RMI_CONNECTION_FAILED, ex );
+        }
+    }
+    
+    private CloseableIteration<? extends BindingSet, QueryEvaluationException>
+        evaluateLocally( TupleExpr tupleExpr, Dataset dataset,
+        BindingSet bindings, boolean includeInferred ) throws SailException
+    {
         try
         {
             TripleSource tripleSource = new SailConnectionTripleSource( this,
@@ -151,9 +248,10 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     public CloseableIteration<? extends Resource, SailException> getContextIDs()
         throws SailException
     {
+        flushWrites();
         try
         {
-            return IterationUnbufferer.unbuffer( connection.getContextIDs() );
+            return unbuffer( connection.getContextIDs() );
         }
         catch ( RemoteException ex )
         {
@@ -166,7 +264,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     {
         try
         {
-            return IterationUnbufferer.unbuffer( connection.getNamespaces() );
+            return unbuffer( connection.getNamespaces() );
         }
         catch ( RemoteException ex )
         {
@@ -178,9 +276,10 @@ class LocalSailConnection implements GraphDatabaseSailConnection
         Resource subj, URI pred, Value obj, boolean includeInferred,
         Resource... contexts ) throws SailException
     {
+        flushWrites();
         try
         {
-            return IterationUnbufferer.unbuffer( connection.getStatements(
+            return unbuffer( connection.getStatements(
                 subj, pred, obj, includeInferred, contexts ) );
         }
         catch ( RemoteException ex )
@@ -228,6 +327,12 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     public void removeStatements( Resource subj, URI pred, Value obj,
         Resource... contexts ) throws SailException
     {
+        if ( writeBatchSize > 1 )
+        {
+            bufferWrite( new WriteOperation( false, subj, pred, obj,
+                contexts ) );
+            return;
+        }
         try
         {
             connection.removeStatements( subj, pred, obj, contexts );
@@ -240,6 +345,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public void rollback() throws SailException
     {
+        pendingWrites.clear();
         try
         {
             connection.rollback();
@@ -264,6 +370,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public long size( Resource... contexts ) throws SailException
     {
+        flushWrites();
         try
         {
             return connection.size( contexts );
@@ -277,9 +384,10 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     public CloseableIteration<? extends FulltextQueryResult, SailException>
         evaluate( String query ) throws SailException
     {
+        flushWrites();
         try
         {
-            return IterationUnbufferer.unbuffer( connection.evaluate( query ) );
+            return unbuffer( connection.evaluate( query ) );
         }
         catch ( RemoteException ex )
         {
@@ -291,9 +399,10 @@ class LocalSailConnection implements GraphDatabaseSailConnection
         evaluateWithSnippets( String query, int snippetCountLimit )
         throws SailException
     {
+        flushWrites();
         try
         {
-            return IterationUnbufferer.unbuffer(
+            return unbuffer(
                 connection.evaluateWithSnippets( query, snippetCountLimit ) );
         }
         catch ( RemoteException ex )
@@ -302,9 +411,24 @@ class LocalSailConnection implements GraphDatabaseSailConnection
         }
     }
     
+    public List<FulltextQueryResult> evaluate( String query, int offset,
+        int limit ) throws SailException
+    {
+        flushWrites();
+        try
+        {
+            return connection.evaluate( query, offset, limit );
+        }
+        catch ( RemoteException ex )
+        {
+            throw new SailException( RMI_CONNECTION_FAILED, ex );
+        }
+    }
+    
     public void setStatementMetadata( Statement statement,
         Map<String, Literal> metadata ) throws SailException
     {
+        flushWrites();
         try
         {
             connection.setStatementMetadata( statement, metadata );
@@ -317,6 +441,7 @@ class LocalSailConnection implements GraphDatabaseSailConnection
     
     public void reindexFulltextIndex() throws SailException
     {
+        flushWrites();
         try
         {
             connection.reindexFulltextIndex();
@@ -17,4 +17,14 @@ interface RmiIterationBuffer<E, X extends Exception> extends Remote
     void close() throws X, RemoteException;
     
     Collection<E> getChunk() throws X, RemoteException;
+    
+    /**
+     * Returns the next chunk like {@link #getChunk()}, encoded by a
+     * {@link ChunkCodec}.
+     * 
+     * @param encoding the encoding bits negotiated with
+     * {@link RmiSail#negotiateChunkEncoding(int)}, must be the same for all
+     * chunks of the iteration.
+     */
+    byte[] getEncodedChunk( int encoding ) throws X, RemoteException;
 }
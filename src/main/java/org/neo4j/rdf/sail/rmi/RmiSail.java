@@ -26,4 +26,20 @@ interface RmiSail extends Remote
     
     void addCallback( RmiSailChangedListenerCallback callback )
         throws RemoteException;
+    
+    /**
+     * @param encodings the {@link ChunkCodec} encoding bits the client
+     * supports.
+     * @return the encoding bits to get iteration chunks with, 0 for plain
+     * serialized chunks.
+     */
+    int negotiateChunkEncoding( int encodings ) throws RemoteException;
+    
+    /**
+     * @param size the number of adds and removes the client wants to send
+     * in each {@link RmiSailConnection#applyBatch(java.util.List)}.
+     * @return the number of adds and removes to send in each batch, 1 or
+     * less to send them one at a time.
+     */
+    int negotiateWriteBatchSize( int size ) throws RemoteException;
 }
@@ -6,6 +6,8 @@ import java.net.URI;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
@@ -24,8 +26,11 @@ public class RmiSailClient implements NotifyingSail
 {
     static final String RMI_CONNECTION_FAILED = "RMI connection failed.";
     static final ValueFactory valueFactory = new ValueFactoryImpl();
+    static final int DEFAULT_WRITE_BATCH_SIZE = 1000;
     private final RmiSail rmi;
     private volatile RmiSailChangedListenerCallbackImpl callback = null;
+    private volatile int chunkEncoding;
+    private volatile int writeBatchSize;
     boolean alive = true;
     
     private synchronized RmiSailChangedListenerCallbackImpl callback()
@@ -53,6 +58,94 @@ public class RmiSailClient implements NotifyingSail
         RemoteException, NotBoundException
     {
         rmi = ( RmiSail ) Naming.lookup( resourceUri.toString() );
+        setChunkEncoding( true, false );
+        setWriteBatchSize( DEFAULT_WRITE_BATCH_SIZE );
+    }
+    
+    /**
+     * Sets how the chunks of results, f.ex. of statements and query results,
+     * are sent from the server. By default they're binary encoded, with
+     * repeated namespaces sent only once per result, but not compressed.
+     * Falls back to serialized chunks if the server doesn't support the
+     * encoding. Only affects connections created after this call.
+     * 
+     * @param binary whether or not to encode the chunks, instead of
+     * serializing them.
+     * @param compress whether or not to also compress them, which is worth
+     * it on slow networks.
+     * @throws RemoteException if the server couldn't be reached.
+     */
+    public void setChunkEncoding( boolean binary, boolean compress )
+        throws RemoteException
+    {
+        int encodings = binary ? ChunkCodec.BINARY |
+            ( compress ? ChunkCodec.DEFLATE : 0 ) : 0;
+        try
+        {
+            chunkEncoding = encodings == 0 ? 0 :
+                rmi.negotiateChunkEncoding( encodings );
+        }
+        catch ( RemoteException ex )
+        {
+            if ( !isUnknownMethod( ex ) )
+            {
+                throw ex;
+            }
+            // An older server
+            chunkEncoding = 0;
+        }
+    }
+    
+    /**
+     * @return whether or not {@code ex} means that the server doesn't have
+     * the called method. The server reports an unknown method as an
+     * {@link UnmarshalException}, wrapped in a {@link ServerException} when
+     * it's sent back.
+     */
+    private static boolean isUnknownMethod( RemoteException ex )
+    {
+        Throwable cause = ex instanceof ServerException ? ex.detail : ex;
+        return cause instanceof UnmarshalException;
+    }
+    
+    int getChunkEncoding()
+    {
+        return chunkEncoding;
+    }
+    
+    /**
+     * Sets how many adds and removes of statements a connection buffers
+     * before sending them to the server in one round trip. They're also sent
+     * on commit and before any read on the same connection, so the
+     * connection always sees its own writes. Falls back to sending each
+     * one as it's made if the server doesn't support batches. Only affects
+     * connections created after this call.
+     * 
+     * @param size the max number of buffered adds and removes, 1 or less to
+     * send each one as it's made.
+     * @throws RemoteException if the server couldn't be reached.
+     */
+    public void setWriteBatchSize( int size ) throws RemoteException
+    {
+        try
+        {
+            writeBatchSize = size <= 1 ? size :
+                rmi.negotiateWriteBatchSize( size );
+        }
+        catch ( RemoteException ex )
+        {
+            if ( !isUnknownMethod( ex ) )
+            {
+                throw ex;
+            }
+            // An older server, without applyBatch()
+            writeBatchSize = 1;
+        }
+    }
+    
+    public int getWriteBatchSize()
+    {
+        return writeBatchSize;
     }
     
     public NotifyingSailConnection getConnection() throws SailException
@@ -61,7 +154,8 @@ public class RmiSailClient implements NotifyingSail
         {
             RmiSailConnectionListenerCallbackImpl callback =
                 new RmiSailConnectionListenerCallbackImpl();
-            return new LocalSailConnection( rmi.connect( callback ), callback );
+            return new LocalSailConnection( rmi.connect( callback ), callback,
+                chunkEncoding, writeBatchSize );
         }
         catch ( RemoteException ex )
         {
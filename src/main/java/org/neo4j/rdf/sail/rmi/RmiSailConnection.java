@@ -2,6 +2,7 @@ package org.neo4j.rdf.sail.rmi;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Map;
 
 import org.neo4j.rdf.sail.FulltextQueryResult;
@@ -32,6 +33,13 @@ interface RmiSailConnection extends Remote
         URI pred, Value obj, Resource[] contexts )
         throws SailException, RemoteException;
     
+    /**
+     * Performs the adds and removes in {@code operations}, in order, as if
+     * they had been made one at a time, but in one round trip.
+     */
+    void applyBatch( List<WriteOperation> operations )
+        throws SailException, RemoteException;
+    
     void clear( Resource[] contexts ) throws SailException, RemoteException;
     
     void clearNamespaces() throws SailException, RemoteException;
@@ -70,6 +78,9 @@ interface RmiSailConnection extends Remote
         evaluateWithSnippets( String query, int snippetCountLimit )
         throws SailException, RemoteException;
     
+    List<FulltextQueryResult> evaluate( String query, int offset, int limit )
+        throws SailException, RemoteException;
+    
     RmiIterationBuffer<? extends Resource, SailException> getContextIDs()
         throws SailException, RemoteException;
     
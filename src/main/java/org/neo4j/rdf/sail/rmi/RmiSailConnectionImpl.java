@@ -5,6 +5,7 @@ import java.rmi.server.RMIClientSocketFactory;
 import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.server.Unreferenced;
+import java.util.List;
 import java.util.Map;
 
 import org.neo4j.rdf.sail.FulltextQueryResult;
@@ -29,6 +30,7 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
     private final SailConnection connection;
     private final RmiSailConnectionFactory factory;
     private boolean connected = true;
+    private volatile CallbackSender callbackSender;
     
     RmiSailConnectionImpl( SailConnection connection,
         RmiSailConnectionFactory factory ) throws RemoteException
@@ -55,6 +57,11 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
         this.factory = factory;
     }
 
+    void setCallbackSender( CallbackSender callbackSender )
+    {
+        this.callbackSender = callbackSender;
+    }
+    
     void callbackConnectionLost()
     {
         // Assume that the connection is lost in the incoming direction as well
@@ -63,6 +70,7 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
     
     public void unreferenced()
     {
+        closeCallbackSender();
         if ( connected )
         {
             try
@@ -94,6 +102,15 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
             contexts );
     }
     
+    public void applyBatch( List<WriteOperation> operations )
+        throws SailException
+    {
+        for ( WriteOperation operation : operations )
+        {
+            operation.applyTo( connection );
+        }
+    }
+    
     public void clear( Resource[] contexts ) throws SailException
     {
         connection.clear( contexts );
@@ -104,8 +121,18 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
         connection.clearNamespaces();
     }
     
+    private void closeCallbackSender()
+    {
+        CallbackSender sender = callbackSender;
+        if ( sender != null )
+        {
+            sender.close();
+        }
+    }
+    
     public void close() throws SailException
     {
+        closeCallbackSender();
         connection.close();
         connected = false;
     }
@@ -113,6 +140,15 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
     public void commit() throws SailException
     {
         connection.commit();
+        // Let the client's listeners see the whole transaction before the
+        // commit returns, like they did when they were notified one by one.
+        // Not with asynchronous listeners on the sail though, then events
+        // still queued in its dispatcher are sent after the commit returns
+        CallbackSender sender = callbackSender;
+        if ( sender != null && !sender.flush() )
+        {
+            callbackConnectionLost();
+        }
     }
     
     public String getNamespace( String prefix ) throws SailException
@@ -205,6 +241,15 @@ class RmiSailConnectionImpl extends UnicastRemoteObject
             query, snippetCountLimit ) );
     }
     
+    public List<FulltextQueryResult> evaluate( String query, int offset,
+        int limit ) throws SailException, RemoteException
+    {
+        // A whole page in one call, the statements are fully read when
+        // they're serialized
+        GraphDatabaseSailConnection sailCollection = getSailConnection();
+        return sailCollection.evaluate( query, offset, limit );
+    }
+    
     public void setStatementMetadata( Statement statement,
         Map<String, Literal> metadata ) throws SailException, RemoteException
     {
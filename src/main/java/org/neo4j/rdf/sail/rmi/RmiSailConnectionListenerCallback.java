@@ -2,6 +2,7 @@ package org.neo4j.rdf.sail.rmi;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.openrdf.model.Statement;
 
@@ -10,4 +11,11 @@ interface RmiSailConnectionListenerCallback extends Remote
     void statementAdded( Statement statement ) throws RemoteException;
     
     void statementRemoved( Statement statement ) throws RemoteException;
+    
+    /**
+     * Delivers a batch of events, in the order they happened, see
+     * {@link CallbackSender}.
+     */
+    void statementsChanged( List<ListenerEvent> events )
+        throws RemoteException;
 }
@@ -3,6 +3,7 @@ package org.neo4j.rdf.sail.rmi;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.openrdf.model.Statement;
@@ -34,4 +35,15 @@ class RmiSailConnectionListenerCallbackImpl extends UnicastRemoteObject
             listener.statementRemoved( statement );
         }
     }
+    
+    public void statementsChanged( List<ListenerEvent> events )
+    {
+        for ( ListenerEvent event : events )
+        {
+            for ( SailConnectionListener listener : listeners )
+            {
+                event.dispatchTo( listener );
+            }
+        }
+    }
 }
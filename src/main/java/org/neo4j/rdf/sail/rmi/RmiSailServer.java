@@ -171,7 +171,13 @@ public class RmiSailServer extends UnicastRemoteObject implements RmiSail
     }
     
     /**
-     * Used by the client to get a connection to the sail.
+     * Used by the client to get a connection to the sail. The listener
+     * events of the connection are sent to {@code callback} before its
+     * commit returns, unless the sail delivers listener events
+     * asynchronously, see {@link
+     * org.neo4j.rdf.sail.GraphDatabaseSail#setAsynchronousListeners(int,
+     * org.neo4j.rdf.sail.ListenerOverflowPolicy)}, in which case they may
+     * arrive after it.
      * 
      * @param callback acts as {@link SailConnectionListener} over RMI.
      * @throws RemoteException if an RMI problem occurs.
@@ -184,28 +190,25 @@ public class RmiSailServer extends UnicastRemoteObject implements RmiSail
     {
         final NotifyingSailConnection connection = sail.getConnection();
         final RmiSailConnectionImpl remote = factory.connect(connection);
+        // The events are sent in batches from another thread, and all of
+        // them before commit returns
+        final CallbackSender sender = new CallbackSender( callback );
+        remote.setCallbackSender( sender );
         connection.addConnectionListener( new SailConnectionListener()
         {
             public void statementAdded( Statement statement )
             {
-                try
-                {
-                    callback.statementAdded( statement );
-                }
-                catch ( RemoteException e )
-                {
-                    connection.removeConnectionListener( this );
-                    remote.callbackConnectionLost();
-                }
+                send( new ListenerEvent( true, statement ) );
             }
             
             public void statementRemoved( Statement statement )
             {
-                try
-                {
-                    callback.statementRemoved( statement );
-                }
-                catch ( RemoteException e )
+                send( new ListenerEvent( false, statement ) );
+            }
+            
+            private void send( ListenerEvent event )
+            {
+                if ( !sender.send( event ) )
                 {
                     connection.removeConnectionListener( this );
                     remote.callbackConnectionLost();
@@ -248,6 +251,16 @@ public class RmiSailServer extends UnicastRemoteObject implements RmiSail
         sail.setDataDir( file );
     }
     
+    public int negotiateChunkEncoding( int encodings )
+    {
+        return ChunkCodec.supported( encodings );
+    }
+    
+    public int negotiateWriteBatchSize( int size )
+    {
+        return size;
+    }
+    
     /**
      * Calls the underlying sail's
      * {@link Sail#addSailChangedListener(SailChangedListener)}. TODO.
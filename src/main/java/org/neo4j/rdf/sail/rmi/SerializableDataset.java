@@ -0,0 +1,56 @@
+package org.neo4j.rdf.sail.rmi;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.Dataset;
+
+/**
+ * A copy of a {@link Dataset} which can be sent over RMI, the
+ * {@link Dataset} implementations of Sesame aren't serializable.
+ */
+class SerializableDataset implements Dataset, Serializable
+{
+    private final Set<URI> defaultGraphs;
+    private final Set<URI> namedGraphs;
+    
+    SerializableDataset( Dataset dataset )
+    {
+        this.defaultGraphs = new LinkedHashSet<URI>(
+            dataset.getDefaultGraphs() );
+        this.namedGraphs = new LinkedHashSet<URI>( dataset.getNamedGraphs() );
+    }
+    
+    /**
+     * @return {@code dataset}, or a serializable copy of it if it isn't
+     * serializable.
+     */
+    static Dataset copyOf( Dataset dataset )
+    {
+        if ( dataset == null || dataset instanceof Serializable )
+        {
+            return dataset;
+        }
+        return new SerializableDataset( dataset );
+    }
+    
+    public Set<URI> getDefaultGraphs()
+    {
+        return Collections.unmodifiableSet( defaultGraphs );
+    }
+    
+    public Set<URI> getNamedGraphs()
+    {
+        return Collections.unmodifiableSet( namedGraphs );
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "Dataset[default=" + defaultGraphs + ", named=" +
+            namedGraphs + "]";
+    }
+}
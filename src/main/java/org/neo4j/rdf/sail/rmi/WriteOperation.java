@@ -0,0 +1,48 @@
+package org.neo4j.rdf.sail.rmi;
+
+import java.io.Serializable;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * An add or remove of statements buffered on the client side, to be sent to
+ * the server in a batch, see {@link RmiSailConnection#applyBatch(java.util.List)}.
+ */
+class WriteOperation implements Serializable
+{
+    private final boolean add;
+    private final Resource subject;
+    private final URI predicate;
+    private final Value object;
+    private final Resource[] contexts;
+    
+    WriteOperation( boolean add, Resource subject, URI predicate, Value object,
+        Resource[] contexts )
+    {
+        this.add = add;
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+        // The caller may reuse its array while this one is buffered
+        this.contexts = contexts.clone();
+    }
+    
+    /**
+     * Performs the add or remove on {@code connection}.
+     */
+    void applyTo( SailConnection connection ) throws SailException
+    {
+        if ( add )
+        {
+            connection.addStatement( subject, predicate, object, contexts );
+        }
+        else
+        {
+            connection.removeStatements( subject, predicate, object, contexts );
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.neo4j.rdf.sail.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of canonical instances of immutable values, so that a
+ * value which is created over and over (f.ex. the same predicate for
+ * every row of a query result) is allocated once and then shared.
+ *
+ * The cache is split into segments, each one a small LRU map guarded by
+ * its own lock, so that concurrent lookups of different keys seldom
+ * contend. A capacity of 0 disables the cache.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the cached values, must be immutable.
+ */
+public class InterningCache<K, V>
+{
+    private static final int SEGMENT_COUNT = 16;
+
+    private final List<Segment> segments = new ArrayList<Segment>( SEGMENT_COUNT );
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile int capacity;
+    private volatile int segmentCapacity;
+
+    public InterningCache( int capacity )
+    {
+        for ( int i = 0; i < SEGMENT_COUNT; i++ )
+        {
+            segments.add( new Segment() );
+        }
+        setCapacity( capacity );
+    }
+
+    /**
+     * Sets the maximum number of values in the cache, the cache is cleared.
+     * @param capacity the maximum number of values, 0 disables the cache.
+     */
+    public void setCapacity( int capacity )
+    {
+        if ( capacity < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid capacity " + capacity );
+        }
+        this.capacity = capacity;
+        this.segmentCapacity = capacity == 0 ? 0 :
+            Math.max( 1, capacity / SEGMENT_COUNT );
+        clear();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @param key the key of the value.
+     * @return the cached value for {@code key}, or {@code null} if it isn't
+     * cached. Counts as a hit or a miss.
+     */
+    public V get( K key )
+    {
+        if ( segmentCapacity == 0 )
+        {
+            return null;
+        }
+        Segment segment = segmentFor( key );
+        V value;
+        synchronized ( segment )
+        {
+            value = segment.get( key );
+        }
+        ( value != null ? hits : misses ).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, unless another value was cached
+     * for it in the meantime.
+     * @param key the key of the value.
+     * @param value the value to cache.
+     * @return the canonical value for {@code key}, i.e. the value which
+     * was already cached or else {@code value}.
+     */
+    public V intern( K key, V value )
+    {
+        if ( segmentCapacity == 0 )
+        {
+            return value;
+        }
+        Segment segment = segmentFor( key );
+        synchronized ( segment )
+        {
+            V existing = segment.get( key );
+            if ( existing != null )
+            {
+                return existing;
+            }
+            segment.put( key, value );
+            return value;
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the ratio of lookups which were hits, between 0 and 1.
+     */
+    public double getHitRate()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : ( double ) hitCount / total;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all values and resets the hit/miss counts.
+     */
+    public void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                segment.clear();
+            }
+        }
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    private Segment segmentFor( K key )
+    {
+        int hash = key.hashCode();
+        // Spread the bits, the low bits of f.ex. String hashes cluster
+        hash ^= ( hash >>> 20 ) ^ ( hash >>> 12 );
+        hash ^= ( hash >>> 7 ) ^ ( hash >>> 4 );
+        return segments.get( hash & ( SEGMENT_COUNT - 1 ) );
+    }
+
+    private class Segment extends LinkedHashMap<K, V>
+    {
+        Segment()
+        {
+            super( 16, 0.75f, true );
+        }
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<K, V> eldest )
+        {
+            return size() > segmentCapacity;
+        }
+    }
+}
@@ -1,34 +1,213 @@
 package org.neo4j.rdf.sail.utils;
 
+import java.io.File;
 import java.io.IOException;
 
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.neo4j.rdf.sail.changelog.ChangeLogWriter;
 
+/**
+ * The log of the operations made through sail connections. By default the
+ * lines are written to the file by a background thread, through a bounded
+ * buffer, see {@link #setBufferSize(int)}. How the individual statements
+ * which are added and removed are logged is decided by
+ * {@link #setStatementLogging(StatementLogging)}.
+ */
 public class MutatingLogger
 {
+    /**
+     * How the statements added and removed through connections are logged.
+     */
+    public static enum StatementLogging
+    {
+        /**
+         * Not at all.
+         */
+        OFF,
+        
+        /**
+         * As lines in the text log, with the full statements.
+         */
+        TEXT,
+        
+        /**
+         * As transactions in a change log, see {@link ChangeLogWriter}, in
+         * the {@code mutating-operations} directory unless another one is
+         * set with {@link MutatingLogger#setBinaryLogDirectory(File)}. The
+         * statements are logged when their transaction commits, those of
+         * rolled back transactions aren't logged.
+         */
+        BINARY
+    }
+    
+    private static final String LOG_FILE = "mutating-operations.log";
+    private static final String BINARY_LOG_DIRECTORY = "mutating-operations";
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    
+    private static final Layout layout = new PatternLayout(
+        "[%d{ISO8601}]: %m%n" );
     private static Logger logger;
+    private static Appender appender;
+    private static int bufferSize;
+    private static volatile StatementLogging statementLogging =
+        StatementLogging.TEXT;
+    private static ChangeLogWriter binaryLog;
+    private static File binaryLogDirectory = new File( BINARY_LOG_DIRECTORY );
     static
     {
-        Layout layout = new PatternLayout( "[%d{ISO8601}]: %m%n" );
         logger = Logger.getLogger( MutatingLogger.class );
+        setBufferSize( DEFAULT_BUFFER_SIZE );
+        Runtime.getRuntime().addShutdownHook( new Thread()
+        {
+            @Override
+            public void run()
+            {
+                close();
+            }
+        } );
+        logger.info( "new session ==========================================" );
+    }
+    
+    public static Logger getLogger()
+    {
+        return logger;
+    }
+    
+    /**
+     * Sets the number of log lines which may wait to be written to the
+     * file. Logging only blocks when the buffer is full. Lines still in
+     * the buffer when the JVM is killed are lost.
+     *
+     * @param size the size of the buffer, 0 makes the lines be written
+     * before logging returns.
+     */
+    public static synchronized void setBufferSize( int size )
+    {
+        if ( size < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid buffer size " + size );
+        }
+        Appender fileAppender;
         try
         {
-            logger.addAppender( new FileAppender( layout, 
-                "mutating-operations.log" ) );
+            fileAppender = new FileAppender( layout, LOG_FILE );
         }
         catch ( IOException e )
         {
             throw new RuntimeException( e );
         }
-        logger.info( "new session ==========================================" );
+        Appender previous = appender;
+        if ( size == 0 )
+        {
+            appender = fileAppender;
+        }
+        else
+        {
+            AsyncAppender asyncAppender = new AsyncAppender();
+            asyncAppender.setBufferSize( size );
+            asyncAppender.setBlocking( true );
+            asyncAppender.addAppender( fileAppender );
+            appender = asyncAppender;
+        }
+        logger.addAppender( appender );
+        if ( previous != null )
+        {
+            // Writes what's still buffered
+            logger.removeAppender( previous );
+            previous.close();
+        }
+        bufferSize = size;
     }
     
-    public static Logger getLogger()
+    public static synchronized int getBufferSize()
     {
-        return logger;
+        return bufferSize;
+    }
+    
+    public static void setStatementLogging( StatementLogging mode )
+    {
+        statementLogging = mode;
+    }
+    
+    public static StatementLogging getStatementLogging()
+    {
+        return statementLogging;
+    }
+    
+    /**
+     * Sets the directory of the binary statement log. The current log is
+     * closed, and the new one is opened when it's next written to.
+     */
+    public static synchronized void setBinaryLogDirectory( File directory )
+    {
+        closeBinaryLog();
+        binaryLogDirectory = directory;
+    }
+    
+    public static synchronized File getBinaryLogDirectory()
+    {
+        return binaryLogDirectory;
+    }
+    
+    /**
+     * Writes a committed transaction to the binary statement log, which is
+     * opened the first time this is called.
+     */
+    public static void logTransaction( long timestamp,
+        ChangeLogWriter.OperationSource operations )
+    {
+        try
+        {
+            getBinaryLog().append( timestamp, operations );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Couldn't write to the binary statement log", e );
+        }
+    }
+    
+    private static synchronized ChangeLogWriter getBinaryLog()
+        throws IOException
+    {
+        if ( binaryLog == null )
+        {
+            binaryLog = new ChangeLogWriter( binaryLogDirectory );
+            // An audit log, it's written after the commit anyway
+            binaryLog.setForceOnCommit( false );
+        }
+        return binaryLog;
+    }
+    
+    private static synchronized void close()
+    {
+        closeBinaryLog();
+        if ( appender != null )
+        {
+            logger.removeAppender( appender );
+            appender.close();
+            appender = null;
+        }
+    }
+    
+    private static synchronized void closeBinaryLog()
+    {
+        if ( binaryLog != null )
+        {
+            try
+            {
+                binaryLog.close();
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Couldn't close the binary statement log", e );
+            }
+            binaryLog = null;
+        }
     }
     
     public static class Timer
@@ -29,11 +29,23 @@ public class SailConnectionTripleSource implements TripleSource {
                                                                                            final Resource... contexts) {
         try {
             return new QueryEvaluationIteration(
-                    baseConnection.getStatements(subj, pred, obj, includeInferred, contexts));
+                    getBaseStatements(subj, pred, obj, includeInferred, contexts));
         } catch (SailException e) {
             return new EmptyCloseableIteration<Statement, QueryEvaluationException>();
         }
     }
+
+    /**
+     * Gets the statements from the base connection, override to get them
+     * in some other way than {@link SailConnection#getStatements}.
+     */
+    protected CloseableIteration<? extends Statement, SailException> getBaseStatements(final Resource subj,
+                                                                                        final URI pred,
+                                                                                        final Value obj,
+                                                                                        final boolean includeInferred,
+                                                                                        final Resource... contexts) throws SailException {
+        return baseConnection.getStatements(subj, pred, obj, includeInferred, contexts);
+    }
     
     private String contextsString( Resource... contexts )
     {
@@ -0,0 +1,234 @@
+package org.neo4j.rdf.sail.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+/**
+ * A compact binary encoding of Sesame values: a type byte followed by the
+ * UTF-8 bytes of the value, prefixed by their length as a variable length
+ * integer. Language and datatype of literals follow the label. {@code null}
+ * is encoded as a single byte, so that f.ex. the null context can be
+ * written. How URIs, datatypes included, are written can be changed with a
+ * {@link UriWriter} and {@link UriReader}, f.ex. to write them as ids in a
+ * dictionary.
+ */
+public class ValueEncoding
+{
+    /**
+     * Writes the URIs of values, see
+     * {@link ValueEncoding#writeValue(DataOutput, Value, UriWriter)}.
+     */
+    public static interface UriWriter
+    {
+        void writeUri( DataOutput out, String uri ) throws IOException;
+    }
+
+    /**
+     * Reads the URIs written by a {@link UriWriter}.
+     */
+    public static interface UriReader
+    {
+        String readUri( DataInput in ) throws IOException;
+    }
+
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final byte NULL = 0;
+    private static final byte URI = 1;
+    private static final byte BNODE = 2;
+    private static final byte LITERAL = 3;
+    private static final byte LANGUAGE_LITERAL = 4;
+    private static final byte TYPED_LITERAL = 5;
+
+    private static final UriWriter STRING_URI_WRITER = new UriWriter()
+    {
+        public void writeUri( DataOutput out, String uri ) throws IOException
+        {
+            writeString( out, uri );
+        }
+    };
+
+    private static final UriReader STRING_URI_READER = new UriReader()
+    {
+        public String readUri( DataInput in ) throws IOException
+        {
+            return readString( in );
+        }
+    };
+
+    private ValueEncoding()
+    {
+    }
+
+    /**
+     * Writes {@code value}, which may be {@code null}, to {@code out}.
+     * @param out the output to write to.
+     * @param value the value to write.
+     * @throws IOException if the write fails.
+     */
+    public static void writeValue( DataOutput out, Value value )
+        throws IOException
+    {
+        writeValue( out, value, STRING_URI_WRITER );
+    }
+
+    /**
+     * Writes {@code value}, which may be {@code null}, to {@code out}, with
+     * its URIs written by {@code uris}.
+     * @param out the output to write to.
+     * @param value the value to write.
+     * @param uris the writer of the URIs.
+     * @throws IOException if the write fails.
+     */
+    public static void writeValue( DataOutput out, Value value,
+        UriWriter uris ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeByte( NULL );
+        }
+        else if ( value instanceof URI )
+        {
+            out.writeByte( URI );
+            uris.writeUri( out, value.stringValue() );
+        }
+        else if ( value instanceof BNode )
+        {
+            out.writeByte( BNODE );
+            writeString( out, ( ( BNode ) value ).getID() );
+        }
+        else if ( value instanceof Literal )
+        {
+            Literal literal = ( Literal ) value;
+            if ( literal.getLanguage() != null )
+            {
+                out.writeByte( LANGUAGE_LITERAL );
+                writeString( out, literal.getLabel() );
+                writeString( out, literal.getLanguage() );
+            }
+            else if ( literal.getDatatype() != null )
+            {
+                out.writeByte( TYPED_LITERAL );
+                writeString( out, literal.getLabel() );
+                uris.writeUri( out, literal.getDatatype().stringValue() );
+            }
+            else
+            {
+                out.writeByte( LITERAL );
+                writeString( out, literal.getLabel() );
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unknown value type " +
+                value.getClass() );
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue(DataOutput, Value)}.
+     * @param in the input to read from.
+     * @param valueFactory the factory to create the value with.
+     * @return the value, or {@code null} if {@code null} was written.
+     * @throws IOException if the read fails or the input is corrupt.
+     */
+    public static Value readValue( DataInput in, ValueFactory valueFactory )
+        throws IOException
+    {
+        return readValue( in, valueFactory, STRING_URI_READER );
+    }
+
+    /**
+     * Reads a value written by
+     * {@link #writeValue(DataOutput, Value, UriWriter)}.
+     * @param in the input to read from.
+     * @param valueFactory the factory to create the value with.
+     * @param uris the reader of the URIs.
+     * @return the value, or {@code null} if {@code null} was written.
+     * @throws IOException if the read fails or the input is corrupt.
+     */
+    public static Value readValue( DataInput in, ValueFactory valueFactory,
+        UriReader uris ) throws IOException
+    {
+        byte type = in.readByte();
+        switch ( type )
+        {
+        case NULL:
+            return null;
+        case URI:
+            return valueFactory.createURI( uris.readUri( in ) );
+        case BNODE:
+            return valueFactory.createBNode( readString( in ) );
+        case LITERAL:
+            return valueFactory.createLiteral( readString( in ) );
+        case LANGUAGE_LITERAL:
+            String label = readString( in );
+            return valueFactory.createLiteral( label, readString( in ) );
+        case TYPED_LITERAL:
+            String typedLabel = readString( in );
+            return valueFactory.createLiteral( typedLabel,
+                valueFactory.createURI( uris.readUri( in ) ) );
+        default:
+            throw new IOException( "Unknown value type " + type );
+        }
+    }
+
+    public static void writeString( DataOutput out, String string )
+        throws IOException
+    {
+        byte[] bytes = string.getBytes( CHARSET );
+        writeVarInt( out, bytes.length );
+        out.write( bytes );
+    }
+
+    public static String readString( DataInput in ) throws IOException
+    {
+        byte[] bytes = new byte[ readVarInt( in ) ];
+        in.readFully( bytes );
+        return new String( bytes, CHARSET );
+    }
+
+    /**
+     * Writes a non-negative integer in 1-5 bytes, seven bits per byte.
+     * @param out the output to write to.
+     * @param value the integer to write.
+     * @throws IOException if the write fails.
+     */
+    public static void writeVarInt( DataOutput out, int value )
+        throws IOException
+    {
+        if ( value < 0 )
+        {
+            throw new IllegalArgumentException( "Negative value " + value );
+        }
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            out.writeByte( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out.writeByte( value );
+    }
+
+    public static int readVarInt( DataInput in ) throws IOException
+    {
+        int value = 0;
+        for ( int shift = 0; shift < 35; shift += 7 )
+        {
+            byte b = in.readByte();
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+        throw new IOException( "Malformed variable length integer" );
+    }
+}
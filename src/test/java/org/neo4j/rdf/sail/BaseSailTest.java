@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import info.aduna.iteration.CloseableIteration;
 
 import java.util.Collection;
@@ -12,6 +13,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -1485,6 +1487,25 @@ public abstract class BaseSailTest
             count = countStatements( ( (GraphDatabaseSailConnection) sc ).evaluate( "aliq* integer" ) );
             assertEquals( 2, count );
 
+            // Paged
+            GraphDatabaseSailConnection fulltext = ( GraphDatabaseSailConnection ) sc;
+            List<FulltextQueryResult> page = fulltext.evaluate( "Lorem ipsum", 0, 1 );
+            assertEquals( 1, page.size() );
+            assertEquals( uriA, page.get( 0 ).getStatement().getSubject() );
+            assertEquals( uriB, page.get( 0 ).getStatement().getPredicate() );
+            assertEquals( 1, fulltext.evaluate( "Lorem ipsum", 1, 10 ).size() );
+            assertEquals( 0, fulltext.evaluate( "Lorem ipsum", 2, 10 ).size() );
+            assertEquals( 0, fulltext.evaluate( "Lorem ipsum", 0, 0 ).size() );
+            try
+            {
+                fulltext.evaluate( "Lorem ipsum", 0, -1 );
+                fail( "A negative limit should be rejected" );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // Good
+            }
+
             sc.removeStatements( uriA, null, null );
             sc.commit();
         }
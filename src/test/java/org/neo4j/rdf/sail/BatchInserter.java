@@ -2,6 +2,7 @@ package org.neo4j.rdf.sail;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -10,11 +11,7 @@ import org.neo4j.rdf.store.RdfStore;
 import org.neo4j.rdf.store.VerboseQuadStore;
 import org.neo4j.index.IndexService;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
-import org.openrdf.repository.Repository;
-import org.openrdf.repository.RepositoryConnection;
-import org.openrdf.repository.sail.SailRepository;
 import org.openrdf.rio.RDFFormat;
-import org.openrdf.sail.Sail;
 
 public class BatchInserter
 {
@@ -30,18 +27,13 @@ public class BatchInserter
 	public void insert( File... files ) throws Exception
 	{
 		SimpleTimer timer = new SimpleTimer();
-		Sail sail = new GraphDatabaseSail( graphDb, store );
+		GraphDatabaseSail sail = new GraphDatabaseSail( graphDb, store );
 		try
 		{
 			sail.initialize();
-			Repository repo = new SailRepository( sail );
-			RepositoryConnection rc = repo.getConnection();
-			for ( File file : files )
-			{
-				rc.add( file, "", RDFFormat.TRIG );
-			}
-			rc.commit();
-			rc.close();
+			BulkLoadReport report = sail.bulkLoad( Arrays.asList( files ),
+				RDFFormat.TRIG, "", Runtime.getRuntime().availableProcessors() );
+			System.out.println( report );
 		}
 		finally
 		{
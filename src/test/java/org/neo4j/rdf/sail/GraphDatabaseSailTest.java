@@ -1,11 +1,67 @@
 package org.neo4j.rdf.sail;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import info.aduna.iteration.CloseableIteration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.index.IndexService;
+import org.neo4j.rdf.sail.changelog.ChangeLogOperation;
+import org.neo4j.rdf.sail.changelog.ChangeLogReader;
+import org.neo4j.rdf.sail.changelog.ChangeLogTransaction;
+import org.neo4j.rdf.sail.changelog.ChangeLogWriter;
+import org.neo4j.rdf.sail.utils.MutatingLogger;
 import org.neo4j.rdf.store.CachingLuceneIndexService;
 import org.neo4j.rdf.store.RdfStore;
+import org.neo4j.rdf.store.VerboseQuadStore;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParseException;
 import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.NotifyingSailConnection;
+import org.openrdf.sail.SailChangedEvent;
+import org.openrdf.sail.SailChangedListener;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailConnectionListener;
+import org.openrdf.sail.SailException;
 
 public class GraphDatabaseSailTest extends BaseSailTest
 {
@@ -22,6 +78,1682 @@ public class GraphDatabaseSailTest extends BaseSailTest
 	public void testLoadGraphDbSail()
 	{
 	}
+	
+	@Test
+	public void testReadOnlyConnection() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    SailConnection writer = graphDbSail.getConnection();
+	    long expected = countStatements( writer );
+	    writer.close();
+	    
+	    final SailConnection reader = graphDbSail.getReadOnlyConnection();
+	    try
+	    {
+	        // Consume several iterations of the same connection concurrently
+	        final AtomicInteger failures = new AtomicInteger();
+	        final long[] counts = new long[ 4 ];
+	        Thread[] threads = new Thread[ counts.length ];
+	        for ( int i = 0; i < threads.length; i++ )
+	        {
+	            final int index = i;
+	            threads[ i ] = new Thread()
+	            {
+	                @Override
+	                public void run()
+	                {
+	                    try
+	                    {
+	                        counts[ index ] = countStatements( reader );
+	                    }
+	                    catch ( Exception e )
+	                    {
+	                        e.printStackTrace();
+	                        failures.incrementAndGet();
+	                    }
+	                }
+	            };
+	            threads[ i ].start();
+	        }
+	        for ( Thread thread : threads )
+	        {
+	            thread.join();
+	        }
+	        assertEquals( 0, failures.get() );
+	        for ( long count : counts )
+	        {
+	            assertEquals( expected, count );
+	        }
+	        
+	        URI uri = graphDbSail.getValueFactory().createURI(
+	            "http://example.org/readOnly" );
+	        try
+	        {
+	            reader.addStatement( uri, uri, uri );
+	            fail( "Shouldn't be able to write through a read-only connection" );
+	        }
+	        catch ( SailException e )
+	        {
+	            // Good
+	        }
+	    }
+	    finally
+	    {
+	        reader.close();
+	    }
+	}
+	
+	@Test
+	public void testStatistics() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    StatementStatistics statistics = graphDbSail.getStatistics();
+	    URI subject = graphDbSail.getValueFactory().createURI(
+	        "http://example.org/statistics#subject" );
+	    URI predicate = graphDbSail.getValueFactory().createURI(
+	        "http://example.org/statistics#predicate" );
+	    URI context = graphDbSail.getValueFactory().createURI(
+	        "http://example.org/statistics#context" );
+	    long total = statistics.getStatementCount();
+	    
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addStatement( subject, predicate, subject, context );
+	        sc.addStatement( subject, predicate, predicate, context );
+	        sc.addStatement( subject, predicate, predicate, context );
+	        sc.addStatement( subject, RDF.TYPE, predicate );
+	        // Not visible until committed
+	        assertEquals( total, statistics.getStatementCount() );
+	        sc.commit();
+	        assertEquals( total + 3, statistics.getStatementCount() );
+	        assertEquals( 2, statistics.getPredicateCount(
+	            predicate.toString() ) );
+	        assertEquals( 2, statistics.getContextCount( context.toString() ) );
+	        assertEquals( 1, statistics.getClassInstanceCount(
+	            predicate.toString() ) );
+	        
+	        // Seeded from the store by a sail opened on it later on
+	        GraphDatabaseSail reopened = new GraphDatabaseSail( graphDb, store );
+	        reopened.initialize();
+	        StatementStatistics loaded = reopened.getStatistics();
+	        assertEquals( total + 3, loaded.getStatementCount() );
+	        assertEquals( 2, loaded.getPredicateCount( predicate.toString() ) );
+	        assertEquals( 2, loaded.getContextCount( context.toString() ) );
+	        assertEquals( 1, loaded.getClassInstanceCount(
+	            predicate.toString() ) );
+	        
+	        sc.removeStatements( subject, predicate, null );
+	        sc.rollback();
+	        assertEquals( 2, statistics.getPredicateCount(
+	            predicate.toString() ) );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        assertEquals( total, statistics.getStatementCount() );
+	        assertEquals( 0, statistics.getPredicateCount(
+	            predicate.toString() ) );
+	        assertEquals( 0, statistics.getContextCount( context.toString() ) );
+	        assertEquals( 0, statistics.getClassInstanceCount(
+	            predicate.toString() ) );
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	    
+	    graphDbSail.rebuildStatistics();
+	    assertEquals( total, statistics.getStatementCount() );
+	}
+	
+	@Test
+	public void testQueryOptimizerStages() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    QueryOptimizerPipeline optimizer = graphDbSail.getQueryOptimizer();
+	    URI uriA = graphDbSail.getValueFactory().createURI(
+	        "http://example.org/optimizer#a" );
+	    URI uriB = graphDbSail.getValueFactory().createURI(
+	        "http://example.org/optimizer#b" );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addStatement( uriA, uriA, uriB );
+	        sc.addStatement( uriB, uriA, uriA );
+	        sc.commit();
+	        String query = "SELECT ?x ?y WHERE { ?x <" + uriA + "> ?y . " +
+	            "?y <" + uriA + "> ?x . FILTER( ?x = <" + uriA + "> ) }";
+	        
+	        optimizer.resetTimings();
+	        assertEquals( 1, countResults( sc, query ) );
+	        for ( QueryOptimizerPipeline.Stage stage :
+	            QueryOptimizerPipeline.Stage.values() )
+	        {
+	            assertEquals( 1, optimizer.getInvocationCount( stage ) );
+	            optimizer.setEnabled( stage, false );
+	        }
+	        
+	        // Same result without any optimization at all
+	        assertEquals( 1, countResults( sc, query ) );
+	        for ( QueryOptimizerPipeline.Stage stage :
+	            QueryOptimizerPipeline.Stage.values() )
+	        {
+	            assertEquals( 1, optimizer.getInvocationCount( stage ) );
+	            optimizer.setEnabled( stage, true );
+	        }
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testNativeJoinEvaluation() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI knows = factory.createURI( "http://example.org/join#knows" );
+	    URI name = factory.createURI( "http://example.org/join#name" );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        // A chain a -> b -> c -> d, with names
+	        URI[] people = new URI[ 4 ];
+	        for ( int i = 0; i < people.length; i++ )
+	        {
+	            people[ i ] = factory.createURI( "http://example.org/join#p" + i );
+	            sc.addStatement( people[ i ], name,
+	                factory.createLiteral( "person " + i ) );
+	            if ( i > 0 )
+	            {
+	                sc.addStatement( people[ i - 1 ], knows, people[ i ] );
+	            }
+	        }
+	        sc.addStatement( people[ 0 ], knows, people[ 0 ] );
+	        sc.commit();
+	        String twoHops = "SELECT ?x ?z ?n WHERE { ?x <" + knows + "> ?y . " +
+	            "?y <" + knows + "> ?z . ?z <" + name + "> ?n }";
+	        String self = "SELECT ?x WHERE { ?x <" + knows + "> ?x }";
+	        String disconnected = "SELECT ?x ?y WHERE { ?x <" + knows +
+	            "> <" + people[ 1 ] + "> . ?y <" + knows + "> <" +
+	            people[ 3 ] + "> }";
+	        
+	        // The filter is moved inside the join by the optimizer
+	        String filtered = "SELECT ?x ?n WHERE { ?x <" + knows + "> ?y . " +
+	            "?y <" + name + "> ?n . FILTER( ?n != \"person 1\" ) }";
+	        // The middle pattern shares no variable with the first one
+	        String unordered = "SELECT ?x ?z ?n WHERE { ?x <" + knows +
+	            "> ?y . ?z <" + name + "> ?n . ?y <" + knows + "> ?z }";
+	        
+	        int[] expected = { countResults( sc, twoHops ),
+	            countResults( sc, self ), countResults( sc, disconnected ),
+	            countResults( sc, filtered ) };
+	        // p0->p0->p1, p0->p1->p2, p1->p2->p3
+	        assertEquals( 3, expected[ 0 ] );
+	        assertEquals( 1, expected[ 1 ] );
+	        assertEquals( 2, expected[ 2 ] );
+	        // p0->p0, p1->p2, p2->p3
+	        assertEquals( 3, expected[ 3 ] );
+	        // Evaluated in the order of the query, with nothing reordered
+	        QueryOptimizerPipeline optimizer = graphDbSail.getQueryOptimizer();
+	        for ( QueryOptimizerPipeline.Stage stage :
+	            QueryOptimizerPipeline.Stage.values() )
+	        {
+	            optimizer.setEnabled( stage, false );
+	        }
+	        try
+	        {
+	            assertEquals( expected[ 0 ], countResults( sc, unordered ) );
+	            assertEquals( expected[ 3 ], countResults( sc, filtered ) );
+	        }
+	        finally
+	        {
+	            for ( QueryOptimizerPipeline.Stage stage :
+	                QueryOptimizerPipeline.Stage.values() )
+	            {
+	                optimizer.setEnabled( stage, true );
+	            }
+	        }
+	        
+	        graphDbSail.setNativeJoinEvaluation( false );
+	        SailConnection nestedLoops = graphDbSail.getConnection();
+	        try
+	        {
+	            assertEquals( expected[ 0 ], countResults( nestedLoops, twoHops ) );
+	            assertEquals( expected[ 1 ], countResults( nestedLoops, self ) );
+	            assertEquals( expected[ 2 ],
+	                countResults( nestedLoops, disconnected ) );
+	            assertEquals( expected[ 3 ],
+	                countResults( nestedLoops, filtered ) );
+	        }
+	        finally
+	        {
+	            nestedLoops.close();
+	            graphDbSail.setNativeJoinEvaluation( true );
+	        }
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testValueCache() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI predicate = factory.createURI( "http://example.org/cache#label" );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 10; i++ )
+	        {
+	            sc.addStatement( factory.createURI(
+	                "http://example.org/cache#s" + i ), predicate,
+	                factory.createLiteral( "label", "en" ) );
+	        }
+	        sc.commit();
+	        GraphDatabaseSail.clearValueCache();
+	        
+	        CloseableIteration<? extends Statement, SailException> statements =
+	            sc.getStatements( null, predicate, null, false );
+	        int count = 0;
+	        Statement previous = null;
+	        while ( statements.hasNext() )
+	        {
+	            Statement statement = statements.next();
+	            assertEquals( predicate, statement.getPredicate() );
+	            assertEquals( factory.createLiteral( "label", "en" ),
+	                statement.getObject() );
+	            if ( previous != null )
+	            {
+	                assertSame( previous.getPredicate(), statement.getPredicate() );
+	                assertSame( previous.getObject(), statement.getObject() );
+	            }
+	            previous = statement;
+	            count++;
+	        }
+	        statements.close();
+	        assertEquals( 10, count );
+	        assertTrue( GraphDatabaseSail.getValueCacheHitCount() > 0 );
+	        assertTrue( GraphDatabaseSail.getValueCacheMissCount() > 0 );
+	        
+	        GraphDatabaseSail.setValueCacheSize( 0 );
+	        assertEquals( 0, GraphDatabaseSail.getValueCacheHitCount() );
+	        statements = sc.getStatements( null, predicate, null, false );
+	        while ( statements.hasNext() )
+	        {
+	            statements.next();
+	        }
+	        statements.close();
+	        assertEquals( 0, GraphDatabaseSail.getValueCacheHitCount() );
+	    }
+	    finally
+	    {
+	        GraphDatabaseSail.setValueCacheSize( InternedValues.DEFAULT_CAPACITY );
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testLazyStatements() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/lazy#s" );
+	    URI predicate = factory.createURI( "http://example.org/lazy#p" );
+	    URI context = factory.createURI( "http://example.org/lazy#c" );
+	    Literal object = factory.createLiteral( "lazy" );
+	    Literal metadataValue = factory.createLiteral( 10 );
+	    GraphDatabaseSailConnection sc =
+	        ( GraphDatabaseSailConnection ) graphDbSail.getConnection();
+	    try
+	    {
+	        Map<String, Literal> metadata = new HashMap<String, Literal>();
+	        metadata.put( predicate.toString(), metadataValue );
+	        sc.addStatement( metadata, subject, predicate, object, context );
+	        CloseableIteration<? extends Statement, SailException> statements =
+	            sc.getStatements( subject, predicate, null, false );
+	        Statement statement = statements.next();
+	        statements.close();
+	        Statement expected = factory.createStatement( subject, predicate,
+	            object, context );
+	        assertEquals( expected, statement );
+	        assertEquals( statement, expected );
+	        assertEquals( expected.hashCode(), statement.hashCode() );
+	        assertEquals( context, statement.getContext() );
+	        
+	        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	        ObjectOutputStream out = new ObjectOutputStream( bytes );
+	        out.writeObject( statement );
+	        out.close();
+	        GraphDatabaseStatement copy = ( GraphDatabaseStatement )
+	            new ObjectInputStream( new ByteArrayInputStream(
+	                bytes.toByteArray() ) ).readObject();
+	        assertEquals( expected, copy );
+	        assertEquals( context, copy.getContext() );
+	        assertEquals( metadataValue,
+	            copy.getMetadata().get( predicate.toString() ) );
+	        
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testStatementPrefetch() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    try
+	    {
+	        // A partly filled last chunk, and all in one chunk
+	        assertPrefetch( graphDbSail, 2 );
+	        assertPrefetch( graphDbSail, 1000 );
+	    }
+	    finally
+	    {
+	        // The default
+	        graphDbSail.setStatementPrefetchSize( 1 );
+	    }
+	}
+	
+	private void assertPrefetch( GraphDatabaseSail graphDbSail,
+	    int prefetchSize ) throws Exception
+	{
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/prefetch#s" );
+	    URI other = factory.createURI( "http://example.org/prefetch#other" );
+	    Set<Value> expected = new HashSet<Value>();
+	    graphDbSail.setStatementPrefetchSize( prefetchSize );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 5; i++ )
+	        {
+	            Literal object = factory.createLiteral( i );
+	            sc.addStatement( subject, RDF.VALUE, object );
+	            expected.add( object );
+	        }
+	        sc.commit();
+	        
+	        // Read to the end, which stays the end
+	        CloseableIteration<? extends Statement, SailException> statements =
+	            sc.getStatements( subject, null, null, false );
+	        Set<Value> objects = new HashSet<Value>();
+	        while ( statements.hasNext() )
+	        {
+	            assertTrue( objects.add( statements.next().getObject() ) );
+	        }
+	        assertEquals( expected, objects );
+	        assertFalse( statements.hasNext() );
+	        try
+	        {
+	            statements.next();
+	            fail( "An exhausted iteration should have no next statement" );
+	        }
+	        catch ( IllegalStateException e )
+	        {
+	            // Good
+	        }
+	        statements.close();
+	        
+	        // Closed part-way through
+	        statements = sc.getStatements( subject, null, null, false );
+	        assertTrue( expected.contains( statements.next().getObject() ) );
+	        statements.close();
+	        
+	        // Written to between chunks, by the same connection
+	        statements = sc.getStatements( subject, null, null, false );
+	        objects.clear();
+	        for ( int i = 0; i < 3; i++ )
+	        {
+	            assertTrue( objects.add( statements.next().getObject() ) );
+	        }
+	        sc.addStatement( other, RDF.VALUE, factory.createLiteral( 5 ) );
+	        while ( statements.hasNext() )
+	        {
+	            assertTrue( objects.add( statements.next().getObject() ) );
+	        }
+	        statements.close();
+	        assertEquals( expected, objects );
+	        
+	        sc.removeStatements( subject, null, null );
+	        sc.removeStatements( other, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testContextIndex() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/contexts#s" );
+	    URI contextA = factory.createURI( "http://example.org/contexts#a" );
+	    URI contextB = factory.createURI( "http://example.org/contexts#b" );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        Set<Resource> before = contextIds( sc );
+	        assertFalse( before.contains( contextA ) );
+	        sc.addStatement( subject, RDF.TYPE, contextA, contextA );
+	        sc.addStatement( subject, RDF.VALUE, contextA, contextA );
+	        sc.addStatement( subject, RDF.TYPE, contextB, contextB );
+	        // Uncommitted changes are visible to the connection itself
+	        assertTrue( contextIds( sc ).contains( contextA ) );
+	        assertEquals( 2, sc.size( contextA ) );
+	        sc.commit();
+	        assertEquals( 2, sc.size( contextA ) );
+	        assertEquals( 1, sc.size( contextB ) );
+	        assertEquals( 3, sc.size( contextA, contextB ) );
+	        Set<Resource> expected = new HashSet<Resource>( before );
+	        expected.add( contextA );
+	        expected.add( contextB );
+	        assertEquals( expected, contextIds( sc ) );
+	        assertEquals( countStatements( sc ), sc.size() );
+	        assertTrue( graphDbSail.verifyCounts( false ).isEmpty() );
+	        // The same counts as the statistics used to optimize queries
+	        assertEquals( sc.size(),
+	            graphDbSail.getStatistics().getStatementCount() );
+	        assertEquals( 2, graphDbSail.getStatistics().getContextCount(
+	            contextA.toString() ) );
+	        
+	        // The counts are persisted
+	        ContextIndex loaded = new ContextIndex( graphDb );
+	        assertTrue( loaded.isBuilt() );
+	        assertEquals( 2, loaded.getCount( contextA.toString() ) );
+	        assertEquals( sc.size(), loaded.getStatementCount() );
+	        
+	        // Duplicates and removes of missing statements don't count,
+	        // whether or not the store has to be looked at to tell
+	        sc.addStatement( subject, RDF.TYPE, contextA, contextA );
+	        sc.addStatement( subject, RDF.REST, contextA, contextA );
+	        sc.addStatement( subject, RDF.REST, contextA, contextA );
+	        sc.removeStatements( subject, RDF.FIRST, null, contextA );
+	        sc.removeStatements( subject, RDF.TYPE, null, contextB );
+	        sc.removeStatements( subject, RDF.TYPE, null, contextB );
+	        assertEquals( 3, sc.size( contextA ) );
+	        assertEquals( 0, sc.size( contextB ) );
+	        sc.commit();
+	        assertEquals( 3, sc.size( contextA ) );
+	        assertEquals( 0, sc.size( contextB ) );
+	        assertEquals( countStatements( sc ), sc.size() );
+	        assertTrue( graphDbSail.verifyCounts( false ).isEmpty() );
+	        
+	        sc.clear( contextA );
+	        sc.commit();
+	        assertEquals( 0, sc.size( contextA ) );
+	        assertFalse( contextIds( sc ).contains( contextA ) );
+	        assertEquals( before, contextIds( sc ) );
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+
+	@Test
+	public void testConcurrentCommitCounts() throws Exception
+	{
+	    final GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    final ValueFactory factory = graphDbSail.getValueFactory();
+	    final URI context = factory.createURI( "http://example.org/concurrent#c" );
+	    final int threadCount = 4;
+	    final int commitCount = 20;
+	    final List<Throwable> failures = new ArrayList<Throwable>();
+	    List<Thread> threads = new ArrayList<Thread>();
+	    for ( int i = 0; i < threadCount; i++ )
+	    {
+	        final int thread = i;
+	        threads.add( new Thread()
+	        {
+	            @Override
+	            public void run()
+	            {
+	                try
+	                {
+	                    SailConnection sc = graphDbSail.getConnection();
+	                    try
+	                    {
+	                        for ( int j = 0; j < commitCount; j++ )
+	                        {
+	                            sc.addStatement( factory.createURI(
+	                                "http://example.org/concurrent#s" + thread +
+	                                "-" + j ), RDF.VALUE,
+	                                factory.createLiteral( j ), context );
+	                            sc.commit();
+	                        }
+	                    }
+	                    finally
+	                    {
+	                        sc.close();
+	                    }
+	                }
+	                catch ( Throwable e )
+	                {
+	                    synchronized ( failures )
+	                    {
+	                        failures.add( e );
+	                    }
+	                }
+	            }
+	        } );
+	    }
+	    for ( Thread thread : threads )
+	    {
+	        thread.start();
+	    }
+	    for ( Thread thread : threads )
+	    {
+	        thread.join();
+	    }
+	    assertTrue( failures.toString(), failures.isEmpty() );
+	
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        assertEquals( threadCount * commitCount, sc.size( context ) );
+	        assertEquals( countStatements( sc ), sc.size() );
+	        assertTrue( graphDbSail.verifyCounts( false ).isEmpty() );
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	    // The shards of the persisted counts add up to the same counts
+	    ContextIndex loaded = new ContextIndex( graphDb );
+	    assertEquals( threadCount * commitCount,
+	        loaded.getCount( context.toString() ) );
+	    assertEquals( graphDbSail.getStatistics().getStatementCount(),
+	        loaded.getStatementCount() );
+	}
+	
+	@Test
+	public void testAsynchronousListeners() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/listeners#s" );
+	    final CountDownLatch release = new CountDownLatch( 1 );
+	    final AtomicInteger received = new AtomicInteger();
+	    SailConnectionListener slowListener = new SailConnectionListener()
+	    {
+	        public void statementAdded( Statement statement )
+	        {
+	            try
+	            {
+	                release.await();
+	            }
+	            catch ( InterruptedException e )
+	            {
+	                Thread.currentThread().interrupt();
+	            }
+	            received.incrementAndGet();
+	        }
+	        
+	        public void statementRemoved( Statement statement )
+	        {
+	        }
+	    };
+	    
+	    graphDbSail.setAsynchronousListeners( 2,
+	        ListenerOverflowPolicy.DROP_NEWEST );
+	    NotifyingSailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addConnectionListener( slowListener );
+	        // Doesn't block, even if the listener does
+	        for ( int i = 0; i < 10; i++ )
+	        {
+	            sc.addStatement( subject, RDF.VALUE, factory.createLiteral( i ) );
+	        }
+	        release.countDown();
+	        assertTrue( graphDbSail.awaitListenerEvents( 10000 ) );
+	        assertTrue( graphDbSail.getDroppedListenerEventCount() > 0 );
+	        assertEquals( 10, received.get() +
+	            graphDbSail.getDroppedListenerEventCount() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.setSynchronousListeners();
+	    }
+	}
+	
+	@Test
+	public void testAsynchronousListenerRemoval() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/listeners#r" );
+	    final CountDownLatch release = new CountDownLatch( 1 );
+	    final AtomicInteger received = new AtomicInteger();
+	    SailConnectionListener slowListener = new SailConnectionListener()
+	    {
+	        public void statementAdded( Statement statement )
+	        {
+	            try
+	            {
+	                release.await();
+	            }
+	            catch ( InterruptedException e )
+	            {
+	                Thread.currentThread().interrupt();
+	            }
+	            received.incrementAndGet();
+	        }
+	        
+	        public void statementRemoved( Statement statement )
+	        {
+	        }
+	    };
+	    
+	    graphDbSail.setAsynchronousListeners( 2,
+	        ListenerOverflowPolicy.DROP_OLDEST );
+	    NotifyingSailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addConnectionListener( slowListener );
+	        for ( int i = 0; i < 10; i++ )
+	        {
+	            sc.addStatement( subject, RDF.VALUE, factory.createLiteral( i ) );
+	        }
+	        // Removed with a full queue, the queued events are still
+	        // delivered and waited for
+	        sc.removeConnectionListener( slowListener );
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 10 ) );
+	        release.countDown();
+	        assertTrue( graphDbSail.awaitListenerEvents( 10000 ) );
+	        assertTrue( received.get() > 0 );
+	        assertEquals( 10, received.get() +
+	            graphDbSail.getDroppedListenerEventCount() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.setSynchronousListeners();
+	    }
+	}
+	
+	@Test
+	public void testSailChangedEventPerCommit() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/events#s" );
+	    final List<SailChangedEvent> commitEvents =
+	        new ArrayList<SailChangedEvent>();
+	    final AtomicInteger statementEvents = new AtomicInteger();
+	    SailChangedListener commitListener = new SailChangedListener()
+	    {
+	        public void sailChanged( SailChangedEvent event )
+	        {
+	            commitEvents.add( event );
+	        }
+	    };
+	    SailChangedListener statementListener =
+	        new PerStatementSailChangedListener()
+	    {
+	        public void sailChanged( SailChangedEvent event )
+	        {
+	            statementEvents.incrementAndGet();
+	        }
+	    };
+	    graphDbSail.addSailChangedListener( commitListener );
+	    graphDbSail.addSailChangedListener( statementListener );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 3; i++ )
+	        {
+	            sc.addStatement( subject, RDF.VALUE, factory.createLiteral( i ) );
+	        }
+	        sc.removeStatements( subject, RDF.VALUE, factory.createLiteral( 0 ) );
+	        // Nothing matches, so no event
+	        sc.removeStatements( subject, RDF.VALUE, factory.createLiteral( 0 ) );
+	        assertEquals( 0, commitEvents.size() );
+	        assertEquals( 4, statementEvents.get() );
+	        sc.commit();
+	        assertEquals( 1, commitEvents.size() );
+	        GraphDatabaseSailChangedEvent event =
+	            ( GraphDatabaseSailChangedEvent ) commitEvents.get( 0 );
+	        assertEquals( 3, event.getAddedCount() );
+	        assertEquals( 1, event.getRemovedCount() );
+	        assertTrue( event.statementsAdded() );
+	        assertTrue( event.statementsRemoved() );
+	        
+	        sc.removeStatements( subject, null, null );
+	        sc.rollback();
+	        assertEquals( 1, commitEvents.size() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        assertEquals( 2, commitEvents.size() );
+	        event = ( GraphDatabaseSailChangedEvent ) commitEvents.get( 1 );
+	        assertEquals( 0, event.getAddedCount() );
+	        assertEquals( 2, event.getRemovedCount() );
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.removeSailChangedListener( commitListener );
+	        graphDbSail.removeSailChangedListener( statementListener );
+	    }
+	}
+	
+	@Test
+	public void testFailingCommitListener() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/events#failing" );
+	    final List<SailChangedEvent> commitEvents =
+	        new ArrayList<SailChangedEvent>();
+	    SailChangedListener failingListener = new SailChangedListener()
+	    {
+	        public void sailChanged( SailChangedEvent event )
+	        {
+	            commitEvents.add( event );
+	            throw new IllegalStateException( "Failing on purpose" );
+	        }
+	    };
+	    graphDbSail.addSailChangedListener( failingListener );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        // The commit still succeeds, and the counts start over
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ) );
+	        sc.commit();
+	        assertEquals( 1, commitEvents.size() );
+	        assertEquals( 1, countStatements( sc, subject ) );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        assertEquals( 2, commitEvents.size() );
+	        GraphDatabaseSailChangedEvent event =
+	            ( GraphDatabaseSailChangedEvent ) commitEvents.get( 1 );
+	        assertEquals( 0, event.getAddedCount() );
+	        assertEquals( 1, event.getRemovedCount() );
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.removeSailChangedListener( failingListener );
+	    }
+	}
+	
+	@Test
+	public void testCommandLog() throws Exception
+	{
+	    ValueFactory factory = sail().getValueFactory();
+	    final List<Statement> added = new ArrayList<Statement>();
+	    // Small enough limit that the log is moved to a file
+	    CommandLog log = new CommandLog( 256, factory );
+	    try
+	    {
+	        URI context = factory.createURI( "http://example.org/log#c" );
+	        Resource blank = factory.createBNode( "b1" );
+	        for ( int i = 0; i < 20; i++ )
+	        {
+	            URI subject = factory.createURI( "http://example.org/log#" + i );
+	            log.add( CommandLog.CommandType.ADD_STATEMENT, subject,
+	                RDF.VALUE, factory.createLiteral( i ), context );
+	            added.add( factory.createStatement( subject, RDF.VALUE,
+	                factory.createLiteral( i ), context ) );
+	        }
+	        log.add( CommandLog.CommandType.ADD_STATEMENT, blank, RDF.VALUE,
+	            factory.createLiteral( "\u00e5\u00e4\u00f6", "sv" ) );
+	        log.add( CommandLog.CommandType.REMOVE_STATEMENT, blank, null, null,
+	            ( Resource ) null );
+	        assertTrue( log.isSpilled() );
+	        assertEquals( 22, log.size() );
+	        
+	        final List<Statement> replayed = new ArrayList<Statement>();
+	        final List<CommandLog.CommandType> types =
+	            new ArrayList<CommandLog.CommandType>();
+	        final List<Resource[]> contexts = new ArrayList<Resource[]>();
+	        CommandLog.CommandHandler handler = new CommandLog.CommandHandler()
+	        {
+	            public void handle( CommandLog.CommandType type,
+	                Resource subject, URI predicate, Value object,
+	                Resource[] statementContexts )
+	            {
+	                types.add( type );
+	                contexts.add( statementContexts );
+	                if ( predicate != null )
+	                {
+	                    replayed.add( new ContextStatementImpl( subject,
+	                        predicate, object, statementContexts.length == 0 ?
+	                        null : statementContexts[ 0 ] ) );
+	                }
+	            }
+	        };
+	        log.replay( handler );
+	        assertEquals( 22, types.size() );
+	        assertEquals( CommandLog.CommandType.REMOVE_STATEMENT,
+	            types.get( 21 ) );
+	        assertEquals( added, replayed.subList( 0, 20 ) );
+	        for ( int i = 0; i < 20; i++ )
+	        {
+	            assertEquals( context, contexts.get( i )[ 0 ] );
+	        }
+	        Literal literal = ( Literal ) replayed.get( 20 ).getObject();
+	        assertEquals( "\u00e5\u00e4\u00f6", literal.getLabel() );
+	        assertEquals( "sv", literal.getLanguage() );
+	        assertEquals( blank, replayed.get( 20 ).getSubject() );
+	        assertEquals( 0, contexts.get( 20 ).length );
+	        assertEquals( 1, contexts.get( 21 ).length );
+	        assertEquals( null, contexts.get( 21 )[ 0 ] );
+	        
+	        // Replaying is repeatable, and clearing goes back to memory
+	        types.clear();
+	        log.replay( handler );
+	        assertEquals( 22, types.size() );
+	        log.clear();
+	        assertFalse( log.isSpilled() );
+	        assertEquals( 0, log.size() );
+	        types.clear();
+	        log.replay( handler );
+	        assertEquals( 0, types.size() );
+	    }
+	    finally
+	    {
+	        log.clear();
+	    }
+	}
+	
+	@Test
+	public void testBatchSizeController() throws Exception
+	{
+	    final double[] headroom = { 1.0 };
+	    BatchSizeController controller = new BatchSizeController( 1000, 100,
+	        2000 )
+	    {
+	        @Override
+	        double heapHeadroom()
+	        {
+	            return headroom[ 0 ];
+	        }
+	    };
+	    // Faster and faster commits, grows up to the max
+	    long nanos = 100000000L;
+	    for ( int i = 0; i < 5; i++ )
+	    {
+	        controller.batchCommitted( controller.getBatchSize(), nanos );
+	        nanos /= 2;
+	    }
+	    assertEquals( 2000, controller.getBatchSize() );
+	    assertEquals( 5, controller.getBatchCount() );
+	    
+	    // A much slower commit turns it around
+	    controller.batchCommitted( 2000, 10000000000L );
+	    assertEquals( 1600, controller.getBatchSize() );
+	    
+	    // Connections adapt on their own, starting where the last one
+	    // arrived, and their commits are counted together
+	    BatchSizeController first = controller.forConnection();
+	    BatchSizeController second = controller.forConnection();
+	    assertEquals( 1600, first.getBatchSize() );
+	    first.batchCommitted( 1600, 1000000L );
+	    second.batchCommitted( 1600, 1000000L );
+	    second.batchCommitted( 2000, 10000000000L );
+	    assertEquals( 2000, first.getBatchSize() );
+	    assertEquals( 1600, second.getBatchSize() );
+	    assertEquals( 1600, controller.getBatchSize() );
+	    assertEquals( 9, controller.getBatchCount() );
+	    
+	    // Low on heap, halved
+	    headroom[ 0 ] = 0.1;
+	    controller.batchCommitted( 1600, 1000 );
+	    assertEquals( 800, controller.getBatchSize() );
+	    controller.batchCommitted( 800, 1000 );
+	    controller.batchCommitted( 400, 1000 );
+	    controller.batchCommitted( 200, 1000 );
+	    assertEquals( 100, controller.getBatchSize() );
+	    
+	    BatchSizeController fixed = new BatchSizeController( 10, 10, 10 );
+	    fixed.batchCommitted( 10, 1 );
+	    assertFalse( fixed.isAdaptive() );
+	    assertEquals( 10, fixed.getBatchSize() );
+	    
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    graphDbSail.setBatchSize( 10 );
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/batch#s" );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 25; i++ )
+	        {
+	            sc.addStatement( subject, RDF.VALUE, factory.createLiteral( i ) );
+	        }
+	        assertEquals( 2, graphDbSail.getBatchCommitCount() );
+	        assertEquals( 10, graphDbSail.getBatchSize() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.setBatchSize( 5000 );
+	    }
+	}
+	
+	@Test
+	public void testBulkLoad() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    // A duplicate within a transaction, and a new namespace
+	    String trig =
+	        "@prefix ex: <http://example.org/bulk#> .\n" +
+	        "@prefix bulkns: <http://example.org/bulk/ns#> .\n" +
+	        "ex:g1 { ex:a ex:knows ex:b . ex:a ex:knows ex:b .\n" +
+	        "    ex:b ex:knows ex:c . }\n" +
+	        "ex:g2 { ex:a ex:name \"A\"@en . }\n";
+	    final List<SailChangedEvent> events = new ArrayList<SailChangedEvent>();
+	    SailChangedListener listener = new SailChangedListener()
+	    {
+	        public void sailChanged( SailChangedEvent event )
+	        {
+	            events.add( event );
+	        }
+	    };
+	    graphDbSail.addSailChangedListener( listener );
+	    int batchSize = graphDbSail.getBulkLoadBatchSize();
+	    graphDbSail.setBulkLoadBatchSize( 2 );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        long sizeBefore = sc.size();
+	        assertEquals( 3, graphDbSail.bulkLoad( new ByteArrayInputStream(
+	            trig.getBytes( "UTF-8" ) ), "", RDFFormat.TRIG ) );
+	        assertEquals( 1, events.size() );
+	        assertEquals( 3, ( ( GraphDatabaseSailChangedEvent )
+	            events.get( 0 ) ).getAddedCount() );
+	        assertEquals( sizeBefore + 3, sc.size() );
+	        URI g1 = factory.createURI( "http://example.org/bulk#g1" );
+	        URI g2 = factory.createURI( "http://example.org/bulk#g2" );
+	        assertEquals( 2, sc.size( g1 ) );
+	        assertEquals( 1, sc.size( g2 ) );
+	        assertTrue( contextIds( sc ).contains( g1 ) );
+	        assertEquals( "http://example.org/bulk/ns#",
+	            sc.getNamespace( "bulkns" ) );
+	        
+	        // Already there, nothing added
+	        assertEquals( 0, graphDbSail.bulkLoad( new ByteArrayInputStream(
+	            trig.getBytes( "UTF-8" ) ), "", RDFFormat.TRIG ) );
+	        assertEquals( 1, events.size() );
+	        
+	        // Into a given context
+	        URI g3 = factory.createURI( "http://example.org/bulk#g3" );
+	        assertEquals( 3, graphDbSail.bulkLoad( new ByteArrayInputStream(
+	            trig.getBytes( "UTF-8" ) ), "", RDFFormat.TRIG, g3 ) );
+	        assertEquals( 3, sc.size( g3 ) );
+	        assertEquals( 3, countResults( sc, "SELECT ?s WHERE { GRAPH " +
+	            "<http://example.org/bulk#g3> { ?s ?p ?o } }" ) );
+	        
+	        sc.clear( g1, g2, g3 );
+	        sc.removeNamespace( "bulkns" );
+	        sc.commit();
+	        assertEquals( sizeBefore, sc.size() );
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.removeSailChangedListener( listener );
+	        graphDbSail.setBulkLoadBatchSize( batchSize );
+	    }
+	}
+	
+	@Test
+	public void testParallelBulkLoad() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    List<File> files = new ArrayList<File>();
+	    try
+	    {
+	        for ( int i = 0; i < 3; i++ )
+	        {
+	            StringBuilder trig = new StringBuilder(
+	                "@prefix ex: <http://example.org/parallel#> .\n" );
+	            trig.append( "ex:g" + i + " {\n" );
+	            for ( int s = 0; s < 1500; s++ )
+	            {
+	                trig.append( "ex:s" + s + " ex:p \"" + i + "\" .\n" );
+	            }
+	            trig.append( "}\n" );
+	            files.add( writeTempFile( trig.toString(), ".trig" ) );
+	        }
+	        int batchSize = graphDbSail.getBulkLoadBatchSize();
+	        graphDbSail.setBulkLoadBatchSize( 1000 );
+	        SailConnection sc = graphDbSail.getConnection();
+	        try
+	        {
+	            long sizeBefore = sc.size();
+	            BulkLoadReport report = graphDbSail.bulkLoad( files, null, "",
+	                2 );
+	            assertEquals( 3, report.getFileCount() );
+	            assertEquals( 4500, report.getParsedCount() );
+	            assertEquals( 4500, report.getAddedCount() );
+	            assertEquals( sizeBefore + 4500, sc.size() );
+	            for ( int i = 0; i < 3; i++ )
+	            {
+	                assertEquals( 1500, sc.size( factory.createURI(
+	                    "http://example.org/parallel#g" + i ) ) );
+	            }
+	            
+	            // A broken file fails the load
+	            files.add( writeTempFile( "ex:broken { .", ".trig" ) );
+	            try
+	            {
+	                graphDbSail.bulkLoad( files, null, "", 2 );
+	                fail( "Should have failed to parse" );
+	            }
+	            catch ( RDFParseException e )
+	            {
+	                // Good
+	            }
+	            
+	            for ( int i = 0; i < 3; i++ )
+	            {
+	                sc.clear( factory.createURI(
+	                    "http://example.org/parallel#g" + i ) );
+	            }
+	            sc.commit();
+	            assertEquals( sizeBefore, sc.size() );
+	        }
+	        finally
+	        {
+	            sc.close();
+	            graphDbSail.setBulkLoadBatchSize( batchSize );
+	        }
+	    }
+	    finally
+	    {
+	        for ( File file : files )
+	        {
+	            file.delete();
+	        }
+	    }
+	}
+	
+	@Test
+	public void testBulkLoaderAbortLeavesCallerTransaction() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    long nodeId;
+	    Transaction tx = graphDb.beginTx();
+	    try
+	    {
+	        // Aborting before starting, or after finishing, is a no-op
+	        BulkLoader loader = graphDbSail.createBulkLoader();
+	        loader.abort();
+	        loader.start();
+	        loader.finish();
+	        loader.abort();
+	        nodeId = graphDb.createNode().getId();
+	        tx.success();
+	    }
+	    finally
+	    {
+	        tx.finish();
+	    }
+	    tx = graphDb.beginTx();
+	    try
+	    {
+	        Node node = graphDb.getNodeById( nodeId );
+	        node.delete();
+	        tx.success();
+	    }
+	    finally
+	    {
+	        tx.finish();
+	    }
+	}
+	
+	@Test
+	public void testChangeLog() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/changelog#s" );
+	    URI context = factory.createURI( "http://example.org/changelog#c" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    graphDbSail.setChangeLog( directory );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        ChangeLogReader reader = new ChangeLogReader( directory,
+	            graphDbSail.getChangeLog().getLastSequence(), factory );
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ),
+	            context );
+	        sc.removeStatements( subject, null, null );
+	        assertNull( reader.next() );
+	        sc.commit();
+	        ChangeLogTransaction transaction = reader.next();
+	        assertEquals( 2, transaction.getOperations().size() );
+	        ChangeLogOperation add = transaction.getOperations().get( 0 );
+	        assertTrue( add.isAdd() );
+	        assertEquals( context, add.getContexts()[ 0 ] );
+	        assertFalse( transaction.getOperations().get( 1 ).isAdd() );
+	        
+	        // Rolled back and empty transactions aren't logged
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 2 ) );
+	        sc.rollback();
+	        sc.commit();
+	        assertNull( reader.next() );
+	        
+	        // So are namespace changes, but not statement metadata
+	        sc.setNamespace( "changelog", "http://example.org/changelog#" );
+	        sc.commit();
+	        ChangeLogOperation namespace =
+	            reader.next().getOperations().get( 0 );
+	        assertEquals( ChangeLogOperation.Type.SET_NAMESPACE,
+	            namespace.getType() );
+	        assertEquals( "changelog", namespace.getPrefix() );
+	        assertEquals( "http://example.org/changelog#",
+	            namespace.getNamespace() );
+	        sc.removeNamespace( "changelog" );
+	        sc.commit();
+	        assertEquals( ChangeLogOperation.Type.REMOVE_NAMESPACE,
+	            reader.next().getOperations().get( 0 ).getType() );
+	        
+	        graphDbSail.bulkLoad( new ByteArrayInputStream( ( "<" + subject +
+	            "> <" + RDF.VALUE + "> \"3\" ." ).getBytes( "UTF-8" ) ),
+	            "", RDFFormat.NTRIPLES );
+	        transaction = reader.next();
+	        assertEquals( 1, transaction.getOperations().size() );
+	        assertEquals( factory.createLiteral( "3" ),
+	            transaction.getOperations().get( 0 ).getObject() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        reader.close();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.setChangeLog( null );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	    }
+	}
+	
+	@Test
+	public void testChangeLogWrittenAheadOfCommit() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    final URI subject = factory.createURI(
+	        "http://example.org/changelog#ahead" );
+	    URI context = factory.createURI(
+	        "http://example.org/changelog#aheadContext" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    graphDbSail.setChangeLog( directory );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ),
+	            context );
+	        sc.commit();
+	        long sequence = graphDbSail.getChangeLog().getLastSequence();
+	        ChangeLogReader reader = new ChangeLogReader( directory, sequence,
+	            factory );
+	
+	        // A transaction left in doubt by a crash, which never committed,
+	        // is aborted when the log is opened again
+	        graphDbSail.setChangeLog( null );
+	        ChangeLogWriter crashed = new ChangeLogWriter( directory );
+	        assertEquals( sequence + 1, crashed.prepare( 0,
+	            new ChangeLogWriter.OperationSource()
+	        {
+	            public void replay( ChangeLogWriter.OperationHandler handler )
+	            {
+	                handler.operation( false, subject, null, null );
+	            }
+	        } ) );
+	        crashed.close();
+	        assertNull( reader.next() );
+	        graphDbSail.setChangeLog( directory );
+	        assertEquals( 0, graphDbSail.getChangeLog().getInDoubtSequence() );
+	        assertNull( reader.next() );
+	        assertEquals( sequence + 1, reader.getLastSequence() );
+	
+	        // A transaction which can't be logged isn't committed
+	        graphDbSail.getChangeLog().close();
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 2 ),
+	            context );
+	        try
+	        {
+	            sc.commit();
+	            fail( "The commit should fail without a change log" );
+	        }
+	        catch ( RuntimeException e )
+	        {
+	            // Good
+	        }
+	        sc.rollback();
+	        assertEquals( 1, sc.size( context ) );
+	        assertNull( reader.next() );
+	        reader.close();
+	        graphDbSail.setChangeLog( null );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        graphDbSail.setChangeLog( null );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	    }
+	}
+	
+	@Test
+	public void testReplicaSail() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/replica#s" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    File positionFile = File.createTempFile( "neo4j-sail-test", ".pos" );
+	    positionFile.delete();
+	    graphDbSail.setChangeLog( directory );
+	    
+	    GraphDatabaseService replicaDb = TestUtils.createGraphDb( "replica-db" );
+	    IndexService replicaIndex = new CachingLuceneIndexService( replicaDb );
+	    ReplicaSail replica = new ReplicaSail( replicaDb,
+	        new VerboseQuadStore( replicaDb, replicaIndex ), directory,
+	        positionFile );
+	    replica.initialize();
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        assertFalse( replica.isWritable() );
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ) );
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 2 ) );
+	        sc.setNamespace( "replica", "http://example.org/replica#" );
+	        sc.commit();
+	        assertTrue( replica.awaitSequence(
+	            graphDbSail.getChangeLog().getLastSequence(), 10000 ) );
+	        SailConnection reader = replica.getConnection();
+	        assertEquals( 2, countStatements( reader, subject ) );
+	        assertEquals( "http://example.org/replica#",
+	            reader.getNamespace( "replica" ) );
+	        
+	        sc.removeStatements( subject, RDF.VALUE,
+	            factory.createLiteral( 1 ) );
+	        sc.commit();
+	        assertTrue( replica.awaitSequence(
+	            graphDbSail.getChangeLog().getLastSequence(), 10000 ) );
+	        assertEquals( 1, countStatements( reader, subject ) );
+	        reader.close();
+	        assertEquals( 2, replica.getAppliedTransactionCount() );
+	        assertEquals( graphDbSail.getChangeLog().getLastSequence(),
+	            replica.getLastAppliedSequence() );
+	        
+	        // Caught up, so no lag once the applier has polled again
+	        replica.setMaxLagMillis( 60000 );
+	        Thread.sleep( 500 );
+	        assertEquals( 0, replica.getLagMillis() );
+	        replica.getConnection().close();
+	        sc.removeStatements( subject, null, null );
+	        sc.removeNamespace( "replica" );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        replica.shutDown();
+	        replicaIndex.shutdown();
+	        replicaDb.shutdown();
+	        graphDbSail.setChangeLog( null );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	        positionFile.delete();
+	    }
+	}
+	
+	@Test
+	public void testReplicaAppliesWholeTransactions() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/replica#whole" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    File positionFile = File.createTempFile( "neo4j-sail-test", ".pos" );
+	    positionFile.delete();
+	    graphDbSail.setChangeLog( directory );
+	    
+	    GraphDatabaseService replicaDb =
+	        TestUtils.createGraphDb( "replica-whole-db" );
+	    IndexService replicaIndex = new CachingLuceneIndexService( replicaDb );
+	    ReplicaSail replica = new ReplicaSail( replicaDb,
+	        new VerboseQuadStore( replicaDb, replicaIndex ), directory,
+	        positionFile );
+	    // Much smaller than the transaction of the primary
+	    replica.getLocalSail().setBatchSize( 2 );
+	    replica.initialize();
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 5; i++ )
+	        {
+	            sc.addStatement( subject, RDF.VALUE,
+	                factory.createLiteral( i ) );
+	        }
+	        sc.commit();
+	        assertTrue( replica.awaitSequence(
+	            graphDbSail.getChangeLog().getLastSequence(), 10000 ) );
+	        SailConnection reader = replica.getConnection();
+	        assertEquals( 5, countStatements( reader, subject ) );
+	        reader.close();
+	        // Applied in one transaction, without any batch commits
+	        assertEquals( 0, replica.getLocalSail().getBatchSizeController()
+	            .getBatchCount() );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        replica.shutDown();
+	        replicaIndex.shutdown();
+	        replicaDb.shutdown();
+	        graphDbSail.setChangeLog( null );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	        positionFile.delete();
+	    }
+	}
+	
+	@Test
+	public void testReplicaRestart() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/replica#restart" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    File positionFile = File.createTempFile( "neo4j-sail-test", ".pos" );
+	    positionFile.delete();
+	    graphDbSail.setChangeLog( directory );
+	    
+	    GraphDatabaseService replicaDb =
+	        TestUtils.createGraphDb( "replica-restart-db" );
+	    IndexService replicaIndex = new CachingLuceneIndexService( replicaDb );
+	    ReplicaSail replica = new ReplicaSail( replicaDb,
+	        new VerboseQuadStore( replicaDb, replicaIndex ), directory,
+	        positionFile );
+	    replica.initialize();
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ) );
+	        sc.commit();
+	        long firstSequence = graphDbSail.getChangeLog().getLastSequence();
+	        assertTrue( replica.awaitSequence( firstSequence, 10000 ) );
+	        replica.shutDown();
+	        
+	        // Committed while the replica is down
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 2 ) );
+	        sc.commit();
+	        replica = new ReplicaSail( replicaDb,
+	            new VerboseQuadStore( replicaDb, replicaIndex ), directory,
+	            positionFile );
+	        replica.initialize();
+	        assertTrue( replica.getLastAppliedSequence() >= firstSequence );
+	        assertTrue( replica.awaitSequence(
+	            graphDbSail.getChangeLog().getLastSequence(), 10000 ) );
+	        // Continued after the position, so only the new one was applied
+	        assertEquals( 1, replica.getAppliedTransactionCount() );
+	        SailConnection reader = replica.getConnection();
+	        assertEquals( 2, countStatements( reader, subject ) );
+	        reader.close();
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        replica.shutDown();
+	        replicaIndex.shutdown();
+	        replicaDb.shutdown();
+	        graphDbSail.setChangeLog( null );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	        positionFile.delete();
+	    }
+	}
+	
+	@Test
+	public void testNamespaceVisibility() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    String uri = "http://example.org/namespaces#";
+	    SailConnection writer = graphDbSail.getConnection();
+	    SailConnection reader = graphDbSail.getConnection();
+	    try
+	    {
+	        writer.setNamespace( "nsTest", uri );
+	        assertEquals( uri, writer.getNamespace( "nsTest" ) );
+	        assertNull( reader.getNamespace( "nsTest" ) );
+	        writer.rollback();
+	        assertNull( writer.getNamespace( "nsTest" ) );
+	        
+	        writer.setNamespace( "nsTest", uri );
+	        writer.commit();
+	        assertEquals( uri, reader.getNamespace( "nsTest" ) );
+	        assertEquals( uri, graphDbSail.getCommittedNamespaces().get(
+	            "nsTest" ) );
+	        
+	        writer.removeNamespace( "nsTest" );
+	        assertNull( writer.getNamespace( "nsTest" ) );
+	        assertEquals( uri, reader.getNamespace( "nsTest" ) );
+	        writer.commit();
+	        assertNull( reader.getNamespace( "nsTest" ) );
+	        
+	        writer.clearNamespaces();
+	        writer.setNamespace( "nsTest", uri );
+	        Map<String, String> namespaces = new HashMap<String, String>();
+	        CloseableIteration<? extends Namespace, SailException> iterator =
+	            writer.getNamespaces();
+	        while ( iterator.hasNext() )
+	        {
+	            Namespace namespace = iterator.next();
+	            namespaces.put( namespace.getPrefix(), namespace.getName() );
+	        }
+	        iterator.close();
+	        assertEquals( 1, namespaces.size() );
+	        assertEquals( uri, namespaces.get( "nsTest" ) );
+	        assertTrue( reader.getNamespace( "rdfs" ) != null );
+	        writer.commit();
+	        assertNull( reader.getNamespace( "rdfs" ) );
+	        assertEquals( 1, graphDbSail.getCommittedNamespaces().size() );
+	    }
+	    finally
+	    {
+	        writer.close();
+	        reader.close();
+	    }
+	}
+	
+	@Test
+	public void testBinaryStatementLogging() throws Exception
+	{
+	    GraphDatabaseSail graphDbSail = ( GraphDatabaseSail ) sail();
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/binlog#s" );
+	    File directory = File.createTempFile( "neo4j-sail-test", "" );
+	    directory.delete();
+	    File previousDirectory = MutatingLogger.getBinaryLogDirectory();
+	    MutatingLogger.StatementLogging previousLogging =
+	        MutatingLogger.getStatementLogging();
+	    MutatingLogger.setBinaryLogDirectory( directory );
+	    MutatingLogger.setStatementLogging(
+	        MutatingLogger.StatementLogging.BINARY );
+	    SailConnection sc = graphDbSail.getConnection();
+	    try
+	    {
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 1 ) );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        // Rolled back operations aren't logged
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 2 ) );
+	        sc.rollback();
+	        ChangeLogReader reader = new ChangeLogReader( directory, 0,
+	            factory );
+	        List<ChangeLogOperation> operations =
+	            reader.next().getOperations();
+	        assertEquals( 2, operations.size() );
+	        assertTrue( operations.get( 0 ).isAdd() );
+	        assertEquals( subject, operations.get( 0 ).getSubject() );
+	        assertEquals( factory.createLiteral( 1 ),
+	            operations.get( 0 ).getObject() );
+	        assertFalse( operations.get( 1 ).isAdd() );
+	        assertNull( operations.get( 1 ).getPredicate() );
+	        assertNull( reader.next() );
+	
+	        // Nothing logged when off
+	        MutatingLogger.setStatementLogging(
+	            MutatingLogger.StatementLogging.OFF );
+	        sc.addStatement( subject, RDF.VALUE, factory.createLiteral( 3 ) );
+	        sc.removeStatements( subject, null, null );
+	        sc.commit();
+	        assertNull( reader.next() );
+	        reader.close();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        MutatingLogger.setStatementLogging( previousLogging );
+	        MutatingLogger.setBinaryLogDirectory( previousDirectory );
+	        for ( File file : directory.listFiles() )
+	        {
+	            file.delete();
+	        }
+	        directory.delete();
+	    }
+	}
+	
+	private File writeTempFile( String content, String suffix )
+	    throws IOException
+	{
+	    File file = File.createTempFile( "neo4j-sail-test", suffix );
+	    Writer writer = new OutputStreamWriter( new FileOutputStream( file ),
+	        "UTF-8" );
+	    try
+	    {
+	        writer.write( content );
+	    }
+	    finally
+	    {
+	        writer.close();
+	    }
+	    return file;
+	}
+	
+	private Set<Resource> contextIds( SailConnection connection )
+	    throws SailException
+	{
+	    Set<Resource> result = new HashSet<Resource>();
+	    CloseableIteration<? extends Resource, SailException> contexts =
+	        connection.getContextIDs();
+	    try
+	    {
+	        while ( contexts.hasNext() )
+	        {
+	            assertTrue( result.add( contexts.next() ) );
+	        }
+	    }
+	    finally
+	    {
+	        contexts.close();
+	    }
+	    return result;
+	}
+	
+	private int countResults( SailConnection connection, String query )
+	    throws Exception
+	{
+	    ParsedQuery parsedQuery = new SPARQLParser().parseQuery( query,
+	        "http://example.org/bogus/" );
+	    CloseableIteration<? extends BindingSet, QueryEvaluationException> results =
+	        connection.evaluate( parsedQuery.getTupleExpr(),
+	            parsedQuery.getDataset(), new EmptyBindingSet(), false );
+	    try
+	    {
+	        int count = 0;
+	        while ( results.hasNext() )
+	        {
+	            results.next();
+	            count++;
+	        }
+	        return count;
+	    }
+	    finally
+	    {
+	        results.close();
+	    }
+	}
+	
+	private long countStatements( SailConnection connection )
+	    throws SailException
+	{
+	    return countStatements( connection, null );
+	}
+	
+	private long countStatements( SailConnection connection,
+	    Resource subject ) throws SailException
+	{
+	    long count = 0;
+	    CloseableIteration<? extends Statement, SailException> statements =
+	        connection.getStatements( subject, null, null, false );
+	    try
+	    {
+	        while ( statements.hasNext() )
+	        {
+	            statements.next();
+	            count++;
+	        }
+	    }
+	    finally
+	    {
+	        statements.close();
+	    }
+	    return count;
+	}
 
 	@Override
 	protected void before()
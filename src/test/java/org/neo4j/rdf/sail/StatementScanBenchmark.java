@@ -0,0 +1,140 @@
+package org.neo4j.rdf.sail;
+
+import info.aduna.iteration.CloseableIteration;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.index.IndexService;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.rdf.store.CachingLuceneIndexService;
+import org.neo4j.rdf.store.VerboseQuadStore;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * Measures the rows/sec of a full {@code getStatements(null, null, null)}
+ * scan for different statement prefetch sizes, see
+ * {@link GraphDatabaseSail#setStatementPrefetchSize(int)}.
+ *
+ * Usage: StatementScanBenchmark [number of statements] [prefetch sizes...]
+ *
+ * The store in var/scan-benchmark is populated with the given number of
+ * statements (default 10M) the first time it's run and reused after that.
+ */
+public class StatementScanBenchmark
+{
+	private static final String DB_PATH = "var/scan-benchmark";
+	private static final int DEFAULT_STATEMENT_COUNT = 10000000;
+	private static final int[] DEFAULT_PREFETCH_SIZES = { 1, 10, 100, 1000 };
+
+	public static void main( String[] args ) throws Exception
+	{
+		int statementCount = args.length > 0 ?
+			Integer.parseInt( args[ 0 ] ) : DEFAULT_STATEMENT_COUNT;
+		int[] prefetchSizes = DEFAULT_PREFETCH_SIZES;
+		if ( args.length > 1 )
+		{
+			prefetchSizes = new int[ args.length - 1 ];
+			for ( int i = 1; i < args.length; i++ )
+			{
+				prefetchSizes[ i - 1 ] = Integer.parseInt( args[ i ] );
+			}
+		}
+
+		GraphDatabaseService graphDb = new EmbeddedGraphDatabase( DB_PATH );
+		IndexService indexService = new CachingLuceneIndexService( graphDb );
+		GraphDatabaseSail sail = new GraphDatabaseSail( graphDb,
+			new VerboseQuadStore( graphDb, indexService ) );
+		try
+		{
+			populate( sail, statementCount );
+			for ( int prefetchSize : prefetchSizes )
+			{
+				sail.setStatementPrefetchSize( prefetchSize );
+				scan( sail, prefetchSize );
+			}
+		}
+		finally
+		{
+			sail.shutDown();
+			indexService.shutdown();
+			graphDb.shutdown();
+		}
+	}
+
+	private static void populate( GraphDatabaseSail sail, int statementCount )
+		throws SailException
+	{
+		SailConnection connection = sail.getConnection();
+		try
+		{
+			long existing = connection.size();
+			if ( existing >= statementCount )
+			{
+				System.out.println( "Reusing store with " + existing +
+					" statements" );
+				return;
+			}
+
+			System.out.println( "Adding " + ( statementCount - existing ) +
+				" statements" );
+			SimpleTimer timer = new SimpleTimer();
+			ValueFactory factory = sail.getValueFactory();
+			URI[] predicates = new URI[ 10 ];
+			for ( int i = 0; i < predicates.length; i++ )
+			{
+				predicates[ i ] = factory.createURI(
+					"http://example.org/benchmark/predicate" + i );
+			}
+			URI context = factory.createURI( "http://example.org/benchmark" );
+			for ( long i = existing; i < statementCount; i++ )
+			{
+				connection.addStatement(
+					factory.createURI( "http://example.org/benchmark/s" + i / 10 ),
+					predicates[ ( int ) ( i % predicates.length ) ],
+					factory.createLiteral( "value " + i ), context );
+			}
+			connection.commit();
+			timer.end();
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	private static void scan( GraphDatabaseSail sail, int prefetchSize )
+		throws SailException
+	{
+		SailConnection connection = sail.getConnection();
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			long count = 0;
+			CloseableIteration<? extends Statement, SailException> statements =
+				connection.getStatements( null, null, null, false );
+			try
+			{
+				while ( statements.hasNext() )
+				{
+					statements.next();
+					count++;
+				}
+			}
+			finally
+			{
+				statements.close();
+			}
+			long time = Math.max( 1, System.currentTimeMillis() - startTime );
+			System.out.println( "prefetch size " + prefetchSize + ": " +
+				count + " statements in " + time + " ms, " +
+				( count * 1000 / time ) + " rows/sec" );
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+}
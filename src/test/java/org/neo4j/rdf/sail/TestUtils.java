@@ -40,7 +40,12 @@ public abstract class TestUtils
 
 	public static GraphDatabaseService createGraphDb()
 	{
-		String dir = new File( BASE_DIR, "db" ).getAbsolutePath();
+		return createGraphDb( "db" );
+	}
+	
+	public static GraphDatabaseService createGraphDb( String name )
+	{
+		String dir = new File( BASE_DIR, name ).getAbsolutePath();
 		removeDir( new File( dir ) );
 		final GraphDatabaseService graphDb = new EmbeddedGraphDatabase( dir );
 		return graphDb;
@@ -0,0 +1,282 @@
+package org.neo4j.rdf.sail.changelog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+public class ChangeLogTest
+{
+	private final ValueFactory factory = new ValueFactoryImpl();
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException
+	{
+	    directory = File.createTempFile( "neo4j-changelog-test", "" );
+	    directory.delete();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+	    File[] files = directory.listFiles();
+	    if ( files != null )
+	    {
+	        for ( File file : files )
+	        {
+	            file.delete();
+	        }
+	    }
+	    directory.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+	    URI subject = factory.createURI( "http://example.org/changelog#s" );
+	    URI context = factory.createURI( "http://example.org/changelog#c" );
+	    ChangeLogWriter writer = new ChangeLogWriter( directory );
+	    assertEquals( 0, writer.getLastSequence() );
+	    assertEquals( 1, writer.append( 1000, operations(
+	        new ChangeLogOperation( true, subject, RDF.VALUE,
+	            factory.createLiteral( "v", "en" ), context ),
+	        new ChangeLogOperation( true, factory.createBNode( "b" ),
+	            RDF.TYPE, factory.createLiteral( "1", XMLSchema.INT ) ),
+	        new ChangeLogOperation( false, subject, null, null ) ) ) );
+	    assertEquals( 2, writer.append( 2000, operations(
+	        new ChangeLogOperation( ChangeLogOperation.Type.CLEAR_NAMESPACES,
+	            null, null ),
+	        new ChangeLogOperation( ChangeLogOperation.Type.SET_NAMESPACE,
+	            "ex", "http://example.org/changelog#" ),
+	        new ChangeLogOperation( ChangeLogOperation.Type.REMOVE_NAMESPACE,
+	            "old", null ) ) ) );
+	    writer.close();
+
+	    ChangeLogReader reader = new ChangeLogReader( directory, 0, factory );
+	    ChangeLogTransaction transaction = reader.next();
+	    assertEquals( 1, transaction.getSequence() );
+	    assertEquals( 1000, transaction.getTimestamp() );
+	    assertEquals( 3, transaction.getOperations().size() );
+	    ChangeLogOperation first = transaction.getOperations().get( 0 );
+	    assertTrue( first.isAdd() );
+	    assertEquals( subject, first.getSubject() );
+	    assertEquals( factory.createLiteral( "v", "en" ), first.getObject() );
+	    assertEquals( context, first.getContexts()[ 0 ] );
+	    ChangeLogOperation second = transaction.getOperations().get( 1 );
+	    assertEquals( factory.createBNode( "b" ), second.getSubject() );
+	    assertEquals( factory.createLiteral( "1", XMLSchema.INT ),
+	        second.getObject() );
+	    assertEquals( 0, second.getContexts().length );
+	    ChangeLogOperation third = transaction.getOperations().get( 2 );
+	    assertFalse( third.isAdd() );
+	    assertNull( third.getPredicate() );
+	    assertNull( third.getObject() );
+	    
+	    List<ChangeLogOperation> namespaces = reader.next().getOperations();
+	    assertEquals( ChangeLogOperation.Type.CLEAR_NAMESPACES,
+	        namespaces.get( 0 ).getType() );
+	    assertEquals( ChangeLogOperation.Type.SET_NAMESPACE,
+	        namespaces.get( 1 ).getType() );
+	    assertEquals( "ex", namespaces.get( 1 ).getPrefix() );
+	    assertEquals( "http://example.org/changelog#",
+	        namespaces.get( 1 ).getNamespace() );
+	    assertEquals( ChangeLogOperation.Type.REMOVE_NAMESPACE,
+	        namespaces.get( 2 ).getType() );
+	    assertEquals( "old", namespaces.get( 2 ).getPrefix() );
+	    assertFalse( namespaces.get( 2 ).isAdd() );
+	    assertNull( reader.next() );
+	    reader.close();
+	}
+
+	@Test
+	public void testTailingAndSegments() throws Exception
+	{
+	    ChangeLogWriter writer = new ChangeLogWriter( directory, 512 );
+	    ChangeLogReader reader = new ChangeLogReader( directory, 0, factory );
+	    assertNull( reader.next() );
+	    for ( int i = 1; i <= 50; i++ )
+	    {
+	        writer.append( i, operations( add( i ) ) );
+	        ChangeLogTransaction transaction = reader.next();
+	        assertEquals( i, transaction.getSequence() );
+	        assertEquals( factory.createLiteral( i ),
+	            transaction.getOperations().get( 0 ).getObject() );
+	        assertNull( reader.next() );
+	    }
+	    assertTrue( ChangeLogFormat.listSegments( directory ).size() > 1 );
+	    writer.close();
+
+	    // A new writer continues the log, and a new reader can start
+	    // in the middle of it
+	    writer = new ChangeLogWriter( directory, 512 );
+	    assertEquals( 50, writer.getLastSequence() );
+	    assertEquals( 51, writer.append( 51, operations( add( 51 ) ) ) );
+	    assertEquals( 51, reader.next( 1000 ).getSequence() );
+	    ChangeLogReader middleReader = new ChangeLogReader( directory, 40,
+	        factory );
+	    for ( int i = 41; i <= 51; i++ )
+	    {
+	        assertEquals( i, middleReader.next().getSequence() );
+	    }
+	    assertNull( middleReader.next() );
+
+	    // Old segments go away, and reading them fails
+	    assertTrue( writer.deleteSegmentsBefore( 45 ) > 0 );
+	    assertEquals( 46, new ChangeLogReader( directory, 45, factory )
+	        .next().getSequence() );
+	    try
+	    {
+	        new ChangeLogReader( directory, 0, factory ).next();
+	        fail( "Deleted transactions should not be readable" );
+	    }
+	    catch ( IOException e )
+	    {
+	        // Good
+	    }
+	    writer.close();
+	}
+
+	@Test
+	public void testFailedMoveToNewSegment() throws Exception
+	{
+	    ChangeLogWriter writer = new ChangeLogWriter( directory, 512 );
+	    writer.append( 1, operations( add( 1 ) ) );
+	    // Too big for the segment, and fails when encoded again for a new one
+	    final URI subject = factory.createURI(
+	        "http://example.org/changelog#failed" );
+	    final StringBuilder label = new StringBuilder();
+	    for ( int i = 0; i < 600; i++ )
+	    {
+	        label.append( 'x' );
+	    }
+	    ChangeLogWriter.OperationSource failing =
+	        new ChangeLogWriter.OperationSource()
+	    {
+	        private int replays;
+
+	        public void replay( ChangeLogWriter.OperationHandler handler )
+	        {
+	            if ( ++replays > 1 )
+	            {
+	                throw new IllegalStateException( "Replayed twice" );
+	            }
+	            handler.operation( true, subject, RDF.VALUE,
+	                factory.createLiteral( label.toString() ) );
+	        }
+	    };
+	    try
+	    {
+	        writer.append( 2, failing );
+	        fail( "The second encoding should fail" );
+	    }
+	    catch ( IllegalStateException e )
+	    {
+	        // Good
+	    }
+
+	    // The URI of the failed transaction was never written to the
+	    // segment, so it has to be written with the next one
+	    assertEquals( 2, writer.append( 2, operations( new ChangeLogOperation(
+	        true, subject, RDF.VALUE, factory.createLiteral( 2 ) ) ) ) );
+	    writer.close();
+	    ChangeLogReader reader = new ChangeLogReader( directory, 0, factory );
+	    assertEquals( 1, reader.next().getSequence() );
+	    assertEquals( subject,
+	        reader.next().getOperations().get( 0 ).getSubject() );
+	    assertNull( reader.next() );
+	    reader.close();
+	}
+
+	@Test
+	public void testPreparedTransactions() throws Exception
+	{
+	    ChangeLogWriter writer = new ChangeLogWriter( directory );
+	    ChangeLogReader reader = new ChangeLogReader( directory, 0, factory );
+	    assertEquals( 1, writer.prepare( 1, operations( add( 1 ) ) ) );
+	    assertNull( reader.next() );
+	    writer.finished( 1, false );
+	    assertNull( reader.next() );
+	    assertEquals( 1, reader.getLastSequence() );
+	    assertEquals( 2, writer.prepare( 2, operations( add( 2 ) ) ) );
+	    writer.finished( 2, true );
+	    ChangeLogTransaction transaction = reader.next();
+	    assertEquals( 2, transaction.getSequence() );
+	    assertEquals( factory.createLiteral( 2 ),
+	        transaction.getOperations().get( 0 ).getObject() );
+	    
+	    // A transaction which was prepared when the writer went away is in
+	    // doubt until its outcome is given
+	    assertEquals( 3, writer.prepare( 3, operations( add( 3 ) ) ) );
+	    writer.close();
+	    writer = new ChangeLogWriter( directory );
+	    assertEquals( 2, writer.getLastSequence() );
+	    assertEquals( 3, writer.getInDoubtSequence() );
+	    assertNull( reader.next() );
+	    writer.finished( 3, true );
+	    assertEquals( 0, writer.getInDoubtSequence() );
+	    assertEquals( 3, reader.next().getSequence() );
+	    assertEquals( 4, writer.append( 4, operations( add( 4 ) ) ) );
+	    assertEquals( 4, reader.next().getSequence() );
+	    assertNull( reader.next() );
+	    writer.close();
+	    reader.close();
+	}
+
+	private ChangeLogOperation add( int value )
+	{
+	    return new ChangeLogOperation( true,
+	        factory.createURI( "http://example.org/changelog#s" + value ),
+	        RDF.VALUE, factory.createLiteral( value ) );
+	}
+
+	private ChangeLogWriter.OperationSource operations(
+	    final ChangeLogOperation... operations )
+	{
+	    return new ChangeLogWriter.OperationSource()
+	    {
+	        public void replay( ChangeLogWriter.OperationHandler handler )
+	        {
+	            for ( ChangeLogOperation operation : operations )
+	            {
+	                switch ( operation.getType() )
+	                {
+	                case SET_NAMESPACE:
+	                    handler.namespace( operation.getPrefix(),
+	                        operation.getNamespace() );
+	                    continue;
+	                case REMOVE_NAMESPACE:
+	                    handler.namespace( operation.getPrefix(), null );
+	                    continue;
+	                case CLEAR_NAMESPACES:
+	                    handler.namespacesCleared();
+	                    continue;
+	                default:
+	                    break;
+	                }
+	                Resource subject = operation.getSubject();
+	                URI predicate = operation.getPredicate();
+	                Value object = operation.getObject();
+	                handler.operation( operation.isAdd(), subject, predicate,
+	                    object, operation.getContexts() );
+	            }
+	        }
+	    };
+	}
+}
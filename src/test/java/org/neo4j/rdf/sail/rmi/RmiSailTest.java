@@ -1,19 +1,64 @@
 package org.neo4j.rdf.sail.rmi;
 
-import java.net.URI;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.index.IndexService;
 import org.neo4j.rdf.sail.BaseSailTest;
+import org.neo4j.rdf.sail.FulltextQueryResult;
 import org.neo4j.rdf.sail.GraphDatabaseSail;
+import org.neo4j.rdf.sail.GraphDatabaseStatement;
+import org.neo4j.rdf.sail.GraphDatabaseStatementImpl;
 import org.neo4j.rdf.sail.TestUtils;
 import org.neo4j.rdf.store.CachingLuceneIndexService;
 import org.neo4j.rdf.store.RdfStore;
 import org.neo4j.rdf.store.RdfStoreImpl;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.NamespaceImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.impl.DatasetImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
 import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.NotifyingSailConnection;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailConnectionListener;
+import org.openrdf.sail.SailException;
 
 public class RmiSailTest extends BaseSailTest
 {
@@ -99,6 +144,695 @@ public class RmiSailTest extends BaseSailTest
 	{
 	}
 
+	@Test
+	public void testServerSideEvaluation() throws Exception
+	{
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI predicate = factory.createURI( "http://example.org/rmi#knows" );
+	    URI context = factory.createURI( "http://example.org/rmi#graph" );
+	    SailConnection writer = graphDbSail.getConnection();
+	    try
+	    {
+	        for ( int i = 0; i < 100; i++ )
+	        {
+	            writer.addStatement( factory.createURI(
+	                "http://example.org/rmi#p" + i ), predicate,
+	                factory.createURI( "http://example.org/rmi#p" +
+	                ( i + 1 ) ), context );
+	        }
+	        writer.commit();
+	    }
+	    finally
+	    {
+	        writer.close();
+	    }
+	    
+	    // A join, with a dataset which has to be copied to be sent
+	    ParsedQuery query = new SPARQLParser().parseQuery(
+	        "SELECT ?a ?c FROM <" + context + "> WHERE { ?a <" + predicate +
+	        "> ?b . ?b <" + predicate + "> ?c }", null );
+	    DatasetImpl dataset = new DatasetImpl();
+	    dataset.addDefaultGraph( context );
+	    SailConnection sc = sail().getConnection();
+	    try
+	    {
+	        int count = 0;
+	        CloseableIteration<? extends BindingSet, QueryEvaluationException>
+	            results = sc.evaluate( query.getTupleExpr(), dataset,
+	                new EmptyBindingSet(), false );
+	        // Results streamed from the server, a local evaluation would
+	        // return the iteration of its own evaluation strategy
+	        assertTrue( results instanceof IterationUnbufferer );
+	        while ( results.hasNext() )
+	        {
+	            BindingSet result = results.next();
+	            assertTrue( result.getValue( "a" ) != null );
+	            assertTrue( result.getValue( "c" ) != null );
+	            count++;
+	        }
+	        results.close();
+	        assertEquals( 99, count );
+	        
+	        sc.removeStatements( null, predicate, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+
+	@Test
+	public void testChunkCodec() throws Exception
+	{
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI subject = factory.createURI( "http://example.org/codec#s" );
+	    URI context = factory.createURI( "http://example.org/codec#c" );
+	    Map<String, Literal> metadata = new HashMap<String, Literal>();
+	    metadata.put( "source", factory.createLiteral( "test" ) );
+	    MapBindingSet bindings = new MapBindingSet();
+	    bindings.addBinding( "x", subject );
+	    bindings.addBinding( "y", factory.createLiteral( "v", "en" ) );
+	    List<Object> items = new ArrayList<Object>();
+	    items.add( factory.createStatement( subject, RDF.TYPE,
+	        factory.createLiteral( 1 ), context ) );
+	    items.add( new GraphDatabaseStatementImpl( factory.createStatement(
+	        subject, RDF.VALUE, factory.createBNode( "b" ) ), metadata ) );
+	    items.add( bindings );
+	    items.add( new NamespaceImpl( "codec", "http://example.org/codec#" ) );
+	    items.add( new FulltextQueryResult( factory.createStatement( subject,
+	        RDF.VALUE, factory.createLiteral( "text" ) ), 0.5, null ) );
+	    items.add( context );
+	    items.add( Integer.valueOf( 42 ) );
+	    
+	    ChunkCodec encoder = new ChunkCodec( ChunkCodec.BINARY );
+	    ChunkCodec decoder = new ChunkCodec( ChunkCodec.BINARY );
+	    byte[] first = encoder.encode( items );
+	    List<Object> decoded = decoder.decode( first, factory );
+	    assertEquals( items.size(), decoded.size() );
+	    assertEquals( items.get( 0 ), decoded.get( 0 ) );
+	    assertEquals( context, ( ( Statement ) decoded.get( 0 ) ).getContext() );
+	    assertEquals( metadata, ( ( GraphDatabaseStatement )
+	        decoded.get( 1 ) ).getMetadata() );
+	    assertEquals( bindings, decoded.get( 2 ) );
+	    assertEquals( "http://example.org/codec#",
+	        ( ( Namespace ) decoded.get( 3 ) ).getName() );
+	    FulltextQueryResult hit = ( FulltextQueryResult ) decoded.get( 4 );
+	    assertEquals( 0.5, hit.getScore(), 0 );
+	    assertEquals( factory.createLiteral( "text" ),
+	        hit.getStatement().getObject() );
+	    assertEquals( context, decoded.get( 5 ) );
+	    assertEquals( Integer.valueOf( 42 ), decoded.get( 6 ) );
+	    
+	    // Repeated namespaces are only sent once per iteration
+	    byte[] second = encoder.encode( items );
+	    assertTrue( second.length < first.length );
+	    assertEquals( items.get( 0 ), decoder.decode( second, factory ).get( 0 ) );
+	    
+	    List<Statement> statements = new ArrayList<Statement>();
+	    for ( int i = 0; i < 1000; i++ )
+	    {
+	        statements.add( factory.createStatement( factory.createURI(
+	            "http://example.org/codec#s" + i ), RDF.VALUE,
+	            factory.createLiteral( "value " + i ) ) );
+	    }
+	    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+	    ObjectOutputStream out = new ObjectOutputStream( serialized );
+	    out.writeObject( statements );
+	    out.close();
+	    byte[] binary = new ChunkCodec( ChunkCodec.BINARY ).encode(
+	        statements );
+	    ChunkCodec deflater = new ChunkCodec(
+	        ChunkCodec.BINARY | ChunkCodec.DEFLATE );
+	    byte[] deflated = deflater.encode( statements );
+	    // Smaller than the serialized chunk, and decoded to the same
+	    assertTrue( binary.length < serialized.size() );
+	    assertEquals( statements, new ChunkCodec( ChunkCodec.BINARY ).decode(
+	        binary, factory ) );
+	    assertTrue( deflated.length < binary.length );
+	    assertEquals( statements, new ChunkCodec( ChunkCodec.BINARY |
+	        ChunkCodec.DEFLATE ).decode( deflated, factory ) );
+	}
+
+	@Test
+	public void testChunkSizeGrowsWithinByteBudget() throws Exception
+	{
+	    int itemSize = 1000;
+	    List<String> items = new ArrayList<String>();
+	    char[] chars = new char[ itemSize ];
+	    Arrays.fill( chars, 'x' );
+	    for ( int i = 0; i < 10000; i++ )
+	    {
+	        items.add( i + new String( chars ) );
+	    }
+	    IterationBufferer<String, RuntimeException> bufferer =
+	        new IterationBufferer<String, RuntimeException>(
+	            new CloseableIteratorIteration<String, RuntimeException>(
+	                items.iterator() ) );
+	    try
+	    {
+	        int total = 0;
+	        Collection<String> chunk = bufferer.getChunk();
+	        assertEquals( IterationBufferer.INITIAL_CHUNK_SIZE, chunk.size() );
+	        total += chunk.size();
+	        chunk = bufferer.getChunk();
+	        assertEquals( IterationBufferer.INITIAL_CHUNK_SIZE * 2,
+	            chunk.size() );
+	        total += chunk.size();
+	        int largest = 0;
+	        while ( !( chunk = bufferer.getChunk() ).isEmpty() )
+	        {
+	            largest = Math.max( largest, chunk.size() );
+	            total += chunk.size();
+	        }
+	        assertEquals( items.size(), total );
+	        assertTrue( largest > IterationBufferer.INITIAL_CHUNK_SIZE * 2 );
+	        assertTrue( largest <= IterationBufferer.CHUNK_BYTE_BUDGET /
+	            itemSize );
+	    }
+	    finally
+	    {
+	        bufferer.close();
+	        UnicastRemoteObject.unexportObject( bufferer, true );
+	    }
+	}
+
+	@Test
+	public void testReadAheadRoundTrips() throws Exception
+	{
+	    List<String> items = new ArrayList<String>();
+	    for ( int i = 0; i < 10000; i++ )
+	    {
+	        items.add( "item " + i );
+	    }
+	    IterationBufferer<String, RuntimeException> bufferer =
+	        new IterationBufferer<String, RuntimeException>(
+	            new CloseableIteratorIteration<String, RuntimeException>(
+	                items.iterator() ) );
+	    CountingBuffer counting = new CountingBuffer( bufferer );
+	    try
+	    {
+	        CloseableIteration<String, RuntimeException> iteration =
+	            IterationUnbufferer.unbuffer( counting );
+	        List<String> read = new ArrayList<String>();
+	        while ( iteration.hasNext() )
+	        {
+	            read.add( iteration.next() );
+	        }
+	        iteration.close();
+	        assertEquals( items, read );
+	        // Chunks of the initial size would take a round trip per 10 items
+	        assertTrue( counting.chunks.get() < items.size() /
+	            IterationBufferer.INITIAL_CHUNK_SIZE / 10 );
+	        assertEquals( 1, counting.closes.get() );
+	    }
+	    finally
+	    {
+	        UnicastRemoteObject.unexportObject( bufferer, true );
+	    }
+	}
+
+	@Test
+	public void testEarlyCloseDoesNotReadAhead() throws Exception
+	{
+	    List<String> items = new ArrayList<String>();
+	    for ( int i = 0; i < 1000; i++ )
+	    {
+	        items.add( "item " + i );
+	    }
+	    IterationBufferer<String, RuntimeException> bufferer =
+	        new IterationBufferer<String, RuntimeException>(
+	            new CloseableIteratorIteration<String, RuntimeException>(
+	                items.iterator() ) );
+	    CountingBuffer counting = new CountingBuffer( bufferer );
+	    try
+	    {
+	        CloseableIteration<String, RuntimeException> iteration =
+	            IterationUnbufferer.unbuffer( counting );
+	        assertEquals( "item 0", iteration.next() );
+	        iteration.close();
+	        // Only the first chunk was fetched, and the close didn't have
+	        // to wait for a read-ahead
+	        assertEquals( 1, counting.chunks.get() );
+	        assertEquals( 1, counting.closes.get() );
+	    }
+	    finally
+	    {
+	        UnicastRemoteObject.unexportObject( bufferer, true );
+	    }
+	}
+
+	/**
+	 * Counts the round trips an {@link IterationUnbufferer} makes.
+	 */
+	private static class CountingBuffer
+	    implements RmiIterationBuffer<String, RuntimeException>
+	{
+	    private final RmiIterationBuffer<String, RuntimeException> buffer;
+	    private final AtomicInteger chunks = new AtomicInteger();
+	    private final AtomicInteger closes = new AtomicInteger();
+
+	    CountingBuffer( RmiIterationBuffer<String, RuntimeException> buffer )
+	    {
+	        this.buffer = buffer;
+	    }
+
+	    public void close() throws RemoteException
+	    {
+	        closes.incrementAndGet();
+	        buffer.close();
+	    }
+
+	    public Collection<String> getChunk() throws RemoteException
+	    {
+	        chunks.incrementAndGet();
+	        return buffer.getChunk();
+	    }
+
+	    public byte[] getEncodedChunk( int encoding ) throws RemoteException
+	    {
+	        chunks.incrementAndGet();
+	        return buffer.getEncodedChunk( encoding );
+	    }
+	}
+
+	@Test
+	public void testBatchedWrites() throws Exception
+	{
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI predicate = factory.createURI( "http://example.org/rmi#batched" );
+	    RmiSailClient client = ( RmiSailClient ) sail();
+	    client.setWriteBatchSize( 100 );
+	    SailConnection sc = client.getConnection();
+	    try
+	    {
+	        // Fewer than a batch, still visible to the connection itself
+	        for ( int i = 0; i < 10; i++ )
+	        {
+	            sc.addStatement( factory.createURI(
+	                "http://example.org/rmi#s" + i ), predicate,
+	                factory.createLiteral( i ) );
+	        }
+	        assertEquals( 10, countStatements( sc, predicate ) );
+	        sc.removeStatements( factory.createURI(
+	            "http://example.org/rmi#s0" ), predicate, null );
+	        assertEquals( 9, countStatements( sc, predicate ) );
+	        sc.commit();
+	        
+	        // Buffered writes are dropped on rollback
+	        sc.addStatement( factory.createURI( "http://example.org/rmi#s0" ),
+	            predicate, factory.createLiteral( 0 ) );
+	        sc.rollback();
+	        assertEquals( 9, countStatements( sc, predicate ) );
+	        
+	        sc.removeStatements( null, predicate, null );
+	        sc.commit();
+	        assertEquals( 0, countStatements( sc, predicate ) );
+	        
+	        // A buffered write keeps its own contexts
+	        URI contextA = factory.createURI( "http://example.org/rmi#a" );
+	        URI contextB = factory.createURI( "http://example.org/rmi#b" );
+	        Resource[] contexts = new Resource[] { contextA };
+	        sc.addStatement( contextA, predicate, contextA, contexts );
+	        contexts[ 0 ] = contextB;
+	        sc.addStatement( contextB, predicate, contextB, contexts );
+	        sc.commit();
+	        assertEquals( 1, sc.size( contextA ) );
+	        assertEquals( 1, sc.size( contextB ) );
+	        sc.removeStatements( null, predicate, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	        client.setWriteBatchSize( RmiSailClient.DEFAULT_WRITE_BATCH_SIZE );
+	    }
+	    
+	    int count = 5000;
+	    for ( int batchSize : new int[] { 1, RmiSailClient.DEFAULT_WRITE_BATCH_SIZE } )
+	    {
+	        Map<String, AtomicInteger> calls =
+	            new HashMap<String, AtomicInteger>();
+	        RmiSailConnectionListenerCallbackImpl callback =
+	            new RmiSailConnectionListenerCallbackImpl();
+	        sc = new LocalSailConnection( countCalls( ( ( RmiSail )
+	            Naming.lookup( RESOURCE_URI ) ).connect( callback ), calls ),
+	            callback, client.getChunkEncoding(), batchSize );
+	        try
+	        {
+	            for ( int i = 0; i < count; i++ )
+	            {
+	                sc.addStatement( factory.createURI(
+	                    "http://example.org/rmi#s" + i ), predicate,
+	                    factory.createLiteral( i ) );
+	            }
+	            sc.commit();
+	            int batches = callCount( calls, "applyBatch" );
+	            int singles = callCount( calls, "addStatement" );
+	            assertEquals( count, countStatements( sc, predicate ) );
+	            if ( batchSize == 1 )
+	            {
+	                assertEquals( 0, batches );
+	                assertEquals( count, singles );
+	            }
+	            else
+	            {
+	                assertEquals( count / batchSize, batches );
+	                assertEquals( 0, singles );
+	            }
+	            sc.removeStatements( null, predicate, null );
+	            sc.commit();
+	        }
+	        finally
+	        {
+	            sc.close();
+	            UnicastRemoteObject.unexportObject( callback, true );
+	        }
+	    }
+	}
+	
+	/**
+	 * @return a connection which counts the calls made to {@code connection}
+	 * in {@code calls}, by method name.
+	 */
+	private static RmiSailConnection countCalls(
+	    final RmiSailConnection connection,
+	    final Map<String, AtomicInteger> calls )
+	{
+	    return ( RmiSailConnection ) Proxy.newProxyInstance(
+	        RmiSailConnection.class.getClassLoader(),
+	        new Class<?>[] { RmiSailConnection.class }, new InvocationHandler()
+	    {
+	        public Object invoke( Object proxy, Method method, Object[] args )
+	            throws Throwable
+	        {
+	            synchronized ( calls )
+	            {
+	                if ( !calls.containsKey( method.getName() ) )
+	                {
+	                    calls.put( method.getName(), new AtomicInteger() );
+	                }
+	                calls.get( method.getName() ).incrementAndGet();
+	            }
+	            try
+	            {
+	                return method.invoke( connection, args );
+	            }
+	            catch ( InvocationTargetException e )
+	            {
+	                throw e.getCause();
+	            }
+	        }
+	    } );
+	}
+	
+	private static int callCount( Map<String, AtomicInteger> calls,
+	    String method )
+	{
+	    synchronized ( calls )
+	    {
+	        AtomicInteger count = calls.get( method );
+	        return count == null ? 0 : count.get();
+	    }
+	}
+	
+	@Test
+	public void testOlderServer() throws Exception
+	{
+	    // A server without the negotiation methods
+	    final RmiSail server = ( RmiSail ) Naming.lookup( RESOURCE_URI );
+	    RmiSail olderServer = ( RmiSail ) Proxy.newProxyInstance(
+	        RmiSail.class.getClassLoader(), new Class<?>[] { RmiSail.class },
+	        new InvocationHandler()
+	    {
+	        public Object invoke( Object proxy, Method method, Object[] args )
+	            throws Throwable
+	        {
+	            if ( method.getName().startsWith( "negotiate" ) )
+	            {
+	                throw new UnmarshalException( "unrecognized method hash" );
+	            }
+	            try
+	            {
+	                return method.invoke( server, args );
+	            }
+	            catch ( InvocationTargetException e )
+	            {
+	                throw e.getCause();
+	            }
+	        }
+	    } );
+	    String olderUri = BASE_URI + "OlderGraphDbSail";
+	    Naming.rebind( olderUri, UnicastRemoteObject.exportObject(
+	        olderServer, 0 ) );
+	    try
+	    {
+	        RmiSailClient client = new RmiSailClient(
+	            new java.net.URI( olderUri ) );
+	        assertEquals( 0, client.getChunkEncoding() );
+	        assertEquals( 1, client.getWriteBatchSize() );
+	        client.setWriteBatchSize( 100 );
+	        assertEquals( 1, client.getWriteBatchSize() );
+	        
+	        ValueFactory factory = client.getValueFactory();
+	        URI predicate = factory.createURI( "http://example.org/rmi#older" );
+	        SailConnection sc = client.getConnection();
+	        try
+	        {
+	            sc.addStatement( predicate, predicate, predicate );
+	            sc.commit();
+	            assertEquals( 1, countStatements( sc, predicate ) );
+	            sc.removeStatements( null, predicate, null );
+	            sc.commit();
+	        }
+	        finally
+	        {
+	            sc.close();
+	        }
+	    }
+	    finally
+	    {
+	        Naming.unbind( olderUri );
+	        UnicastRemoteObject.unexportObject( olderServer, true );
+	    }
+	}
+	
+	private int countStatements( SailConnection sc, URI predicate )
+	    throws SailException
+	{
+	    int count = 0;
+	    CloseableIteration<? extends Statement, SailException> statements =
+	        sc.getStatements( null, predicate, null, false );
+	    try
+	    {
+	        while ( statements.hasNext() )
+	        {
+	            statements.next();
+	            count++;
+	        }
+	    }
+	    finally
+	    {
+	        statements.close();
+	    }
+	    return count;
+	}
+
+	@Test
+	public void testBatchedListenerCallbacks() throws Exception
+	{
+	    ValueFactory factory = graphDbSail.getValueFactory();
+	    URI predicate = factory.createURI( "http://example.org/rmi#listened" );
+	    final List<String> events = new ArrayList<String>();
+	    NotifyingSailConnection sc = ( NotifyingSailConnection )
+	        sail().getConnection();
+	    try
+	    {
+	        sc.addConnectionListener( new SailConnectionListener()
+	        {
+	            public void statementAdded( Statement statement )
+	            {
+	                synchronized ( events )
+	                {
+	                    events.add( "+" + statement.getObject().stringValue() );
+	                }
+	            }
+	            
+	            public void statementRemoved( Statement statement )
+	            {
+	                synchronized ( events )
+	                {
+	                    events.add( "-" + statement.getObject().stringValue() );
+	                }
+	            }
+	        } );
+	        int count = 2500;
+	        List<String> expected = new ArrayList<String>();
+	        for ( int i = 0; i < count; i++ )
+	        {
+	            sc.addStatement( factory.createURI(
+	                "http://example.org/rmi#s" + i ), predicate,
+	                factory.createLiteral( i ) );
+	            expected.add( "+" + i );
+	        }
+	        sc.commit();
+	        // All of them, in order, when commit returns
+	        synchronized ( events )
+	        {
+	            assertEquals( expected, events );
+	        }
+	        sc.removeStatements( null, predicate, null );
+	        sc.commit();
+	    }
+	    finally
+	    {
+	        sc.close();
+	    }
+	}
+	
+	@Test
+	public void testCallbackSenderFailingClient() throws Exception
+	{
+	    RmiSailConnectionListenerCallback failingCallback =
+	        new RmiSailConnectionListenerCallback()
+	    {
+	        public void statementAdded( Statement statement )
+	        {
+	        }
+	        
+	        public void statementRemoved( Statement statement )
+	        {
+	        }
+	        
+	        public void statementsChanged( List<ListenerEvent> events )
+	        {
+	            throw new IllegalStateException( "Listener failed" );
+	        }
+	    };
+	    CallbackSender sender = new CallbackSender( failingCallback, 10,
+	        5000 );
+	    try
+	    {
+	        assertTrue( sender.send( new ListenerEvent( true,
+	            new StatementImpl( RDF.TYPE, RDF.TYPE, RDF.PROPERTY ) ) ) );
+	        // The sender is gone, so flush() mustn't wait for it
+	        assertFalse( sender.flush() );
+	        assertFalse( sender.isConnected() );
+	    }
+	    finally
+	    {
+	        sender.close();
+	    }
+	}
+	
+	@Test
+	public void testCallbackSenderFlushTimesOut() throws Exception
+	{
+	    final CountDownLatch release = new CountDownLatch( 1 );
+	    RmiSailConnectionListenerCallback stuckCallback =
+	        new RmiSailConnectionListenerCallback()
+	    {
+	        public void statementAdded( Statement statement )
+	        {
+	        }
+	        
+	        public void statementRemoved( Statement statement )
+	        {
+	        }
+	        
+	        public void statementsChanged( List<ListenerEvent> events )
+	        {
+	            try
+	            {
+	                release.await();
+	            }
+	            catch ( InterruptedException e )
+	            {
+	                Thread.currentThread().interrupt();
+	            }
+	        }
+	    };
+	    CallbackSender sender = new CallbackSender( stuckCallback, 10, 50 );
+	    try
+	    {
+	        assertTrue( sender.send( new ListenerEvent( true,
+	            new StatementImpl( RDF.TYPE, RDF.TYPE, RDF.PROPERTY ) ) ) );
+	        assertFalse( sender.flush() );
+	        assertFalse( sender.isConnected() );
+	    }
+	    finally
+	    {
+	        release.countDown();
+	        sender.close();
+	    }
+	}
+	
+	@Test
+	public void testCallbackSenderDisconnectsSlowClient() throws Exception
+	{
+	    final CountDownLatch release = new CountDownLatch( 1 );
+	    final List<ListenerEvent> received = new ArrayList<ListenerEvent>();
+	    RmiSailConnectionListenerCallback slowCallback =
+	        new RmiSailConnectionListenerCallback()
+	    {
+	        public void statementAdded( Statement statement )
+	        {
+	        }
+	        
+	        public void statementRemoved( Statement statement )
+	        {
+	        }
+	        
+	        public void statementsChanged( List<ListenerEvent> events )
+	        {
+	            synchronized ( received )
+	            {
+	                received.addAll( events );
+	            }
+	            try
+	            {
+	                release.await();
+	            }
+	            catch ( InterruptedException e )
+	            {
+	                Thread.currentThread().interrupt();
+	            }
+	        }
+	    };
+	    Statement statement = new StatementImpl( RDF.TYPE, RDF.TYPE,
+	        RDF.PROPERTY );
+	    CallbackSender sender = new CallbackSender( slowCallback, 2, 50 );
+	    try
+	    {
+	        // The first one is taken by the sender, which then gets stuck
+	        assertTrue( sender.send( new ListenerEvent( true, statement ) ) );
+	        long endTime = System.currentTimeMillis() + 5000;
+	        while ( System.currentTimeMillis() < endTime )
+	        {
+	            synchronized ( received )
+	            {
+	                if ( !received.isEmpty() )
+	                {
+	                    break;
+	                }
+	            }
+	            Thread.sleep( 10 );
+	        }
+	        assertTrue( sender.send( new ListenerEvent( true, statement ) ) );
+	        assertTrue( sender.send( new ListenerEvent( true, statement ) ) );
+	        // The queue is full and the client doesn't catch up
+	        assertFalse( sender.send( new ListenerEvent( true, statement ) ) );
+	        assertFalse( sender.isConnected() );
+	        assertFalse( sender.flush() );
+	        assertFalse( sender.send( new ListenerEvent( true, statement ) ) );
+	    }
+	    finally
+	    {
+	        release.countDown();
+	        sender.close();
+	    }
+	}
+
 	@Override
 	protected void before() throws Exception
 	{
@@ -122,7 +856,7 @@ public class RmiSailTest extends BaseSailTest
 	@Override
 	protected NotifyingSail createSail() throws Exception
 	{
-		return new RmiSailClient( new URI( RESOURCE_URI ) );
+		return new RmiSailClient( new java.net.URI( RESOURCE_URI ) );
 	}
 
 	@Override